@@ -0,0 +1,234 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import org.w3c.dom.Document;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * AdaptiveSampler matches templates on a sample whose size depends on the corpus instead of being fixed. Subtrees are
+ * drawn in small batches, see {@link SubtreeGenerator#getSampleBatches(int, int, int)}. After each batch the two best
+ * templates are compared by the confidence intervals of the mean of their qualities per subtree: once the intervals
+ * of the quality that ranks them (recall, then accuracy, then precision) don't overlap, more subtrees are unlikely to
+ * change the best match. Homogeneous corpora stop after a few batches, heterogeneous ones draw more subtrees, up to
+ * the budget of subtrees and time.
+ * <p>
+ * Sample size, stopping reason and elapsed time of the last match are reported by {@link #toString()}.
+ */
+public class AdaptiveSampler {
+
+    public enum StoppingReason {
+        SEPARATED("the two best templates were separated"),
+        NO_COMPETITOR("all templates have the same attribute names"),
+        EXHAUSTED("all subtrees were sampled"),
+        SAMPLE_BUDGET("the sample budget was used up"),
+        TIME_BUDGET("the time budget was used up");
+
+        private final String description;
+
+        StoppingReason(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return this.description;
+        }
+    }
+
+    public final static int DEFAULT_BATCH_SIZE = 10;
+    public final static int DEFAULT_MIN_SAMPLE_SIZE = 20;
+    public final static int DEFAULT_MAX_SAMPLE_SIZE = 200;
+    public final static double DEFAULT_Z = 1.96; // 95% confidence
+
+    private final static Logger LOGGER = Logger.getLogger(AdaptiveSampler.class.getName());
+    private final static String[] QUALITIES = {"recall", "accuracy", "precision"}; // in the order of TemplateQuality.compareTo
+
+    private final TemplateMatcher matcher;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int minSampleSize = DEFAULT_MIN_SAMPLE_SIZE;
+    private int maxSampleSize = DEFAULT_MAX_SAMPLE_SIZE;
+    private long timeBudgetMillis = 0;
+    private double z = DEFAULT_Z;
+
+    private int sampleSize;
+    private StoppingReason stoppingReason;
+    private long elapsedMillis;
+
+    /**
+     * @param matcher scores the templates on the growing sample
+     */
+    public AdaptiveSampler(TemplateMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    /**
+     * @param batchSize number of subtrees drawn before the templates are compared again
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param minSampleSize number of subtrees drawn before the intervals are trusted
+     */
+    public void setMinSampleSize(int minSampleSize) {
+        this.minSampleSize = Math.max(1, minSampleSize);
+    }
+
+    /**
+     * @param maxSampleSize budget of subtrees, drawing stops when it is used up
+     */
+    public void setMaxSampleSize(int maxSampleSize) {
+        this.maxSampleSize = Math.max(1, maxSampleSize);
+    }
+
+    /**
+     * @param timeBudgetMillis drawing stops after the batch that used up the budget, 0 for no limit
+     */
+    public void setTimeBudget(long timeBudgetMillis) {
+        this.timeBudgetMillis = Math.max(0, timeBudgetMillis);
+    }
+
+    /**
+     * @param z half width of the confidence intervals in standard errors, e.g. 1.96 for 95%
+     */
+    public void setZ(double z) {
+        this.z = z;
+    }
+
+    /**
+     * Draws subtrees until the best template is separated from the second best or the budget is used up.
+     * @param sg the generator of the subtrees, reset afterwards
+     * @return the best template on the final sample, as {@link TemplateMatcher#getBestTemplateQuality(ArrayList)}
+     * finds it
+     */
+    public TemplateQuality match(SubtreeGenerator sg) {
+        long start = System.nanoTime();
+        ArrayList<Document> sample = new ArrayList<>();
+        boolean competing = hasCompetingTemplates(this.matcher.templates);
+        // the batches up to the minimum sample size are always drawn, without competitors only the first
+        int prefetch = competing ? (this.minSampleSize + this.batchSize - 1) / this.batchSize * this.batchSize : this.batchSize;
+        Iterator<ArrayList<Document>> batches = sg.getSampleBatches(this.batchSize, this.maxSampleSize, prefetch);
+        List<TemplateQuality> best = new ArrayList<>();
+        StoppingReason reason = null;
+        while (reason == null) {
+            if (!batches.hasNext()) {
+                reason = sample.size() >= this.maxSampleSize ? StoppingReason.SAMPLE_BUDGET : StoppingReason.EXHAUSTED;
+                break;
+            }
+            sample.addAll(batches.next());
+            sample.removeIf(document -> document == null);
+            best = this.matcher.getBestTemplateQualities(sample, 2);
+            if (!competing) {
+                reason = StoppingReason.NO_COMPETITOR;
+            } else if (sample.size() >= this.minSampleSize && best.size() == 2
+                    && this.isSeparated(best.get(0).getTemplate(), best.get(1).getTemplate(), sample)) {
+                // templates that tie on the sample aren't separated, drawing goes on
+                reason = StoppingReason.SEPARATED;
+            }
+            if (reason == null && this.timeBudgetMillis > 0 && (System.nanoTime() - start) / 1000000 >= this.timeBudgetMillis) {
+                reason = StoppingReason.TIME_BUDGET;
+            }
+        }
+        this.sampleSize = sample.size();
+        this.stoppingReason = reason;
+        this.elapsedMillis = (System.nanoTime() - start) / 1000000;
+        LOGGER.info(this.toString());
+        if (best.isEmpty()) {
+            // no subtrees or no templates, fails like the matcher does
+            return this.matcher.getBestTemplateQuality(sample);
+        }
+        return best.get(0);
+    }
+
+    /**
+     * @return true, if some templates have different attribute names, so their qualities can differ
+     */
+    private static boolean hasCompetingTemplates(List<Template> templates) {
+        HashSet<HashSet<String>> names = new HashSet<>();
+        for (Template template : templates) {
+            HashSet<String> paths = template.getAllPaths();
+            paths.remove("text()"); // not scored, see TemplateQuality
+            names.add(paths);
+            if (names.size() > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * compares the templates by the first quality whose values differ on any subtree.
+     * @return true, if the confidence intervals of the means of that quality don't overlap
+     */
+    private boolean isSeparated(Template first, Template second, ArrayList<Document> sample) {
+        AttributeNameSets samples = new AttributeNameSets(sample);
+        TemplateQuality.Scores firstScores = new TemplateQuality.Scores(first, samples);
+        TemplateQuality.Scores secondScores = new TemplateQuality.Scores(second, samples);
+        for (String quality : QUALITIES) {
+            double[] firstValues = new double[samples.size()];
+            double[] secondValues = new double[samples.size()];
+            boolean differ = false;
+            for (int d = 0; d < samples.size(); d++) {
+                firstValues[d] = firstScores.getSubtreeQuality(d, quality);
+                secondValues[d] = secondScores.getSubtreeQuality(d, quality);
+                differ |= Double.compare(firstValues[d], secondValues[d]) != 0;
+            }
+            if (differ) {
+                double[] firstInterval = this.confidenceInterval(firstValues);
+                double[] secondInterval = this.confidenceInterval(secondValues);
+                // NaN, e.g. the precision of a template without paths, never separates
+                return firstInterval[0] > secondInterval[1] || secondInterval[0] > firstInterval[1];
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return lower and upper end of the confidence interval of the mean of the values
+     */
+    private double[] confidenceInterval(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        double mean = sum / values.length;
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        double standardError = values.length > 1 ? Math.sqrt(squares / (values.length - 1) / values.length) : Double.POSITIVE_INFINITY;
+        return new double[]{mean - this.z * standardError, mean + this.z * standardError};
+    }
+
+    /**
+     * @return number of subtrees of the last match
+     */
+    public int getSampleSize() {
+        return this.sampleSize;
+    }
+
+    /**
+     * @return why drawing stopped in the last match, null before the first
+     */
+    public StoppingReason getStoppingReason() {
+        return this.stoppingReason;
+    }
+
+    /**
+     * @return milliseconds the last match took, including reading the subtrees
+     */
+    public long getElapsedMillis() {
+        return this.elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "Adaptive sampling: "+this.sampleSize+" subtrees in "+this.elapsedMillis+" ms, stopped because "
+                +this.stoppingReason+".";
+    }
+}
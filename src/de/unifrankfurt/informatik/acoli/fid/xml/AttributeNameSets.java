@@ -0,0 +1,162 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * AttributeNameSets holds the attribute names ("@name") of a sample of subtrees, as used by {@link TemplateQuality},
+ * extracted once per subtree and encoded as bitsets over a dictionary of all names of the sample. The paths of a
+ * template are encoded the same way, so the intersections needed for accuracy, precision and recall are a few
+ * bit operations per subtree instead of set copies.
+ */
+class AttributeNameSets {
+
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final long[][] sets; // per subtree
+    private final int[] sizes;
+
+    /**
+     * @param documents the sample, null entries are left out
+     */
+    AttributeNameSets(List<Document> documents) {
+        ArrayList<Document> sample = new ArrayList<>(documents);
+        sample.removeAll(Collections.singleton(null));
+        this.sets = new long[sample.size()][];
+        this.sizes = new int[sample.size()];
+        for (int d = 0; d < sample.size(); d++) {
+            Document document = sample.get(d);
+            HashSet<String> names = new HashSet<>();
+            collectAttributeNames(document, names);
+            long[] set = new long[0];
+            for (String name : names) {
+                Integer id = this.ids.get(name);
+                if (id == null) {
+                    id = this.ids.size();
+                    this.ids.put(name, id);
+                }
+                set = setBit(set, id);
+            }
+            this.sets[d] = set;
+            this.sizes[d] = names.size();
+        }
+    }
+
+    /**
+     * adds the names of all attributes in the subtree of the node as "@localName", the same names that the XPath
+     * //@* selects: namespace declarations are no attributes in XPath.
+     */
+    static void collectAttributeNames(Node node, Set<String> names) {
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                String name = attribute.getName();
+                if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())
+                        || name.equals(XMLConstants.XMLNS_ATTRIBUTE) || name.startsWith(XMLConstants.XMLNS_ATTRIBUTE+":")) {
+                    continue;
+                }
+                names.add("@"+attribute.getLocalName());
+            }
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                collectAttributeNames(child, names);
+            }
+        }
+    }
+
+    private static long[] setBit(long[] set, int id) {
+        if (id >> 6 >= set.length) {
+            long[] grown = new long[(id >> 6) + 1];
+            System.arraycopy(set, 0, grown, 0, set.length);
+            set = grown;
+        }
+        set[id >> 6] |= 1L << id;
+        return set;
+    }
+
+    /**
+     * @return number of subtrees
+     */
+    int size() {
+        return this.sets.length;
+    }
+
+    /**
+     * @return true, if there are no subtrees or one has no attributes, which makes every recall NaN
+     */
+    boolean hasSubtreeWithoutAttributes() {
+        for (int size : this.sizes) {
+            if (size == 0) {
+                return true;
+            }
+        }
+        return this.sizes.length == 0;
+    }
+
+    /**
+     * @return the attribute names that occur in any subtree
+     */
+    Set<String> getNames() {
+        return this.ids.keySet();
+    }
+
+    /**
+     * @return number of distinct attribute names of a subtree
+     */
+    int getSize(int document) {
+        return this.sizes[document];
+    }
+
+    /**
+     * @return number of distinct attribute names of the sample, the ids of the names in the bitsets are below
+     */
+    int getNameCount() {
+        return this.ids.size();
+    }
+
+    /**
+     * @return true, if the subtree has the attribute name with this id
+     */
+    boolean contains(int document, int name) {
+        long[] set = this.sets[document];
+        return name >> 6 < set.length && (set[name >> 6] & 1L << name) != 0;
+    }
+
+    /**
+     * @param names e.g. the paths of a template
+     * @return the names encoded as a bitset, names that don't occur in the sample are left out
+     */
+    long[] encode(Set<String> names) {
+        long[] set = new long[0];
+        for (String name : names) {
+            Integer id = this.ids.get(name);
+            if (id != null) {
+                set = setBit(set, id);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * @return number of names of the subtree that are in the encoded set
+     */
+    int countShared(int document, long[] encoded) {
+        long[] set = this.sets[document];
+        int shared = 0;
+        for (int i = Math.min(set.length, encoded.length) - 1; i >= 0; i--) {
+            shared += Long.bitCount(set[i] & encoded[i]);
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,295 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Checkpoint records the progress of a full conversion, so an interrupted run can be resumed instead of starting
+ * over: the number of sentences whose CoNLL is completely written, the position of the next sentence in the input
+ * and the length of the output at that point. It is saved as a sidecar of the output file (out.conll.ckpt).
+ * <p>
+ * The position is the byte offset of the next sentence root together with the start tags of its open ancestors.
+ * A resumed {@link SubtreeGenerator} seeks to the offset and replays the ancestors in front of it, see
+ * {@link SubtreeGenerator#resumeAt(Checkpoint)}. Without a byte offset (compressed input, multi-byte encodings
+ * other than UTF-8) the generator skips the converted sentences without building them.
+ */
+public class Checkpoint {
+
+    public final static String SUFFIX = ".ckpt";
+    private final static int MAGIC = 0x58324350; // "X2CP"
+    private final static int VERSION = 1;
+    private final static Logger LOGGER = Logger.getLogger(Checkpoint.class.getName());
+
+    private long sentenceIndex;
+    private long charOffset = -1;
+    private long byteOffset = -1;
+    private long outputLength;
+    private String encoding = "UTF-8";
+    private List<String> ancestors = Collections.emptyList();
+    private String sentencePath;
+    private String templateId;
+    private long sourceLength;
+    private long sourceLastModified;
+
+    Checkpoint(long sentenceIndex, String sentencePath) {
+        this.sentenceIndex = sentenceIndex;
+        this.sentencePath = sentencePath;
+    }
+
+    public static File getFile(File outFile) {
+        return new File(outFile.getAbsolutePath()+SUFFIX);
+    }
+
+    /**
+     * writes the checkpoint to a temporary file first and moves it over the old one, so a crash while saving
+     * never leaves a broken checkpoint.
+     * @param file
+     * @param sourceFile the converted file, its size and date are stored to detect changes
+     * @throws IOException
+     */
+    void save(File file, File sourceFile) throws IOException {
+        File temp = new File(file.getAbsolutePath()+".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceFile.length());
+            out.writeLong(sourceFile.lastModified());
+            out.writeUTF(this.sentencePath);
+            out.writeUTF(this.templateId == null ? "" : this.templateId);
+            out.writeLong(this.sentenceIndex);
+            out.writeLong(this.charOffset);
+            out.writeLong(this.byteOffset);
+            out.writeLong(this.outputLength);
+            out.writeUTF(this.encoding);
+            out.writeInt(this.ancestors.size());
+            for (String ancestor : this.ancestors) {
+                out.writeUTF(ancestor);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file
+     * @return the checkpoint or null if there is none or it can't be read
+     */
+    static Checkpoint load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.warning("Checkpoint "+file.getAbsolutePath()+" has an unknown format.");
+                return null;
+            }
+            long sourceLength = in.readLong();
+            long sourceLastModified = in.readLong();
+            Checkpoint checkpoint = new Checkpoint(0, in.readUTF());
+            checkpoint.sourceLength = sourceLength;
+            checkpoint.sourceLastModified = sourceLastModified;
+            String templateId = in.readUTF();
+            checkpoint.templateId = templateId.isEmpty() ? null : templateId;
+            checkpoint.sentenceIndex = in.readLong();
+            checkpoint.charOffset = in.readLong();
+            checkpoint.byteOffset = in.readLong();
+            checkpoint.outputLength = in.readLong();
+            checkpoint.encoding = in.readUTF();
+            int ancestors = in.readInt();
+            checkpoint.ancestors = new ArrayList<>(ancestors);
+            for (int i = 0; i < ancestors; i++) {
+                checkpoint.ancestors.add(in.readUTF());
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            LOGGER.warning("Couldn't read checkpoint "+file.getAbsolutePath()+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return true, if the checkpoint was written while converting this version of the file with the template
+     */
+    boolean belongsTo(File sourceFile, Template template) {
+        return this.sourceLength == sourceFile.length() && this.sourceLastModified == sourceFile.lastModified()
+                && this.sentencePath.equals(template.getSentencePath())
+                && (this.templateId == null || this.templateId.equals(template.getId()));
+    }
+
+    //========================================================================
+    // GETTERS AND SETTERS
+    //========================================================================
+
+    /**
+     * @return the number of converted sentences, which is the index of the sentence to resume with
+     */
+    public long getSentenceIndex() {
+        return this.sentenceIndex;
+    }
+
+    /**
+     * @return the byte offset of the next sentence root in the input, -1 if unknown
+     */
+    public long getByteOffset() {
+        return this.byteOffset;
+    }
+
+    /**
+     * @return the length of the output when the checkpoint was taken
+     */
+    public long getOutputLength() {
+        return this.outputLength;
+    }
+
+    public String getTemplateId() {
+        return this.templateId;
+    }
+
+    long getCharOffset() {
+        return this.charOffset;
+    }
+
+    String getEncoding() {
+        return this.encoding;
+    }
+
+    /**
+     * @return the start tags of the open elements around the next sentence, outermost first
+     */
+    List<String> getAncestors() {
+        return this.ancestors;
+    }
+
+    void setPosition(long charOffset, long byteOffset, String encoding, List<String> ancestors) {
+        this.charOffset = charOffset;
+        this.byteOffset = byteOffset;
+        this.encoding = encoding;
+        this.ancestors = new ArrayList<>(ancestors);
+    }
+
+    void setOutputLength(long outputLength) {
+        this.outputLength = outputLength;
+    }
+
+    void setTemplateId(String templateId) {
+        this.templateId = templateId;
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpoint[sentence "+this.sentenceIndex+", byte "+this.byteOffset+", output "+this.outputLength+"]";
+    }
+
+    /**
+     * Translates the char offsets the parser reports into byte offsets, by counting the characters of the file
+     * from the last translated position on. Supports UTF-8 and single byte encodings.
+     */
+    static class ByteOffsets implements Closeable {
+        private final InputStream in;
+        private final boolean utf8;
+        private long chars;
+        private long bytes;
+        private int pending = -1; // byte read ahead, -1 if none
+
+        private ByteOffsets(InputStream in, boolean utf8, long chars, long bytes) {
+            this.in = in;
+            this.utf8 = utf8;
+            this.chars = chars;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @param file
+         * @param encoding
+         * @param chars a known char offset to start from
+         * @param bytes the byte offset of that char, -1 to start at the beginning of the file
+         * @return null, if the encoding isn't supported
+         * @throws IOException
+         */
+        static ByteOffsets open(File file, String encoding, long chars, long bytes) throws IOException {
+            Charset charset;
+            try {
+                charset = Charset.forName(encoding);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            boolean utf8 = charset.equals(StandardCharsets.UTF_8);
+            if (!utf8 && charset.newEncoder().maxBytesPerChar() != 1.0f) {
+                return null;
+            }
+            if (bytes < 0) {
+                chars = 0;
+                bytes = utf8 && hasByteOrderMark(file) ? 3 : 0; // the parser doesn't count the byte order mark
+            }
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            long skipped = 0;
+            while (skipped < bytes) {
+                long n = in.skip(bytes - skipped);
+                if (n <= 0) {
+                    in.close();
+                    throw new EOFException("File is shorter than "+bytes+" bytes.");
+                }
+                skipped += n;
+            }
+            return new ByteOffsets(in, utf8, chars, bytes);
+        }
+
+        private static boolean hasByteOrderMark(File file) throws IOException {
+            byte[] bom = new byte[3];
+            try (InputStream in = new FileInputStream(file)) {
+                return in.read(bom) == 3 && (bom[0] & 0xFF) == 0xEF && (bom[1] & 0xFF) == 0xBB && (bom[2] & 0xFF) == 0xBF;
+            }
+        }
+
+        /**
+         * @param charOffset a char offset not before the last translated one
+         * @return the byte offset of the char
+         * @throws IOException
+         */
+        long toByteOffset(long charOffset) throws IOException {
+            if (charOffset < this.chars) {
+                throw new IllegalArgumentException("Char offset "+charOffset+" is before the last one, "+this.chars);
+            }
+            if (!this.utf8) {
+                long skip = charOffset - this.chars;
+                while (skip > 0) {
+                    long n = this.in.skip(skip);
+                    if (n <= 0) {
+                        throw new EOFException();
+                    }
+                    skip -= n;
+                }
+                this.bytes += charOffset - this.chars;
+                this.chars = charOffset;
+                return this.bytes;
+            }
+            while (true) {
+                int b = this.pending >= 0 ? this.pending : this.in.read();
+                this.pending = -1;
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                if ((b & 0xC0) != 0x80) {
+                    // first byte of a character
+                    if (this.chars == charOffset) {
+                        this.pending = b;
+                        return this.bytes;
+                    }
+                    this.chars += (b & 0xF8) == 0xF0 ? 2 : 1; // four byte sequences are surrogate pairs in java
+                }
+                this.bytes++;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
@@ -1,52 +1,209 @@
 package de.unifrankfurt.informatik.acoli.fid.xml;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * A row of CoNLL: the id of the word, the values of the columns and the features. Rows created for a
+ * {@link Layout} store their values in flat arrays in the order of the layout, which is fixed once per compiled
+ * {@link Template}, and can be refilled for the next word. {@link #getColumns()} and {@link #getFeats()} turn a
+ * row into the map representation, which the rows created by {@link #CoNLLRow(Integer)} use from the start.
+ */
 public class CoNLLRow implements Comparable<CoNLLRow> {
 	private Integer INTERNAL_ID; // only use this for sorting rows internally
 	private LinkedHashMap<String, String> columns;
 	private LinkedHashMap<String, String> feats;
-	
-	
+	// flat representation, null once the maps are used
+	private Layout layout;
+	private String[] columnValues; // null for missing values
+	private String[] featValues;
+
+
 	public CoNLLRow(Integer id){
 		columns = new LinkedHashMap<>();
 		feats = new LinkedHashMap<>();
 		INTERNAL_ID = id;
 	}
 
+	/**
+	 * creates an empty row with flat storage.
+	 * @param layout
+	 * @param id
+	 */
+	CoNLLRow(Layout layout, int id){
+		this.layout = layout;
+		this.columnValues = new String[layout.columns.length];
+		this.featValues = new String[layout.features.length];
+		INTERNAL_ID = id;
+	}
+
+	/**
+	 * empties a flat row for the next word.
+	 */
+	void reset(int id){
+		if (this.layout == null) {
+			throw new IllegalStateException("Only rows with a layout can be reused.");
+		}
+		Arrays.fill(this.columnValues, null);
+		Arrays.fill(this.featValues, null);
+		INTERNAL_ID = id;
+	}
+
+	void setColumn(int i, String value){
+		this.columnValues[i] = value;
+	}
+
+	void setFeat(int i, String value){
+		this.featValues[i] = value;
+	}
+
 	void injectInternalID(){
 		LinkedHashMap<String, String> newMap = new LinkedHashMap<>();
 		newMap.put("INTERNAL_ID", this.INTERNAL_ID.toString());
-		newMap.putAll(this.columns);
+		newMap.putAll(this.getColumns());
 		this.columns = newMap;
 	}
 
 	@Override
 	public String toString(){
-		ArrayList<String> repr = new ArrayList<>();
-		repr.add(this.INTERNAL_ID.toString());
-		columns.entrySet().forEach(
-				a -> {if(a.getKey().equals("FEATS")){
-					repr.add(swageFeats());
-				} else{
-					repr.add(a.getValue());
+		StringBuilder sb = new StringBuilder();
+		this.appendTo(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * writes the row without line break, the same as {@link #toString()}.
+	 * @param out
+	 */
+	public void appendTo(StringBuilder out){
+		try {
+			this.appendTo((Appendable) out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // not thrown by a StringBuilder
+		}
+	}
+
+	/**
+	 * writes the row without line break, the same as {@link #toString()}.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void appendTo(Appendable out) throws IOException{
+		if (out instanceof StringBuilder) {
+			((StringBuilder) out).append(this.INTERNAL_ID.intValue());
+		} else if (out instanceof CoNLLSink) {
+			((CoNLLSink) out).append(this.INTERNAL_ID.intValue());
+		} else {
+			out.append(this.INTERNAL_ID.toString());
+		}
+		if (this.layout == null) {
+			boolean hasFeats = false;
+			for (Map.Entry<String, String> a : columns.entrySet()) {
+				out.append('\t');
+				if (a.getKey().equals("FEATS")){
+					appendFeats(out);
+					hasFeats = true;
+				} else {
+					out.append(a.getValue());
 				}
-				});
-		if (!columns.containsKey("FEATS")){
-			repr.add(swageFeats());
-		}
-	return String.join("\t", repr);
-	}
-	
-	private String swageFeats (){
-		ArrayList<String> featRepr = new ArrayList<>();
-		for (String feat : feats.keySet()) {
-			if (!feats.get(feat).equals("_")){
-			featRepr.add(feat+"="+feats.get(feat));
 			}
+			if (!hasFeats){
+				out.append('\t');
+				appendFeats(out);
+			}
+			return;
+		}
+		for (int i = 0; i < this.columnValues.length; i++) {
+			if (i == this.layout.featsColumn) {
+				out.append('\t');
+				appendFeats(out);
+			} else if (this.columnValues[i] != null) {
+				out.append('\t').append(this.columnValues[i]);
+			}
+		}
+		if (this.layout.featsColumn < 0){
+			out.append('\t');
+			appendFeats(out);
 		}
-		return String.join("|", featRepr);
+	}
+
+	/**
+	 * writes the features that have a value as name=value, separated by |.
+	 */
+	private void appendFeats(Appendable out) throws IOException{
+		boolean first = true;
+		if (this.layout == null) {
+			for (Map.Entry<String, String> feat : feats.entrySet()) {
+				if (!feat.getValue().equals("_")){
+					if (!first) {
+						out.append('|');
+					}
+					out.append(feat.getKey()).append('=').append(feat.getValue());
+					first = false;
+				}
+			}
+			return;
+		}
+		for (int i = 0; i < this.featValues.length; i++) {
+			if (this.featValues[i] != null && !this.featValues[i].equals("_")){
+				if (!first) {
+					out.append('|');
+				}
+				out.append(this.layout.features[i]).append('=').append(this.featValues[i]);
+				first = false;
+			}
+		}
+	}
+
+	/**
+	 * copies the values of a flat row in the order they are written, without the id: the columns, with the
+	 * features as name=value|... in place of FEATS or behind the columns, and null for missing values.
+	 * @param values of length {@link Layout#getValueCount()}
+	 * @param feats reused to join the features
+	 */
+	void getValues(String[] values, StringBuilder feats){
+		feats.setLength(0);
+		try {
+			appendFeats(feats);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // not thrown by a StringBuilder
+		}
+		for (int i = 0; i < this.columnValues.length; i++) {
+			values[i] = i == this.layout.featsColumn ? feats.toString() : this.columnValues[i];
+		}
+		if (this.layout.featsColumn < 0){
+			values[this.columnValues.length] = feats.toString();
+		}
+	}
+
+	/**
+	 * switches a flat row to the map representation.
+	 */
+	private void toMaps(){
+		if (this.layout == null) {
+			return;
+		}
+		columns = new LinkedHashMap<>();
+		for (int i = 0; i < this.columnValues.length; i++) {
+			if (i == this.layout.featsColumn) {
+				columns.put("FEATS", "FEATS");
+			} else if (this.columnValues[i] != null) {
+				columns.put(this.layout.columns[i], this.columnValues[i]);
+			}
+		}
+		feats = new LinkedHashMap<>();
+		for (int i = 0; i < this.featValues.length; i++) {
+			if (this.featValues[i] != null) {
+				feats.put(this.layout.features[i], this.featValues[i]);
+			}
+		}
+		this.layout = null;
+		this.columnValues = null;
+		this.featValues = null;
 	}
 
 	@Override
@@ -72,6 +229,7 @@ public class CoNLLRow implements Comparable<CoNLLRow> {
 	 * @return the columns
 	 */
 	public LinkedHashMap<String, String> getColumns() {
+		toMaps();
 		return columns;
 	}
 
@@ -79,6 +237,7 @@ public class CoNLLRow implements Comparable<CoNLLRow> {
 	 * @param columns the columns to set
 	 */
 	public void setColumns(LinkedHashMap<String, String> columns) {
+		toMaps();
 		this.columns = columns;
 	}
 
@@ -86,6 +245,7 @@ public class CoNLLRow implements Comparable<CoNLLRow> {
 	 * @return the feats
 	 */
 	public LinkedHashMap<String, String> getFeats() {
+		toMaps();
 		return feats;
 	}
 
@@ -93,6 +253,35 @@ public class CoNLLRow implements Comparable<CoNLLRow> {
 	 * @param feats the feats to set
 	 */
 	public void setFeats(LinkedHashMap<String, String> feats) {
+		toMaps();
 		this.feats = feats;
 	}
+
+	/**
+	 * The columns and features of the rows of a template, in their order.
+	 */
+	static class Layout {
+		private final String[] columns;
+		private final int featsColumn; // index of the FEATS column, -1 if the features are appended
+		private final String[] features;
+
+		Layout(Collection<String> columns, Collection<String> features) {
+			this.columns = columns.toArray(new String[0]);
+			this.features = features.toArray(new String[0]);
+			int feats = -1;
+			for (int i = 0; i < this.columns.length; i++) {
+				if (this.columns[i].equals("FEATS")) {
+					feats = i;
+				}
+			}
+			this.featsColumn = feats;
+		}
+
+		/**
+		 * @return number of values of a row without the id, the features count as one
+		 */
+		int getValueCount() {
+			return this.columns.length + (this.featsColumn < 0 ? 1 : 0);
+		}
+	}
 }
@@ -0,0 +1,371 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * CoNLLSink writes converted CoNLL to a file channel or an output stream. Characters are encoded into a large
+ * byte buffer that is reused for the whole conversion and only handed to the channel when it is full, UTF-8 is
+ * encoded directly without any intermediate Strings or byte arrays. Unlike a {@link PrintStream} the sink doesn't
+ * lock, so it must only be used by one thread at a time, and write errors are thrown instead of being swallowed.
+ * <p>
+ * A sink counts the bytes written to it, see {@link #getPosition()}, which is used for the output length of
+ * {@link Checkpoint}s. Unpaired surrogates are written as '?', like a PrintStream does.
+ * <p>
+ * A sink can also buffer characters for an {@link Appendable}, e.g. a PrintStream, that encodes them itself. Then
+ * the characters are written in the encoding of the PrintStream, and positions count characters instead of bytes.
+ */
+public class CoNLLSink implements Appendable, Flushable, Closeable {
+
+    public final static int DEFAULT_BUFFER_SIZE = 1 << 20;
+    private final static int MIN_BUFFER_SIZE = 64;
+
+    private final WritableByteChannel channel; // null if writing to a stream
+    private final OutputStream stream;
+    private final Appendable text; // null unless the characters are handed to it unencoded
+    private final byte[] bytes;
+    private final char[] chars; // buffer for the text, null otherwise
+    private int count; // number of bytes in the buffer, characters for text
+    private final ByteBuffer direct; // null unless the buffer is copied into a direct buffer for the channel
+    private final CharsetEncoder encoder; // null for UTF-8, which is encoded here
+    private char highSurrogate; // the first half of a surrogate pair that was appended on its own, 0 if none
+    private long position;
+
+    /**
+     * @param channel where to write the bytes to
+     * @param position number of bytes in front of the current position of the channel, e.g. its size when appending
+     * @param bufferSize number of bytes to buffer before writing to the channel
+     * @param direct whether to write from a direct buffer, which saves the channel from using a temporary one
+     */
+    public CoNLLSink(WritableByteChannel channel, long position, int bufferSize, boolean direct) {
+        this(channel, null, StandardCharsets.UTF_8, bufferSize, direct);
+        this.position = position;
+    }
+
+    /**
+     * Writes UTF-8 to the stream, with the default buffer size.
+     * @param stream
+     */
+    public CoNLLSink(OutputStream stream) {
+        this(stream, StandardCharsets.UTF_8, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param stream where to write the bytes to
+     * @param charset how to encode the characters, e.g. {@link Charset#defaultCharset()} to write the same bytes as
+     *                a {@link PrintStream} without an explicit encoding
+     * @param bufferSize number of bytes to buffer before writing to the stream
+     */
+    public CoNLLSink(OutputStream stream, Charset charset, int bufferSize) {
+        this(null, stream, charset, bufferSize, false);
+    }
+
+    /**
+     * Hands the characters to an Appendable that encodes them itself, e.g. a PrintStream with an encoding of its own.
+     * Flushing and closing the sink flushes and closes it, if it is {@link Flushable} or {@link Closeable}.
+     * @param text where to write the characters to
+     * @param bufferSize number of characters to buffer before writing them
+     */
+    public CoNLLSink(Appendable text, int bufferSize) {
+        this.channel = null;
+        this.stream = null;
+        this.text = text;
+        this.bytes = null;
+        this.chars = new char[Math.max(MIN_BUFFER_SIZE, bufferSize)];
+        this.direct = null;
+        this.encoder = null;
+    }
+
+    private CoNLLSink(WritableByteChannel channel, OutputStream stream, Charset charset, int bufferSize, boolean direct) {
+        this.channel = channel;
+        this.stream = stream;
+        this.text = null;
+        this.bytes = new byte[Math.max(MIN_BUFFER_SIZE, bufferSize)];
+        this.chars = null;
+        this.direct = direct ? ByteBuffer.allocateDirect(this.bytes.length) : null;
+        this.encoder = charset.equals(StandardCharsets.UTF_8) ? null : charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Opens a file for writing UTF-8 with the default buffer size.
+     * @param file
+     * @param append whether to keep the content of the file and write behind it, otherwise it is truncated
+     * @return the sink, which closes the file when it is closed
+     * @throws IOException if the file can't be opened
+     */
+    public static CoNLLSink open(File file, boolean append) throws IOException {
+        return open(file, append, DEFAULT_BUFFER_SIZE, false);
+    }
+
+    /**
+     * @see #open(File, boolean)
+     * @see #CoNLLSink(WritableByteChannel, long, int, boolean)
+     */
+    public static CoNLLSink open(File file, boolean append, int bufferSize, boolean direct) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        return new CoNLLSink(channel, append ? channel.size() : 0, bufferSize, direct);
+    }
+
+    /**
+     * @return number of bytes written so far, including buffered ones and those in front of the sink
+     */
+    public long getPosition() {
+        return this.position + this.count;
+    }
+
+    @Override
+    public CoNLLSink append(CharSequence csq) throws IOException {
+        return csq == null ? this.append("null", 0, 4) : this.append(csq, 0, csq.length());
+    }
+
+    @Override
+    public CoNLLSink append(CharSequence csq, int start, int end) throws IOException {
+        if (csq == null) {
+            return this.append("null", start, end);
+        }
+        if (this.text != null) {
+            for (int i = start; i < end; i++) {
+                if (this.count == this.chars.length) {
+                    this.drain();
+                }
+                this.chars[this.count++] = csq.charAt(i);
+            }
+            return this;
+        }
+        if (this.encoder != null) {
+            this.encode(csq, start, end);
+            return this;
+        }
+        byte[] bytes = this.bytes;
+        int limit = bytes.length - 4; // room for the longest encoding of a character
+        for (int i = start; i < end; i++) {
+            if (this.count > limit) {
+                this.drain();
+            }
+            char c = csq.charAt(i);
+            if (c < 0x80 && this.highSurrogate == 0) {
+                bytes[this.count++] = (byte) c;
+            } else {
+                this.put(c);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public CoNLLSink append(char c) throws IOException {
+        if (this.text != null) {
+            if (this.count == this.chars.length) {
+                this.drain();
+            }
+            this.chars[this.count++] = c;
+            return this;
+        }
+        if (this.encoder != null) {
+            this.encode(String.valueOf(c), 0, 1);
+            return this;
+        }
+        if (this.count > this.bytes.length - 4) {
+            this.drain();
+        }
+        this.put(c);
+        return this;
+    }
+
+    /**
+     * writes the decimal representation of i, without creating a String.
+     * @param i
+     * @return this sink
+     * @throws IOException
+     */
+    public CoNLLSink append(int i) throws IOException {
+        if (i < 0 || this.text != null || this.encoder != null || this.highSurrogate != 0) {
+            return this.append(Integer.toString(i));
+        }
+        if (this.count > this.bytes.length - 10) {
+            this.drain();
+        }
+        int digits = 1;
+        for (int rest = i / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        this.count += digits;
+        for (int at = this.count - 1; at >= this.count - digits; at--) {
+            this.bytes[at] = (byte) ('0' + i % 10);
+            i /= 10;
+        }
+        return this;
+    }
+
+    /**
+     * encodes a character as UTF-8, there must be room for 4 bytes.
+     */
+    private void put(char c) {
+        byte[] bytes = this.bytes;
+        if (this.highSurrogate != 0) {
+            char high = this.highSurrogate;
+            this.highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                bytes[this.count++] = (byte) (0xF0 | codePoint >> 18);
+                bytes[this.count++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                bytes[this.count++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                bytes[this.count++] = (byte) (0x80 | codePoint & 0x3F);
+                return;
+            }
+            bytes[this.count++] = '?';
+        }
+        if (c < 0x80) {
+            bytes[this.count++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[this.count++] = (byte) (0xC0 | c >> 6);
+            bytes[this.count++] = (byte) (0x80 | c & 0x3F);
+        } else if (Character.isHighSurrogate(c)) {
+            this.highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            bytes[this.count++] = '?';
+        } else {
+            bytes[this.count++] = (byte) (0xE0 | c >> 12);
+            bytes[this.count++] = (byte) (0x80 | c >> 6 & 0x3F);
+            bytes[this.count++] = (byte) (0x80 | c & 0x3F);
+        }
+    }
+
+    /**
+     * encodes with a charset other than UTF-8, a high surrogate at the end waits for the rest of the pair.
+     */
+    private void encode(CharSequence csq, int start, int end) throws IOException {
+        if (this.highSurrogate != 0) {
+            csq = new StringBuilder(end - start + 1).append(this.highSurrogate).append(csq, start, end);
+            start = 0;
+            end = csq.length();
+            this.highSurrogate = 0;
+        }
+        if (end > start && Character.isHighSurrogate(csq.charAt(end - 1))) {
+            this.highSurrogate = csq.charAt(--end);
+        }
+        this.encode(CharBuffer.wrap(csq, start, end));
+    }
+
+    private void encode(CharBuffer chars) throws IOException {
+        ByteBuffer out = ByteBuffer.wrap(this.bytes, this.count, this.bytes.length - this.count);
+        while (this.encoder.encode(chars, out, true).isOverflow()) {
+            out = this.spill(out);
+        }
+        while (this.encoder.flush(out).isOverflow()) {
+            out = this.spill(out);
+        }
+        this.count = out.position();
+        this.encoder.reset();
+    }
+
+    private ByteBuffer spill(ByteBuffer out) throws IOException {
+        this.count = out.position();
+        this.drain();
+        return ByteBuffer.wrap(this.bytes);
+    }
+
+    /**
+     * writes the buffer to the channel, stream or text.
+     */
+    private void drain() throws IOException {
+        if (this.count == 0) {
+            return;
+        }
+        if (this.text != null) {
+            this.drainText(false);
+            return;
+        }
+        if (this.stream != null) {
+            this.stream.write(this.bytes, 0, this.count);
+        } else {
+            ByteBuffer buffer;
+            if (this.direct != null) {
+                this.direct.clear();
+                this.direct.put(this.bytes, 0, this.count);
+                this.direct.flip();
+                buffer = this.direct;
+            } else {
+                buffer = ByteBuffer.wrap(this.bytes, 0, this.count);
+            }
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+        }
+        this.position += this.count;
+        this.count = 0;
+    }
+
+    /**
+     * hands the buffered characters to the text. A high surrogate at the end is kept for the rest of its pair,
+     * unless all characters are written.
+     */
+    private void drainText(boolean all) throws IOException {
+        int length = this.count;
+        if (!all && Character.isHighSurrogate(this.chars[length - 1])) {
+            length--;
+        }
+        this.text.append(CharBuffer.wrap(this.chars, 0, length));
+        if (this.text instanceof PrintStream && ((PrintStream) this.text).checkError()) {
+            throw new IOException("Unable to write to the PrintStream.");
+        }
+        this.position += length;
+        this.count -= length;
+        if (this.count > 0) {
+            this.chars[0] = this.chars[length];
+        }
+    }
+
+    /**
+     * writes everything appended so far, except for an unpaired high surrogate at the end.
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        this.drain();
+        if (this.stream != null) {
+            this.stream.flush();
+        } else if (this.text instanceof Flushable) {
+            ((Flushable) this.text).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.text != null && this.count > 0) {
+                this.drainText(true); // an unpaired surrogate is up to the text
+            }
+            if (this.highSurrogate != 0) {
+                // never completed, written as a single unmappable character
+                char high = this.highSurrogate;
+                this.highSurrogate = 0;
+                if (this.encoder != null) {
+                    this.encode(CharBuffer.wrap(new char[]{high}));
+                } else {
+                    this.append('?');
+                }
+            }
+            this.flush();
+        } finally {
+            if (this.stream != null) {
+                this.stream.close();
+            } else if (this.channel != null) {
+                this.channel.close();
+            } else if (this.text instanceof Closeable) {
+                ((Closeable) this.text).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * ColumnarReader reads the files written by {@link ColumnarWriter}. Sentences are streamed with
+ * {@link #nextSentence()}, a single column is read with {@link #scanColumn(int, ColumnVisitor)}, which only reads
+ * the bytes of that column. The dictionaries and the block index are read when the file is opened.
+ */
+public class ColumnarReader implements Closeable {
+
+    private final static Logger LOGGER = Logger.getLogger(ColumnarReader.class.getName());
+
+    private final FileChannel channel;
+    private final String[] columns;
+    private final String[][] dictionaries; // index 0 is null, for missing values
+    private long sentenceCount;
+    // block index
+    private final long[] blockOffsets;
+    private final int[] blockSentences;
+    private final int[] blockRows;
+    private final int[] lengthBytes;
+    private final int[][] columnBytes;
+
+    // state of nextSentence()
+    private int nextBlock;
+    private int[] sentenceLengths = new int[0];
+    private int[][] ids;
+    private int sentence; // index of the next sentence in the current block
+    private int row; // index of its first row in the current block
+    private int sentencesInBlock;
+
+    /**
+     * opens the file and reads its header, dictionaries and block index.
+     * @param file written by a {@link ColumnarWriter}
+     * @throws IOException if the file can't be read or isn't a columnar file
+     */
+    public ColumnarReader(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = this.channel.size();
+            Input trailer = size < 20 ? null : this.read(size - 12, 12);
+            if (trailer == null || trailer.getInt(8) != ColumnarWriter.MAGIC) {
+                throw new IOException(file.getAbsolutePath()+" is not a columnar CoNLL file.");
+            }
+            long footerOffset = trailer.getLong(0);
+            Input header = this.read(0, (int) Math.min(footerOffset, 1 << 16));
+            if (header.getInt(0) != ColumnarWriter.MAGIC || header.getInt(4) != ColumnarWriter.VERSION) {
+                throw new IOException(file.getAbsolutePath()+" is not a columnar CoNLL file of version "+ColumnarWriter.VERSION+".");
+            }
+            header.position = 8;
+            this.columns = new String[(int) header.getVarint()];
+            for (int c = 0; c < this.columns.length; c++) {
+                this.columns[c] = header.getString();
+            }
+            Input footer = this.read(footerOffset, (int) (size - 12 - footerOffset));
+            this.dictionaries = new String[this.columns.length][];
+            for (int c = 0; c < this.columns.length; c++) {
+                String[] dictionary = new String[(int) footer.getVarint() + 1];
+                for (int id = 1; id < dictionary.length; id++) {
+                    dictionary[id] = footer.getString();
+                }
+                this.dictionaries[c] = dictionary;
+            }
+            int blocks = (int) footer.getVarint();
+            this.blockOffsets = new long[blocks];
+            this.blockSentences = new int[blocks];
+            this.blockRows = new int[blocks];
+            this.lengthBytes = new int[blocks];
+            this.columnBytes = new int[blocks][this.columns.length];
+            for (int b = 0; b < blocks; b++) {
+                this.blockOffsets[b] = footer.getVarint();
+                this.blockSentences[b] = (int) footer.getVarint();
+                this.blockRows[b] = (int) footer.getVarint();
+                this.lengthBytes[b] = (int) footer.getVarint();
+                for (int c = 0; c < this.columns.length; c++) {
+                    this.columnBytes[b][c] = (int) footer.getVarint();
+                }
+                this.sentenceCount += this.blockSentences[b];
+            }
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.ids = new int[this.columns.length][0];
+    }
+
+    /**
+     * @return names of the columns, without the ID
+     */
+    public String[] getColumnNames() {
+        return this.columns.clone();
+    }
+
+    /**
+     * @return index of the column with the name, -1 if there is none
+     */
+    public int getColumn(String name) {
+        for (int c = 0; c < this.columns.length; c++) {
+            if (this.columns[c].equals(name)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    public long getSentenceCount() {
+        return this.sentenceCount;
+    }
+
+    /**
+     * @return the distinct values of a column, a value's id is its index in the array. Index 0 is null, it stands
+     * for missing values.
+     */
+    public String[] getDictionary(int column) {
+        return this.dictionaries[column].clone();
+    }
+
+    /**
+     * reads the next sentence.
+     * @return the rows of the sentence, each with one value per column and null for missing values, or null if
+     * there are no more sentences
+     * @throws IOException
+     */
+    public String[][] nextSentence() throws IOException {
+        while (this.sentence == this.sentencesInBlock) {
+            if (this.nextBlock == this.blockOffsets.length) {
+                return null;
+            }
+            this.readBlock(this.nextBlock++);
+        }
+        String[][] rows = new String[this.sentenceLengths[this.sentence]][this.columns.length];
+        for (int r = 0; r < rows.length; r++) {
+            for (int c = 0; c < this.columns.length; c++) {
+                rows[r][c] = this.dictionaries[c][this.ids[c][this.row + r]];
+            }
+        }
+        this.row += rows.length;
+        this.sentence++;
+        return rows;
+    }
+
+    /**
+     * decodes all columns of a block for {@link #nextSentence()}.
+     */
+    private void readBlock(int block) throws IOException {
+        int length = this.lengthBytes[block];
+        for (int c = 0; c < this.columns.length; c++) {
+            length += this.columnBytes[block][c];
+        }
+        Input input = this.read(this.blockOffsets[block], length);
+        this.sentencesInBlock = this.blockSentences[block];
+        if (this.sentenceLengths.length < this.sentencesInBlock) {
+            this.sentenceLengths = new int[this.sentencesInBlock];
+        }
+        for (int s = 0; s < this.sentencesInBlock; s++) {
+            this.sentenceLengths[s] = (int) input.getVarint();
+        }
+        int rows = this.blockRows[block];
+        for (int c = 0; c < this.columns.length; c++) {
+            if (this.ids[c].length < rows) {
+                this.ids[c] = new int[rows];
+            }
+            for (int r = 0; r < rows; r++) {
+                this.ids[c][r] = (int) input.getVarint();
+            }
+        }
+        this.sentence = 0;
+        this.row = 0;
+    }
+
+    /**
+     * Receives the values of a column, see {@link #scanColumn(int, ColumnVisitor)}.
+     */
+    public interface ColumnVisitor {
+        /**
+         * @param sentence index of the sentence in the file
+         * @param word index of the word in the sentence, its ID
+         * @param value the value, null if missing
+         */
+        void visit(long sentence, int word, String value);
+    }
+
+    /**
+     * reads all values of a column, in the order of the file. Independent of {@link #nextSentence()}.
+     * @param column index of the column
+     * @param visitor receives the values
+     * @throws IOException
+     */
+    public void scanColumn(int column, ColumnVisitor visitor) throws IOException {
+        String[] dictionary = this.dictionaries[column];
+        long sentence = 0;
+        for (int b = 0; b < this.blockOffsets.length; b++) {
+            Input lengths = this.read(this.blockOffsets[b], this.lengthBytes[b]);
+            long offset = this.blockOffsets[b] + this.lengthBytes[b];
+            for (int c = 0; c < column; c++) {
+                offset += this.columnBytes[b][c];
+            }
+            Input values = this.read(offset, this.columnBytes[b][column]);
+            for (int s = 0; s < this.blockSentences[b]; s++, sentence++) {
+                int words = (int) lengths.getVarint();
+                for (int w = 0; w < words; w++) {
+                    visitor.visit(sentence, w, dictionary[(int) values.getVarint()]);
+                }
+            }
+        }
+    }
+
+    private Input read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at byte "+(position + buffer.position())+".");
+            }
+        }
+        return new Input(buffer.array());
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    /**
+     * A byte array that is read from the start.
+     */
+    private static class Input {
+        private final byte[] bytes;
+        private int position;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long getVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (this.position == this.bytes.length) {
+                    throw new EOFException("Truncated varint.");
+                }
+                byte b = this.bytes[this.position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint.");
+        }
+
+        String getString() throws IOException {
+            int length = (int) this.getVarint();
+            if (length > this.bytes.length - this.position) {
+                throw new EOFException("Truncated string.");
+            }
+            String value = new String(this.bytes, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+
+        int getInt(int at) {
+            return (this.bytes[at] & 0xFF) << 24 | (this.bytes[at + 1] & 0xFF) << 16
+                    | (this.bytes[at + 2] & 0xFF) << 8 | this.bytes[at + 3] & 0xFF;
+        }
+
+        long getLong(int at) {
+            return (long) this.getInt(at) << 32 | this.getInt(at + 4) & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * Prints a columnar file as CoNLL, or the values of one column, one per line with an empty line after each
+     * sentence.
+     * @param args FILE [COLUMN]
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            LOGGER.severe("synopsis: ColumnarReader FILE [COLUMN]");
+            System.exit(1);
+        }
+        try (ColumnarReader reader = new ColumnarReader(new File(args[0]));
+             CoNLLSink out = Utils.convertPrintStreamToCoNLLSink(System.out)) {
+            if (args.length > 1) {
+                int column = reader.getColumn(args[1]);
+                if (column < 0) {
+                    LOGGER.severe("No column "+args[1]+", columns are "+String.join(", ", reader.getColumnNames()));
+                    System.exit(1);
+                }
+                long[] current = {0};
+                reader.scanColumn(column, (sentence, word, value) -> {
+                    try {
+                        for (; current[0] < sentence; current[0]++) {
+                            out.append('\n');
+                        }
+                        out.append(value == null ? "_" : value).append('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e); // reported below
+                    }
+                });
+                out.append('\n');
+                return;
+            }
+            out.append("#ID\t").append(String.join("\t", reader.getColumnNames())).append('\n');
+            String[][] rows;
+            while ((rows = reader.nextSentence()) != null) {
+                for (int r = 0; r < rows.length; r++) {
+                    out.append(r);
+                    for (String value : rows[r]) {
+                        if (value != null) {
+                            out.append('\t').append(value);
+                        }
+                    }
+                    out.append('\n');
+                }
+                out.append('\n');
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.severe("Couldn't read "+args[0]+". Stacktrace:");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+/**
+ * ColumnarWriter writes converted sentences in a binary columnar format instead of CoNLL text, for consumers that
+ * would parse the text back into columns anyway. Every column has a dictionary of its distinct values, a row stores
+ * only the ids of its values as varints, and rows are grouped into blocks which store each column separately, so a
+ * single column can be read without decoding the others, see {@link ColumnarReader}.
+ * <p>
+ * The columns are those of {@link XML2CoNLL#createCommentString(Template)} without the ID, which is the index of a
+ * row in its sentence. The FEATS column holds the joined features, as written in CoNLL. All numbers are unsigned
+ * varints (7 bits per byte, least significant first), strings are a varint byte length and UTF-8:
+ * <pre>
+ * file    := MAGIC VERSION columns (name)* block* footer footerOffset MAGIC
+ * block   := (sentenceLength)* (id)* for each column, the ids of all rows of the block
+ * footer  := for each column: values (value)*, blocks (offset sentences rows lengthBytes (columnBytes)*)*
+ * </pre>
+ * MAGIC and VERSION are 4 byte ints, footerOffset an 8 byte long. Id 0 is a missing value, id i the i-th value of
+ * the dictionary of the column. The dictionaries are kept in memory until the writer is closed.
+ */
+public class ColumnarWriter implements Closeable {
+
+    final static int MAGIC = 0x58324343; // "X2CC"
+    final static int VERSION = 1;
+    public final static int DEFAULT_BLOCK_ROWS = 1 << 13;
+    private final static Logger LOGGER = Logger.getLogger(ColumnarWriter.class.getName());
+
+    private final OutputStream out;
+    private long position;
+    private final String[] columns;
+    private final ArrayList<HashMap<String, Integer>> ids = new ArrayList<>();
+    private final ArrayList<ArrayList<String>> dictionaries = new ArrayList<>();
+    private final int blockRows;
+
+    // the current block
+    private final Chunk sentenceLengths = new Chunk();
+    private final Chunk[] columnChunks;
+    private int blockSentences;
+    private int rows;
+    private int sentenceLength;
+    private final Chunk blockIndex = new Chunk(); // the blocks part of the footer
+    private int blocks;
+    private long sentences;
+
+    private final String[] values; // reused for each CoNLLRow
+    private final StringBuilder feats = new StringBuilder();
+
+    /**
+     * writes the header.
+     * @param out where to write to, closed with the writer
+     * @param columns names of the columns
+     * @param blockRows number of rows after which a block is written, at the end of the current sentence
+     * @throws IOException
+     */
+    public ColumnarWriter(OutputStream out, String[] columns, int blockRows) throws IOException {
+        this.out = out;
+        this.columns = columns.clone();
+        this.blockRows = Math.max(1, blockRows);
+        this.columnChunks = new Chunk[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            this.columnChunks[c] = new Chunk();
+            this.ids.add(new HashMap<>());
+            this.dictionaries.add(new ArrayList<>());
+        }
+        this.values = new String[columns.length];
+        Chunk header = new Chunk();
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putVarint(columns.length);
+        for (String column : columns) {
+            header.putString(column);
+        }
+        this.write(header);
+    }
+
+    public ColumnarWriter(OutputStream out, String[] columns) throws IOException {
+        this(out, columns, DEFAULT_BLOCK_ROWS);
+    }
+
+    /**
+     * @param file the file to write, it is overwritten
+     * @param columns names of the columns, e.g. {@link XML2CoNLL#getColumnNames()}
+     * @return the writer, which closes the file when it is closed
+     * @throws IOException if the file can't be opened
+     */
+    public static ColumnarWriter open(File file, String[] columns) throws IOException {
+        return new ColumnarWriter(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), columns);
+    }
+
+    /**
+     * @return names of the columns, without the ID
+     */
+    public String[] getColumnNames() {
+        return this.columns.clone();
+    }
+
+    /**
+     * @return number of completed sentences
+     */
+    public long getSentenceCount() {
+        return this.sentences;
+    }
+
+    /**
+     * adds a row to the current sentence.
+     * @param values one value per column, null for a missing one
+     * @throws IOException
+     */
+    public void addRow(String[] values) throws IOException {
+        if (values.length != this.columns.length) {
+            throw new IllegalArgumentException("Expected "+this.columns.length+" values, got "+values.length+".");
+        }
+        for (int c = 0; c < values.length; c++) {
+            this.columnChunks[c].putVarint(this.getId(c, values[c]));
+        }
+        this.sentenceLength++;
+        this.rows++;
+    }
+
+    /**
+     * adds a row with a layout, like the rows created by {@link XML2CoNLL}, to the current sentence.
+     */
+    void addRow(CoNLLRow row) throws IOException {
+        row.getValues(this.values, this.feats);
+        this.addRow(this.values);
+    }
+
+    /**
+     * ends the current sentence, an empty sentence if no rows were added.
+     * @throws IOException
+     */
+    public void endSentence() throws IOException {
+        this.sentenceLengths.putVarint(this.sentenceLength);
+        this.sentenceLength = 0;
+        this.blockSentences++;
+        this.sentences++;
+        if (this.rows >= this.blockRows) {
+            this.writeBlock();
+        }
+    }
+
+    private int getId(int column, String value) {
+        if (value == null) {
+            return 0;
+        }
+        HashMap<String, Integer> ids = this.ids.get(column);
+        Integer id = ids.get(value);
+        if (id == null) {
+            ArrayList<String> dictionary = this.dictionaries.get(column);
+            dictionary.add(value);
+            id = dictionary.size();
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    private void writeBlock() throws IOException {
+        if (this.blockSentences == 0) {
+            return;
+        }
+        this.blockIndex.putVarint(this.position);
+        this.blockIndex.putVarint(this.blockSentences);
+        this.blockIndex.putVarint(this.rows);
+        this.blockIndex.putVarint(this.sentenceLengths.size);
+        this.write(this.sentenceLengths);
+        for (Chunk chunk : this.columnChunks) {
+            this.blockIndex.putVarint(chunk.size);
+            this.write(chunk);
+        }
+        this.blocks++;
+        this.blockSentences = 0;
+        this.rows = 0;
+    }
+
+    private void write(Chunk chunk) throws IOException {
+        this.out.write(chunk.bytes, 0, chunk.size);
+        this.position += chunk.size;
+        chunk.size = 0;
+    }
+
+    /**
+     * ends a sentence that wasn't ended, writes the last block and the footer and closes the output.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.sentenceLength > 0) {
+                this.endSentence();
+            }
+            this.writeBlock();
+            long footerOffset = this.position;
+            Chunk footer = new Chunk();
+            for (ArrayList<String> dictionary : this.dictionaries) {
+                footer.putVarint(dictionary.size());
+                for (String value : dictionary) {
+                    footer.putString(value);
+                }
+                this.write(footer);
+            }
+            footer.putVarint(this.blocks);
+            this.write(footer);
+            this.write(this.blockIndex);
+            footer.putLong(footerOffset);
+            footer.putInt(MAGIC);
+            this.write(footer);
+            this.out.flush();
+            LOGGER.fine("Wrote "+this.sentences+" sentences in "+this.blocks+" blocks, "+this.position+" bytes.");
+        } finally {
+            this.out.close();
+        }
+    }
+
+    /**
+     * A growable byte array.
+     */
+    private static class Chunk {
+        private byte[] bytes = new byte[1 << 10];
+        private int size;
+
+        private void ensure(int more) {
+            if (this.size + more > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.size + more, this.bytes.length * 2));
+            }
+        }
+
+        void putVarint(long value) {
+            this.ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                this.bytes[this.size++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            this.bytes[this.size++] = (byte) value;
+        }
+
+        void putInt(int value) {
+            this.ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                this.bytes[this.size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void putLong(long value) {
+            this.putInt((int) (value >>> 32));
+            this.putInt((int) value);
+        }
+
+        void putString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            this.putVarint(utf8.length);
+            this.ensure(utf8.length);
+            System.arraycopy(utf8, 0, this.bytes, this.size, utf8.length);
+            this.size += utf8.length;
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * CompactSubtree is a light-weight replacement for a DOM of a single subtree (e.g. a sentence). All nodes live in
+ * int arrays that are reused for every subtree, names are stored as ids of a {@link StringTable} shared by all
+ * subtrees of a file and all text and attribute values are stored in one char arena. Only elements, attributes and
+ * text are kept, adjacent text (including CDATA) is merged into one text node, as in the XPath data model.
+ * <p>
+ * Nodes are numbered in document order, node 0 is the document node. Since all descendants of a node n have the
+ * ids n+1 to {@link #getEnd(int)}-1, the subtree of a node is a simple range of ids.
+ * Navigation is provided for the subset of XPath implemented by {@link SimplePath}.
+ */
+public class CompactSubtree {
+
+    public final static int DOCUMENT = 0;
+    public final static int ELEMENT = 1;
+    public final static int TEXT = 2;
+
+    private final StringTable strings;
+
+    // nodes
+    private int[] kind;
+    private int[] parent;
+    private int[] end; // id after the last descendant
+    private int[] name; // string id of the local name
+    private int[] namespace; // string id of the namespace uri, "" for none
+    private int[] attributeStart;
+    private int[] attributeCount;
+    private int[] textStart; // text nodes only: position in the char arena
+    private int[] textLength;
+    private int nodeCount;
+
+    // attributes
+    private int[] attributeName;
+    private int[] attributeNamespace;
+    private int[] attributeValueStart;
+    private int[] attributeValueLength;
+    private int attributeTotal;
+
+    // char arena for text and attribute values
+    private char[] chars;
+    private int charCount;
+
+    // building
+    private int current; // the innermost open node
+    private boolean textOpen; // whether the last node is a text node that further text is appended to
+
+    public CompactSubtree() {
+        this(new StringTable());
+    }
+
+    /**
+     * @param strings table for element and attribute names, may be shared between subtrees
+     */
+    public CompactSubtree(StringTable strings) {
+        this.strings = strings;
+        int nodes = 256;
+        this.kind = new int[nodes];
+        this.parent = new int[nodes];
+        this.end = new int[nodes];
+        this.name = new int[nodes];
+        this.namespace = new int[nodes];
+        this.attributeStart = new int[nodes];
+        this.attributeCount = new int[nodes];
+        this.textStart = new int[nodes];
+        this.textLength = new int[nodes];
+        int attributes = 512;
+        this.attributeName = new int[attributes];
+        this.attributeNamespace = new int[attributes];
+        this.attributeValueStart = new int[attributes];
+        this.attributeValueLength = new int[attributes];
+        this.chars = new char[4096];
+        this.clear();
+    }
+
+    //========================================================================
+    // BUILDING
+    //========================================================================
+
+    /**
+     * empties the subtree, keeps the allocated arrays for the next one.
+     */
+    public void clear() {
+        this.nodeCount = 0;
+        this.attributeTotal = 0;
+        this.charCount = 0;
+        this.textOpen = false;
+        int document = this.addNode(DOCUMENT, -1);
+        this.end[document] = 1;
+        this.current = document;
+    }
+
+    /**
+     * opens a new element as last child of the currently open element.
+     * @param localName
+     * @param namespaceURI "" or null for no namespace
+     */
+    public void startElement(String localName, String namespaceURI) {
+        int node = this.addNode(ELEMENT, this.current);
+        this.name[node] = this.strings.id(localName);
+        this.namespace[node] = this.strings.id(namespaceURI == null ? "" : namespaceURI);
+        this.attributeStart[node] = this.attributeTotal;
+        this.attributeCount[node] = 0;
+        this.current = node;
+    }
+
+    /**
+     * adds an attribute to the element opened last, must be called before any content is added.
+     * @param localName
+     * @param namespaceURI "" or null for no namespace
+     * @param value
+     */
+    public void addAttribute(String localName, String namespaceURI, String value) {
+        if (this.attributeTotal == this.attributeName.length) {
+            int capacity = this.attributeTotal * 2;
+            this.attributeName = grow(this.attributeName, capacity);
+            this.attributeNamespace = grow(this.attributeNamespace, capacity);
+            this.attributeValueStart = grow(this.attributeValueStart, capacity);
+            this.attributeValueLength = grow(this.attributeValueLength, capacity);
+        }
+        int a = this.attributeTotal++;
+        this.attributeName[a] = this.strings.id(localName);
+        this.attributeNamespace[a] = this.strings.id(namespaceURI == null ? "" : namespaceURI);
+        this.attributeValueStart[a] = this.appendChars(value, 0, value.length());
+        this.attributeValueLength[a] = value.length();
+        this.attributeCount[this.current]++;
+    }
+
+    /**
+     * adds text to the currently open element, merged with directly preceding text.
+     */
+    public void characters(String text) {
+        this.characters(text, 0, text.length());
+    }
+
+    public void characters(CharSequence text, int offset, int length) {
+        if (!this.textOpen) {
+            int node = this.addNode(TEXT, this.current);
+            this.textStart[node] = this.charCount;
+            this.textLength[node] = 0;
+            this.textOpen = true;
+        }
+        this.appendChars(text, offset, length);
+        this.textLength[this.nodeCount - 1] += length;
+    }
+
+    public void characters(char[] text, int offset, int length) {
+        this.characters(java.nio.CharBuffer.wrap(text), offset, length);
+    }
+
+    /**
+     * separates following text from preceding text, e.g. for comments and processing instructions,
+     * which are not stored but end a text node.
+     */
+    public void breakText() {
+        this.textOpen = false;
+    }
+
+    /**
+     * closes the currently open element.
+     */
+    public void endElement() {
+        this.textOpen = false;
+        this.end[this.current] = this.nodeCount;
+        this.current = this.parent[this.current];
+        this.end[0] = this.nodeCount;
+    }
+
+    /**
+     * removes a closed element with its subtree, which must be the last one added, e.g. when a stream has moved
+     * past it and it isn't needed anymore.
+     * @param node
+     */
+    public void removeLast(int node) {
+        if (node == 0 || this.kind[node] != ELEMENT || this.end[node] != this.nodeCount) {
+            throw new IllegalArgumentException("Node "+node+" is no closed element at the end of the subtree.");
+        }
+        // attribute values and text are appended in document order, the first ones of the subtree mark its start
+        for (int n = node; n < this.nodeCount; n++) {
+            if (this.kind[n] == TEXT) {
+                this.charCount = this.textStart[n];
+                break;
+            }
+            if (this.kind[n] == ELEMENT && this.attributeCount[n] > 0) {
+                this.charCount = this.attributeValueStart[this.attributeStart[n]];
+                break;
+            }
+        }
+        this.attributeTotal = this.attributeStart[node];
+        this.nodeCount = node;
+        this.textOpen = false;
+        this.end[0] = this.nodeCount;
+    }
+
+    private int addNode(int nodeKind, int parentNode) {
+        if (this.nodeCount == this.kind.length) {
+            int capacity = this.nodeCount * 2;
+            this.kind = grow(this.kind, capacity);
+            this.parent = grow(this.parent, capacity);
+            this.end = grow(this.end, capacity);
+            this.name = grow(this.name, capacity);
+            this.namespace = grow(this.namespace, capacity);
+            this.attributeStart = grow(this.attributeStart, capacity);
+            this.attributeCount = grow(this.attributeCount, capacity);
+            this.textStart = grow(this.textStart, capacity);
+            this.textLength = grow(this.textLength, capacity);
+        }
+        int node = this.nodeCount++;
+        this.kind[node] = nodeKind;
+        this.parent[node] = parentNode;
+        this.end[node] = node + 1;
+        this.textOpen = false;
+        return node;
+    }
+
+    private int appendChars(CharSequence text, int offset, int length) {
+        if (this.charCount + length > this.chars.length) {
+            char[] grown = new char[Math.max(this.chars.length * 2, this.charCount + length)];
+            System.arraycopy(this.chars, 0, grown, 0, this.charCount);
+            this.chars = grown;
+        }
+        int start = this.charCount;
+        for (int i = 0; i < length; i++) {
+            this.chars[this.charCount++] = text.charAt(offset + i);
+        }
+        return start;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    //========================================================================
+    // NAVIGATION
+    //========================================================================
+
+    /**
+     * @return number of nodes, including the document node
+     */
+    public int size() {
+        return this.nodeCount;
+    }
+
+    public int getKind(int node) {
+        return this.kind[node];
+    }
+
+    public boolean isElement(int node) {
+        return this.kind[node] == ELEMENT;
+    }
+
+    public boolean isText(int node) {
+        return this.kind[node] == TEXT;
+    }
+
+    /**
+     * @return the parent node or -1 for the document node
+     */
+    public int getParent(int node) {
+        return this.parent[node];
+    }
+
+    /**
+     * @return the id after the last descendant of the node
+     */
+    public int getEnd(int node) {
+        return this.end[node];
+    }
+
+    /**
+     * @return the first child or -1 if the node has no children
+     */
+    public int getFirstChild(int node) {
+        return node + 1 < this.end[node] ? node + 1 : -1;
+    }
+
+    /**
+     * @return the next sibling or -1 if the node is the last child
+     */
+    public int getNextSibling(int node) {
+        int parentNode = this.parent[node];
+        if (parentNode < 0) {
+            return -1;
+        }
+        return this.end[node] < this.end[parentNode] ? this.end[node] : -1;
+    }
+
+    public String getLocalName(int node) {
+        return this.kind[node] == ELEMENT ? this.strings.get(this.name[node]) : null;
+    }
+
+    public String getNamespaceURI(int node) {
+        return this.kind[node] == ELEMENT ? this.strings.get(this.namespace[node]) : null;
+    }
+
+    /**
+     * checks the name of an element without creating any strings.
+     * @param node
+     * @param nameId string id of the local name
+     * @param namespaceId string id of the namespace uri
+     * @return
+     */
+    boolean hasName(int node, int nameId, int namespaceId) {
+        return this.kind[node] == ELEMENT && this.name[node] == nameId && this.namespace[node] == namespaceId;
+    }
+
+    /**
+     * @return the index of the attribute in the attribute arrays or -1 if the element doesn't have it
+     */
+    int findAttribute(int node, int nameId, int namespaceId) {
+        if (this.kind[node] != ELEMENT) {
+            return -1;
+        }
+        int start = this.attributeStart[node];
+        for (int a = start; a < start + this.attributeCount[node]; a++) {
+            if (this.attributeName[a] == nameId && this.attributeNamespace[a] == namespaceId) {
+                return a;
+            }
+        }
+        return -1;
+    }
+
+    String getAttributeValue(int attribute) {
+        return new String(this.chars, this.attributeValueStart[attribute], this.attributeValueLength[attribute]);
+    }
+
+    /**
+     * @param dictionary of the column the value is read for, or null
+     */
+    String getAttributeValue(int attribute, ValueDictionary dictionary) {
+        if (dictionary == null) {
+            return this.getAttributeValue(attribute);
+        }
+        return dictionary.intern(this.chars, this.attributeValueStart[attribute], this.attributeValueLength[attribute]);
+    }
+
+    /**
+     * compares the value of an attribute without creating a string.
+     */
+    boolean attributeValueEquals(int attribute, String value) {
+        int length = this.attributeValueLength[attribute];
+        if (length != value.length()) {
+            return false;
+        }
+        int start = this.attributeValueStart[attribute];
+        for (int i = 0; i < length; i++) {
+            if (this.chars[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param node an element
+     * @param localName local name of an attribute without namespace
+     * @return the value or null if the element doesn't have the attribute
+     */
+    public String getAttribute(int node, String localName) {
+        int nameId = this.strings.lookup(localName);
+        int a = nameId < 0 ? -1 : this.findAttribute(node, nameId, this.strings.lookup(""));
+        return a < 0 ? null : this.getAttributeValue(a);
+    }
+
+    public int getAttributeCount(int node) {
+        return this.kind[node] == ELEMENT ? this.attributeCount[node] : 0;
+    }
+
+    public String getAttributeLocalName(int node, int i) {
+        return this.strings.get(this.attributeName[this.attributeStart[node] + i]);
+    }
+
+    public String getAttributeNamespaceURI(int node, int i) {
+        return this.strings.get(this.attributeNamespace[this.attributeStart[node] + i]);
+    }
+
+    public String getAttributeValue(int node, int i) {
+        return this.getAttributeValue(this.attributeStart[node] + i);
+    }
+
+    /**
+     * @return the XPath string-value of a node: the text of a text node or all descendant text of an element.
+     */
+    public String getStringValue(int node) {
+        return this.getStringValue(node, null);
+    }
+
+    /**
+     * Same as {@link #getStringValue(int)}, a value of a single text node is taken from the dictionary.
+     * @param node
+     * @param dictionary of the column the value is read for, or null
+     * @return
+     */
+    String getStringValue(int node, ValueDictionary dictionary) {
+        if (this.kind[node] == TEXT) {
+            return this.getText(node, dictionary);
+        }
+        int first = -1;
+        int last = -1;
+        int texts = 0;
+        for (int n = node + 1; n < this.end[node]; n++) {
+            if (this.kind[n] == TEXT) {
+                if (first < 0) {
+                    first = n;
+                }
+                last = n;
+                texts++;
+            }
+        }
+        if (texts == 0) {
+            return "";
+        }
+        if (texts == 1) {
+            return this.getText(first, dictionary);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int n = first; n <= last; n++) {
+            if (this.kind[n] == TEXT) {
+                sb.append(this.chars, this.textStart[n], this.textLength[n]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private String getText(int node, ValueDictionary dictionary) {
+        if (dictionary == null) {
+            return new String(this.chars, this.textStart[node], this.textLength[node]);
+        }
+        return dictionary.intern(this.chars, this.textStart[node], this.textLength[node]);
+    }
+
+    /**
+     * adds the content of the subtree to a hash: the kind and parent of every node, the names and attributes of
+     * elements and the text. Names are hashed by their strings, so the hash doesn't depend on the string table.
+     */
+    void hashContent(SentenceCache.Hasher hasher) {
+        hasher.add(this.nodeCount);
+        for (int n = 0; n < this.nodeCount; n++) {
+            hasher.add(this.kind[n]);
+            hasher.add(this.parent[n]);
+            if (this.kind[n] == ELEMENT) {
+                hasher.add(this.strings.get(this.name[n]));
+                hasher.add(this.strings.get(this.namespace[n]));
+                int start = this.attributeStart[n];
+                hasher.add(this.attributeCount[n]);
+                for (int a = start; a < start + this.attributeCount[n]; a++) {
+                    hasher.add(this.strings.get(this.attributeName[a]));
+                    hasher.add(this.strings.get(this.attributeNamespace[a]));
+                    hasher.add(this.chars, this.attributeValueStart[a], this.attributeValueLength[a]);
+                }
+            } else if (this.kind[n] == TEXT) {
+                hasher.add(this.chars, this.textStart[n], this.textLength[n]);
+            }
+        }
+    }
+
+    public StringTable getStringTable() {
+        return this.strings;
+    }
+
+    /**
+     * Maps strings to consecutive int ids and back. Not thread safe.
+     */
+    public static class StringTable {
+        private final HashMap<String, Integer> ids = new HashMap<>();
+        private final ArrayList<String> strings = new ArrayList<>();
+
+        /**
+         * @return the id of the string, which is added if necessary
+         */
+        public int id(String s) {
+            Integer id = this.ids.get(s);
+            if (id == null) {
+                id = this.strings.size();
+                this.strings.add(s);
+                this.ids.put(s, id);
+            }
+            return id;
+        }
+
+        /**
+         * @return the id of the string or -1 if it isn't in the table
+         */
+        public int lookup(String s) {
+            Integer id = this.ids.get(s);
+            return id == null ? -1 : id;
+        }
+
+        public String get(int id) {
+            return this.strings.get(id);
+        }
+
+        public int size() {
+            return this.strings.size();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import org.w3c.dom.Document;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * ConversionPipeline converts the sentences of a {@link SubtreeGenerator} in three overlapping stages: one reader
+ * thread parses the sentences, a pool of workers transforms them, each with its own compiled copy of the template,
+ * and the calling thread writes the results. Every sentence gets a sequence number when it is read, the writer
+ * reorders the results by it, so the output is the same as the one of a sequential conversion.
+ * <p>
+ * At most capacity sentences are in the pipeline at any time, read but not yet written. When the writer falls
+ * behind, the reader waits, so memory stays bounded no matter how large the file is. Compact subtrees are
+ * recycled once they are transformed. Each stage counts how often it had to wait for another one, see
+ * {@link #getReaderStalls()}, {@link #getWorkerStalls()} and {@link #getWriterStalls()}.
+ * Unlike {@link ShardedConverter} no index is needed, the file is read sequentially once.
+ */
+class ConversionPipeline {
+
+    private final static Logger LOGGER = Logger.getLogger(ConversionPipeline.class.getName());
+    final static int DEFAULT_CAPACITY = 256;
+
+    private final Template template;
+    private final int threads;
+    private final int capacity;
+    private final AtomicLong readerStalls = new AtomicLong();
+    private final AtomicLong workerStalls = new AtomicLong();
+    private final AtomicLong writerStalls = new AtomicLong();
+
+    /**
+     * a sentence on its way through the pipeline.
+     */
+    private static class Item {
+        private final long sequence; // -1 marks the end of the input
+        private Object sentence; // CompactSubtree or Document
+        private String conll;
+
+        private Item(long sequence, Object sentence) {
+            this.sequence = sequence;
+            this.sentence = sentence;
+        }
+    }
+
+    /**
+     * @param template the template to convert with, is copied for each worker
+     * @param threads number of worker threads
+     * @param capacity maximum number of sentences in the pipeline
+     */
+    ConversionPipeline(Template template, int threads, int capacity) {
+        this.template = template;
+        this.threads = Math.max(1, threads);
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Converts all remaining sentences of the generator and writes them to the stream.
+     * @param sg a streaming subtree generator, which is only accessed by the reader thread
+     * @param outStream where to write the CoNLL, not flushed
+     * @param delimiter written after each sentence
+     * @return number of converted sentences
+     * @throws IOException if reading fails or the pipeline is interrupted
+     */
+    long convert(SubtreeGenerator sg, CoNLLSink outStream, String delimiter) throws IOException {
+        boolean compact = new XML2CoNLL(this.template).supportsCompactSubtrees();
+        LOGGER.info("Converting in a pipeline with "+this.threads+" workers, "+this.capacity+" sentences in flight, "
+                +(compact ? "compact" : "DOM")+" subtrees.");
+        Semaphore inFlight = new Semaphore(this.capacity);
+        BlockingQueue<Item> input = new ArrayBlockingQueue<>(this.capacity + this.threads);
+        BlockingQueue<Item> output = new ArrayBlockingQueue<>(this.capacity + this.threads);
+        BlockingQueue<CompactSubtree> pool = new ArrayBlockingQueue<>(this.capacity);
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads + 1);
+        long written = 0;
+        try {
+            Future<?> reader = executor.submit(() -> {
+                this.read(sg, compact, inFlight, input, pool);
+                return null;
+            });
+            for (int i = 0; i < this.threads; i++) {
+                XML2CoNLL x2c = new XML2CoNLL(new Template(this.template));
+                executor.submit(() -> this.transform(x2c, delimiter, input, output, pool));
+            }
+            HashMap<Long, Item> pending = new HashMap<>();
+            int finishedWorkers = 0;
+            while (finishedWorkers < this.threads) {
+                Item item = output.poll();
+                if (item == null) {
+                    this.writerStalls.incrementAndGet();
+                    item = output.take();
+                }
+                if (item.sequence < 0) {
+                    finishedWorkers++;
+                    continue;
+                }
+                pending.put(item.sequence, item);
+                for (Item next = pending.remove(written); next != null; next = pending.remove(written)) {
+                    outStream.append(next.conll);
+                    written++;
+                    inFlight.release();
+                    if (written % 100 == 0) {
+                        LOGGER.info(written+" subtrees processed.");
+                    }
+                }
+            }
+            if (!pending.isEmpty()) {
+                LOGGER.severe(pending.size()+" converted sentences are missing their predecessors and were not written.");
+            }
+            waitFor(reader);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.info("Pipeline converted "+written+" sentences. Stalls: reader "+this.readerStalls.get()
+                +" (pipeline full), workers "+this.workerStalls.get()+" (input empty), writer "
+                +this.writerStalls.get()+" (waiting for the next sentence).");
+        return written;
+    }
+
+    /**
+     * reads sentences until the end of the file, then sends one end marker per worker.
+     */
+    private void read(SubtreeGenerator sg, boolean compact, Semaphore inFlight, BlockingQueue<Item> input,
+                      BlockingQueue<CompactSubtree> pool) throws InterruptedException {
+        long sequence = 0;
+        try {
+            while (true) {
+                if (!inFlight.tryAcquire()) {
+                    this.readerStalls.incrementAndGet();
+                    inFlight.acquire();
+                }
+                Object sentence;
+                if (compact) {
+                    CompactSubtree subtree = pool.poll();
+                    if (subtree == null) {
+                        subtree = new CompactSubtree();
+                    }
+                    if (!sg.nextCompact(subtree)) {
+                        break;
+                    }
+                    sentence = subtree;
+                } else {
+                    if (!sg.hasNext()) {
+                        break;
+                    }
+                    sentence = sg.next();
+                }
+                input.put(new Item(sequence++, sentence));
+            }
+        } finally {
+            for (int i = 0; i < this.threads; i++) {
+                input.put(new Item(-1, null));
+            }
+        }
+    }
+
+    /**
+     * transforms sentences until the end marker arrives and passes it on to the writer.
+     */
+    private void transform(XML2CoNLL x2c, String delimiter, BlockingQueue<Item> input, BlockingQueue<Item> output,
+                           BlockingQueue<CompactSubtree> pool) {
+        try {
+            while (true) {
+                Item item = input.poll();
+                if (item == null) {
+                    this.workerStalls.incrementAndGet();
+                    item = input.take();
+                }
+                if (item.sequence < 0) {
+                    output.put(item);
+                    return;
+                }
+                try {
+                    if (item.sentence instanceof CompactSubtree) {
+                        item.conll = x2c.transformXMLSentenceToCoNLLSentence((CompactSubtree) item.sentence, delimiter);
+                        pool.offer((CompactSubtree) item.sentence);
+                    } else {
+                        item.conll = x2c.transformXMLSentenceToCoNLLSentence((Document) item.sentence, delimiter);
+                    }
+                } catch (RuntimeException e) {
+                    // an empty result keeps the writer going, the sentence is lost
+                    LOGGER.severe("Unable to convert sentence #"+item.sequence+": "+e.getMessage());
+                    item.conll = "";
+                }
+                item.sentence = null;
+                output.put(item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitFor(Future<?> reader) throws IOException, InterruptedException {
+        try {
+            reader.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read the input: "+e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * @return how often the reader had to wait, because capacity sentences were in the pipeline
+     */
+    long getReaderStalls() {
+        return this.readerStalls.get();
+    }
+
+    /**
+     * @return how often a worker had to wait for the reader
+     */
+    long getWorkerStalls() {
+        return this.workerStalls.get();
+    }
+
+    /**
+     * @return how often the writer had to wait for the next result
+     */
+    long getWriterStalls() {
+        return this.writerStalls.get();
+    }
+}
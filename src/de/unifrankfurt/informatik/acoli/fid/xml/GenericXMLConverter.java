@@ -41,6 +41,10 @@ public class GenericXMLConverter {
         int length = XMLSampler.getNumberOfStartElementsInEntireFile(sourceFile);
         getPseudoCoNLLOfSizeK(sourceFile, outStream, length);
     }
+    public void getFullPseudoCoNLL(File sourceFile, CoNLLSink outStream) throws XMLStreamException, IOException {
+        int length = XMLSampler.getNumberOfStartElementsInEntireFile(sourceFile);
+        getPseudoCoNLLOfSizeK(sourceFile, outStream, length);
+    }
     public void getFullPseudoCoNLL(File sourceFile, File targetFile) throws FileNotFoundException, XMLStreamException {
         LOGGER.info("xml ("+sourceFile.getAbsolutePath()+") -> pseudo-conll ("+targetFile.getAbsolutePath()+")");
         PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(targetFile)));
@@ -59,6 +63,11 @@ public class GenericXMLConverter {
         HashMap<String, ArrayList<String>> pseudoCoNLL = xs.samplePseudoCoNLL(sourceFile, k, this.retrieveXPaths);// TODO: MAKE CONSISTENT
         writePseudoCoNLLToStream(pseudoCoNLL, outStream);
     }
+    public void getPseudoCoNLLOfSizeK(File sourceFile, CoNLLSink outStream, int k) throws XMLStreamException, IOException {
+        XMLSampler xs = new XMLSampler();
+        HashMap<String, ArrayList<String>> pseudoCoNLL = xs.samplePseudoCoNLL(sourceFile, k, this.retrieveXPaths);// TODO: MAKE CONSISTENT
+        writePseudoCoNLLToStream(pseudoCoNLL, outStream);
+    }
     public void getPseudoCoNLLOfSizeK(File sourceFile, File targetFile, int k) throws XMLStreamException, FileNotFoundException {
         PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(targetFile)));
         getPseudoCoNLLOfSizeK(sourceFile, out, k);
@@ -143,16 +152,26 @@ public class GenericXMLConverter {
     }
 
     boolean writePseudoCoNLLToStream(HashMap<String, ArrayList<String>> pseudoCoNLL, PrintStream outStream) {
+        try {
+            return writePseudoCoNLLToStream(pseudoCoNLL, Utils.convertPrintStreamToCoNLLSink(outStream));
+        } catch (IOException e) {
+            LOGGER.severe("Unable to write pseudo CoNLL. Stacktrace:");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    boolean writePseudoCoNLLToStream(HashMap<String, ArrayList<String>> pseudoCoNLL, CoNLLSink outStream) throws IOException {
         if (this.simplifyCommentStrings) {
-            outStream.print(createSimplifiedCommentString(new ArrayList<>(pseudoCoNLL.keySet())));
+            outStream.append(createSimplifiedCommentString(new ArrayList<>(pseudoCoNLL.keySet())));
         } else {
-            outStream.print(String.join("\t",new ArrayList<>(pseudoCoNLL.keySet())));
+            outStream.append(String.join("\t",new ArrayList<>(pseudoCoNLL.keySet())));
         }
         if (pseudoCoNLL.size() == 0) {
             LOGGER.warning("Pseudo CoNLL to write is empty.");
+            outStream.flush();
             return false;
         }
-        StringBuilder sb = new StringBuilder();
         int maxColumnLength = 0;
         int minColumnLength = Integer.MAX_VALUE;
         // Figure out the maximum number of lines for the conll sample,
@@ -163,20 +182,17 @@ public class GenericXMLConverter {
         }
         LOGGER.info("Writing "+maxColumnLength+" lines of CoNLL");
         for (int i = 0; i < maxColumnLength; i++) {
-            sb.append(i);
-            sb.append("\t");
+            outStream.append(i);
+            outStream.append('\t');
             for (String j : pseudoCoNLL.keySet()) {
                 if (i < pseudoCoNLL.get(j).size()) {
-                    sb.append(pseudoCoNLL.get(j).get(i));
+                    outStream.append(pseudoCoNLL.get(j).get(i));
                 } else {
-                    sb.append("_");
+                    outStream.append('_');
                 }
-                sb.append("\t");
+                outStream.append('\t');
             }
-            sb.append("\n");
-            outStream.print(sb.toString());
-            sb = new StringBuilder();
-
+            outStream.append('\n');
         }
         outStream.flush();
 //        outStream.close();
@@ -244,25 +260,29 @@ public class GenericXMLConverter {
             LOGGER.severe("File Not Found: " + filePath);
             System.exit(1);
         }
-        PrintStream outStream = System.out;
+        CoNLLSink outStream = Utils.convertPrintStreamToCoNLLSink(System.out);
         if (outPath != null) {
             try {
-                outStream = Utils.convertFileToPrintStream(new File(outPath));
-            } catch (FileNotFoundException e) {
-                LOGGER.warning("Couldn't find file "+outPath+", defaulting to System.out");
+                outStream = Utils.convertFileToCoNLLSink(new File(outPath));
+            } catch (IOException e) {
+                LOGGER.warning("Couldn't open file "+outPath+", defaulting to System.out");
             }
         }
-        try {
+        try (CoNLLSink out = outStream) {
             GenericXMLConverter gxc = new GenericXMLConverter(true);
             if (n <= 0) {
-                gxc.getFullPseudoCoNLL(xmlFile, outStream);
+                gxc.getFullPseudoCoNLL(xmlFile, out);
             } else {
-                gxc.getPseudoCoNLLOfSizeK(xmlFile, outStream, n);
+                gxc.getPseudoCoNLLOfSizeK(xmlFile, out, n);
             }
         } catch (XMLStreamException e ) {
             LOGGER.severe("Couldn't parse XML file at"+filePath);
             e.printStackTrace();
             System.exit(1);
+        } catch (IOException e) {
+            LOGGER.severe("Couldn't write the pseudo CoNLL of "+filePath);
+            e.printStackTrace();
+            System.exit(1);
         }
     }
 }
\ No newline at end of file
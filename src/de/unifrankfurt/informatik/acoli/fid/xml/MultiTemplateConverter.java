@@ -0,0 +1,86 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * MultiTemplateConverter converts one file with several templates at once, e.g. a token and a chunk layer, each into
+ * its own output. Templates with the same sentence path share one pass over the file: every sentence is parsed once
+ * and converted by all of them. Sentences are read into a {@link CompactSubtree}, templates that need full XPath
+ * support share a second pass that reads DOM subtrees. Templates with different sentence paths need passes of
+ * their own.
+ */
+class MultiTemplateConverter {
+
+    private final static Logger LOGGER = Logger.getLogger(MultiTemplateConverter.class.getName());
+
+    private final List<Template> templates;
+
+    /**
+     * @param templates the templates to convert with
+     */
+    MultiTemplateConverter(List<Template> templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * Converts all sentences of the file with every template.
+     * @param sourceFile
+     * @param outStreams one per template, in the same order, not flushed
+     * @param delimiter written after each sentence
+     * @throws IOException if the file can't be found or the CoNLL can't be written
+     */
+    void convert(File sourceFile, List<CoNLLSink> outStreams, String delimiter) throws IOException {
+        // templates that need a DOM get their own pass, parsing all sentences into a DOM would slow down the others
+        LinkedHashMap<String, ArrayList<Integer>> compactPasses = new LinkedHashMap<>();
+        LinkedHashMap<String, ArrayList<Integer>> domPasses = new LinkedHashMap<>();
+        ArrayList<XML2CoNLL> converters = new ArrayList<>();
+        for (int t = 0; t < this.templates.size(); t++) {
+            XML2CoNLL x2c = new XML2CoNLL(this.templates.get(t));
+            converters.add(x2c);
+            (x2c.supportsCompactSubtrees() ? compactPasses : domPasses)
+                    .computeIfAbsent(this.templates.get(t).getSentencePath(), path -> new ArrayList<>()).add(t);
+        }
+        for (boolean compact : new boolean[]{true, false}) {
+            for (Map.Entry<String, ArrayList<Integer>> pass : (compact ? compactPasses : domPasses).entrySet()) {
+                XML2CoNLL[] passConverters = new XML2CoNLL[pass.getValue().size()];
+                CoNLLSink[] sinks = new CoNLLSink[passConverters.length];
+                for (int i = 0; i < passConverters.length; i++) {
+                    passConverters[i] = converters.get(pass.getValue().get(i));
+                    sinks[i] = outStreams.get(pass.getValue().get(i));
+                }
+                LOGGER.info("Converting "+pass.getKey()+" with "+passConverters.length+" templates in one pass with "
+                        +(compact ? "compact subtrees." : "DOM subtrees."));
+                this.convertPass(sourceFile, pass.getKey(), passConverters, sinks, compact, delimiter);
+            }
+        }
+    }
+
+    private void convertPass(File sourceFile, String sentencePath, XML2CoNLL[] converters, CoNLLSink[] sinks,
+                             boolean compact, String delimiter) throws IOException {
+        SubtreeGenerator sg = new SubtreeGenerator(sentencePath, sourceFile, true);
+        CompactSubtree sentence = new CompactSubtree();
+        int progress = 0;
+        while (compact ? sg.nextCompact(sentence) : sg.hasNext()) {
+            Document document = compact ? null : sg.next();
+            for (int i = 0; i < converters.length; i++) {
+                if (compact) {
+                    converters[i].appendCoNLLSentence(sentence, sinks[i], delimiter);
+                } else {
+                    converters[i].appendCoNLLSentence(document, sinks[i], delimiter);
+                }
+            }
+            progress++;
+            if (progress % 100 == 0) {
+                LOGGER.info(progress+" subtrees processed.");
+            }
+        }
+    }
+}
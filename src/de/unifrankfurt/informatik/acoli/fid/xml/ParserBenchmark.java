@@ -0,0 +1,164 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Compares the throughput of the StAX event API with the {@link XMLCursor} on the same work: visiting every
+ * element name, attribute value and text and counting the elements with a given name.
+ * The input is scaled up by repeating the content of its root element, so small files like example/example.xml
+ * give meaningful numbers.
+ * <p>
+ * Usage: ParserBenchmark [FILE] [COPIES] [ELEMENT] [RUNS]
+ */
+public class ParserBenchmark {
+
+    private final static String SYNOPSIS = "ParserBenchmark [FILE] [COPIES] [ELEMENT] [RUNS]\n"
+            + "\tFILE\t xml file to scale up, defaults to example/example.xml\n"
+            + "\tCOPIES\t how often the content of the root element is repeated, defaults to 200000\n"
+            + "\tELEMENT\t name of the elements to count, defaults to s\n"
+            + "\tRUNS\t measured runs per parser after one warm-up run, defaults to 5\n";
+
+    public static void main(String[] args) throws IOException, XMLStreamException {
+        if (args.length > 0 && (args[0].equals("-h") || args[0].equals("--help"))) {
+            System.err.println(SYNOPSIS);
+            return;
+        }
+        File source = new File(args.length > 0 ? args[0] : "example/example.xml");
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        String element = args.length > 2 ? args[2] : "s";
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        File scaled = scale(source, copies);
+        try {
+            double megabytes = scaled.length() / (1024.0 * 1024.0);
+            System.err.printf("Scaled %s %d times to %.1f MB%n", source.getPath(), copies, megabytes);
+            long[] eventTimes = new long[runs];
+            long[] cursorTimes = new long[runs];
+            long events = readWithEvents(scaled, element);
+            long cursor = readWithCursor(scaled, element);
+            if (events != cursor) {
+                System.err.println("WARNING: event reader counted "+events+" elements, cursor "+cursor);
+            }
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                readWithEvents(scaled, element);
+                eventTimes[i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                readWithCursor(scaled, element);
+                cursorTimes[i] = System.nanoTime() - start;
+            }
+            report("XMLEventReader", megabytes, eventTimes);
+            report("XMLCursor", megabytes, cursorTimes);
+            System.err.printf("Speedup (median): %.2fx%n", (double) median(eventTimes) / median(cursorTimes));
+        } finally {
+            Files.deleteIfExists(scaled.toPath());
+        }
+    }
+
+    /**
+     * reads the file with the event API.
+     * @return number of elements with the given local name
+     */
+    static long readWithEvents(File file, String element) throws IOException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        long count = 0;
+        long checksum = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            XMLEventReader reader = factory.createXMLEventReader(in);
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    if (start.getName().getLocalPart().equals(element)) {
+                        count++;
+                    }
+                    Iterator<?> attributes = start.getAttributes();
+                    while (attributes.hasNext()) {
+                        checksum += ((Attribute) attributes.next()).getValue().length();
+                    }
+                } else if (event.isCharacters()) {
+                    checksum += event.asCharacters().getData().length();
+                }
+            }
+            reader.close();
+        }
+        return checksum >= 0 ? count : -1;
+    }
+
+    /**
+     * reads the file with the cursor.
+     * @return number of elements with the given local name
+     */
+    static long readWithCursor(File file, String element) throws IOException, XMLStreamException {
+        XMLCursor.Name name = new XMLCursor.Name(element, "");
+        long count = 0;
+        long checksum = 0;
+        try (XMLCursor cursor = XMLCursor.open(file)) {
+            while (cursor.hasNext()) {
+                int type = cursor.next();
+                if (type == XMLStreamConstants.START_ELEMENT) {
+                    if (cursor.hasName(name)) {
+                        count++;
+                    }
+                    for (int i = 0; i < cursor.getAttributeCount(); i++) {
+                        checksum += cursor.getAttributeValue(i).length();
+                    }
+                } else if (type == XMLStreamConstants.CHARACTERS || type == XMLStreamConstants.CDATA
+                        || type == XMLStreamConstants.SPACE) {
+                    checksum += cursor.getTextLength();
+                }
+            }
+        }
+        return checksum >= 0 ? count : -1;
+    }
+
+    /**
+     * writes a temporary copy of the file with the content of its root element repeated.
+     */
+    static File scale(File source, int copies) throws IOException {
+        String xml = new String(Files.readAllBytes(source.toPath()), StandardCharsets.UTF_8);
+        int root = xml.indexOf('<');
+        while (root >= 0 && (xml.startsWith("<?", root) || xml.startsWith("<!", root))) {
+            root = xml.indexOf('<', root + 1);
+        }
+        int contentBegin = root < 0 ? -1 : xml.indexOf('>', root) + 1;
+        int contentEnd = xml.lastIndexOf("</");
+        if (contentBegin <= 0 || contentEnd < contentBegin) {
+            throw new IOException("Can't find the root element of "+source.getPath());
+        }
+        String content = xml.substring(contentBegin, contentEnd);
+        File scaled = File.createTempFile("benchmark", ".xml");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(scaled), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write(xml, 0, contentBegin);
+            for (int i = 0; i < copies; i++) {
+                out.write(content);
+            }
+            out.write(xml, contentEnd, xml.length() - contentEnd);
+        }
+        return scaled;
+    }
+
+    private static void report(String parser, double megabytes, long[] times) {
+        long median = median(times);
+        System.err.printf("%-15s median %6d ms, %6.1f MB/s (runs: %s)%n", parser, median / 1000000,
+                megabytes / (median / 1e9), Arrays.toString(Arrays.stream(times).map(t -> t / 1000000).toArray()));
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
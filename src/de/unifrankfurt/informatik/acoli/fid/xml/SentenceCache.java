@@ -0,0 +1,183 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SentenceCache holds the CoNLL of recently converted sentences, so that exact repeats of a sentence, like
+ * boilerplate or duplicate segments in crawled corpora, are written without evaluating the template again.
+ * Sentences are identified by a 128 bit hash of their content (names, attributes, text and structure) together with
+ * the identity of the template that converted them. The cache is bounded, the least recently used sentence is
+ * evicted when it is full. Hits and misses are counted for {@link #toString()}.
+ * <p>
+ * A cache may be shared by several converters and threads.
+ */
+public class SentenceCache {
+
+    public final static int DEFAULT_CAPACITY = 10000;
+
+    private final LinkedHashMap<Key, String> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity maximum number of sentences held
+     */
+    public SentenceCache(int capacity) {
+        int maxEntries = Math.max(1, capacity);
+        this.entries = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    public SentenceCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param template the template the sentence is converted with
+     * @param hasher holding the hash of the sentence
+     * @return the CoNLL of the sentence, without the final delimiter, or null if it isn't cached
+     */
+    synchronized String get(Template template, Hasher hasher) {
+        String conll = this.entries.get(new Key(template, hasher));
+        if (conll == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+        return conll;
+    }
+
+    synchronized void put(Template template, Hasher hasher, String conll) {
+        this.entries.put(new Key(template, hasher), conll);
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the share of sentences that were found in the cache, 0 if none were looked up
+     */
+    public synchronized double getHitRate() {
+        long lookups = this.hits + this.misses;
+        return lookups == 0 ? 0 : (double) this.hits / lookups;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Sentence cache: "+this.hits+" hits, "+this.misses+" misses ("
+                +String.format("%.1f", this.getHitRate()*100)+"%), "+this.entries.size()+" sentences cached";
+    }
+
+    /**
+     * Computes two independent 64 bit hashes over a sequence of values. Reused for all sentences of a converter.
+     */
+    static class Hasher {
+        private long h1;
+        private long h2;
+
+        void reset() {
+            this.h1 = 0x9E3779B97F4A7C15L;
+            this.h2 = 0xC2B2AE3D27D4EB4FL;
+        }
+
+        void add(long value) {
+            this.h1 = (this.h1 ^ value) * 0x100000001B3L;
+            this.h2 = Long.rotateLeft(this.h2 + value * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+        }
+
+        void add(String value) {
+            if (value == null) {
+                this.add(-1);
+                return;
+            }
+            this.add(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                this.add(value.charAt(i));
+            }
+        }
+
+        void add(char[] chars, int start, int length) {
+            this.add(length);
+            for (int i = start; i < start + length; i++) {
+                this.add(chars[i]);
+            }
+        }
+
+        /**
+         * hashes a DOM subtree: the kinds, names and attributes of all elements and all text, in document order.
+         */
+        void add(Node node) {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    this.add(Node.ELEMENT_NODE);
+                    this.add(node.getNodeName());
+                    this.add(node.getNamespaceURI());
+                    NamedNodeMap attributes = node.getAttributes();
+                    this.add(attributes.getLength());
+                    for (int a = 0; a < attributes.getLength(); a++) {
+                        this.add(attributes.item(a).getNodeName());
+                        this.add(attributes.item(a).getNamespaceURI());
+                        this.add(attributes.item(a).getNodeValue());
+                    }
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                case Node.COMMENT_NODE:
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    this.add(node.getNodeType());
+                    this.add(node.getNodeName());
+                    this.add(node.getNodeValue());
+                    return;
+                default:
+                    this.add(node.getNodeType());
+            }
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                this.add(child);
+            }
+            this.add(-2); // end of the children
+        }
+    }
+
+    private static class Key {
+        private final Template template;
+        private final long h1;
+        private final long h2;
+
+        Key(Template template, Hasher hasher) {
+            this.template = template;
+            this.h1 = hasher.h1;
+            this.h2 = hasher.h2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.template == other.template && this.h1 == other.h1 && this.h2 == other.h2;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(this.h1) * 31 + System.identityHashCode(this.template);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.util.ArrayList;
+
+/**
+ * SentencePathMatcher detects the elements at a sentence path like "root/text/s" while a file is read, replacing
+ * the comparison of the joined element stack ({@link Utils#stack2Path}) with the path on every event.
+ * The path is compiled into its interned segments and only two counters are kept: the current depth and the
+ * number of leading levels that match the path. Pushing and popping an element is O(1), no matter how deep the
+ * path is, and creates no objects.
+ * Segments are element names as {@link javax.xml.namespace.QName#toString()} renders them, "/" inside the "{uri}"
+ * part of a name doesn't split the path.
+ */
+class SentencePathMatcher {
+
+    private final String path;
+    private final XMLCursor.Name[] segments;
+    private final String[] segmentNames;
+    private int depth; // number of open elements
+    private int matched; // number of leading open elements that match the path, at most segments.length
+
+    /**
+     * @param path element names separated by "/", starting at the root element
+     */
+    SentencePathMatcher(String path) {
+        this.path = path;
+        ArrayList<String> names = split(path);
+        this.segmentNames = names.toArray(new String[0]);
+        this.segments = new XMLCursor.Name[this.segmentNames.length];
+        for (int i = 0; i < this.segmentNames.length; i++) {
+            this.segments[i] = XMLCursor.Name.parse(this.segmentNames[i]);
+        }
+    }
+
+    /**
+     * splits the path at every "/" outside of braces.
+     */
+    static ArrayList<String> split(String path) {
+        ArrayList<String> names = new ArrayList<>();
+        int braces = 0;
+        int begin = 0;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '{') {
+                braces++;
+            } else if (c == '}' && braces > 0) {
+                braces--;
+            } else if (c == '/' && braces == 0) {
+                names.add(path.substring(begin, i));
+                begin = i + 1;
+            }
+        }
+        names.add(path.substring(begin));
+        return names;
+    }
+
+    /**
+     * enters the current start element of the cursor.
+     * @return true, if the element is at the sentence path
+     */
+    boolean push(XMLCursor cursor) {
+        this.depth++;
+        if (this.matched == this.depth - 1 && this.depth <= this.segments.length && cursor.hasName(this.segments[this.depth - 1])) {
+            this.matched = this.depth;
+        }
+        return this.isMatch();
+    }
+
+    /**
+     * enters an element.
+     * @param name the name of the element, see {@link XMLCursor#getName()}
+     * @return true, if the element is at the sentence path
+     */
+    boolean push(String name) {
+        this.depth++;
+        if (this.matched == this.depth - 1 && this.depth <= this.segments.length && this.segmentNames[this.depth - 1].equals(name)) {
+            this.matched = this.depth;
+        }
+        return this.isMatch();
+    }
+
+    /**
+     * leaves the innermost open element.
+     */
+    void pop() {
+        if (this.depth == 0) {
+            return;
+        }
+        if (this.matched == this.depth) {
+            this.matched--;
+        }
+        this.depth--;
+    }
+
+    /**
+     * @return true, if the innermost open element is at the sentence path
+     */
+    boolean isMatch() {
+        return this.depth == this.segments.length && this.matched == this.depth;
+    }
+
+    int getDepth() {
+        return this.depth;
+    }
+
+    void reset() {
+        this.depth = 0;
+        this.matched = 0;
+    }
+
+    @Override
+    public String toString() {
+        return this.path;
+    }
+}
@@ -0,0 +1,105 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import org.w3c.dom.Document;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * ShardedConverter converts a single large xml file on several threads. The file is split into shards of
+ * consecutive sentences at the boundaries stored in its {@link SpanIndex}. Each shard is read with one positional
+ * read, parsed sentence by sentence and converted by a worker with its own compiled copy of the template.
+ * The shard outputs are written in order, so the result is the same as the one of a sequential conversion.
+ */
+class ShardedConverter {
+
+    private final static Logger LOGGER = Logger.getLogger(ShardedConverter.class.getName());
+    private final static int SHARDS_PER_THREAD = 4; // more shards than threads to balance uneven sentence lengths
+    private final static int MAX_SENTENCES_PER_SHARD = 10000;
+
+    private final Template template;
+    private final int threads;
+
+    /**
+     * @param template the template to convert with, is copied for each worker
+     * @param threads number of worker threads
+     */
+    ShardedConverter(Template template, int threads) {
+        this.template = template;
+        this.threads = threads;
+    }
+
+    /**
+     * Converts all sentences in the span index and writes them to the stream.
+     * @param sourceFile the indexed file
+     * @param index the span index of the file
+     * @param outStream where to write the CoNLL, not flushed
+     * @param delimiter written after each sentence
+     * @throws IOException if the file can't be read
+     */
+    void convert(File sourceFile, SpanIndex index, CoNLLSink outStream, String delimiter) throws IOException {
+        int size = index.size();
+        int shardSize = Math.max(1, Math.min(MAX_SENTENCES_PER_SHARD, size / (this.threads * SHARDS_PER_THREAD)));
+        LOGGER.info("Converting "+size+" sentences on "+this.threads+" threads in shards of "+shardSize+" sentences.");
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        ThreadLocal<XML2CoNLL> converters = ThreadLocal.withInitial(() -> new XML2CoNLL(new Template(this.template)));
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+        int maxPending = this.threads * SHARDS_PER_THREAD; // bounds the number of converted shards held in memory
+        int converted = 0;
+        try (FileChannel channel = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ)) {
+            for (int from = 0; from < size; from += shardSize) {
+                int shardFrom = from;
+                int shardTo = Math.min(size, from + shardSize);
+                pending.add(executor.submit(() -> convertShard(channel, index, shardFrom, shardTo, converters.get(), delimiter)));
+                if (pending.size() >= maxPending) {
+                    outStream.append(waitFor(pending.poll()));
+                    converted++;
+                }
+            }
+            while (!pending.isEmpty()) {
+                outStream.append(waitFor(pending.poll()));
+                converted++;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.info("Converted "+converted+" shards.");
+    }
+
+    /**
+     * reads, parses and converts the sentences from to (exclusive).
+     */
+    private static String convertShard(FileChannel channel, SpanIndex index, int from, int to, XML2CoNLL x2c, String delimiter) throws IOException {
+        byte[] shard = index.readSpans(channel, from, to);
+        long shardBegin = index.getBegin(from);
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            int offset = (int) (index.getBegin(i) - shardBegin);
+            int length = (int) (index.getEnd(i) - index.getBegin(i));
+            try {
+                Document sentence = SubtreeGenerator.parseSubtree(shard, offset, length, index.getNamespaceContext(i), index.getEncoding());
+                x2c.appendCoNLLSentence(sentence, sb, delimiter);
+            } catch (XMLStreamException e) {
+                LOGGER.severe("Unable to parse subtree #"+i+" at byte "+index.getBegin(i)+": "+e.getMessage());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String waitFor(Future<String> shard) throws IOException {
+        try {
+            return shard.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a shard.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to convert a shard: "+e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,1099 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * SimplePath evaluates the small subset of XPath that templates use in almost all cases directly on a
+ * {@link CompactSubtree} or a DOM node, without JAXP. Supported are location paths made of the steps
+ * <ul>
+ *     <li>name, * (child elements), name or * after // (descendant elements)</li>
+ *     <li>ancestor::name</li>
+ *     <li>. and ..</li>
+ *     <li>@name and text() as last step</li>
+ * </ul>
+ * optionally starting with / or //. Element steps may have simple predicates: [@name], [@name='value'] and,
+ * except after //, positions like [1]. Names must not have a prefix, they match elements and attributes without
+ * a namespace, just like XPath does. {@link #compile(String)} returns null for anything else, which is then left
+ * to the JAXP implementation.
+ */
+class SimplePath {
+
+    private final static int CHILD = 0;
+    private final static int DESCENDANT = 1;
+    private final static int ANCESTOR = 2;
+    private final static int SELF = 3;
+    private final static int PARENT = 4;
+    private final static int ATTRIBUTE = 5;
+    private final static int TEXT = 6;
+    private final static int DESCENDANT_TEXT = 7;
+    private final static int DESCENDANT_ATTRIBUTE = 8;
+
+    private final String path;
+    private final boolean absolute;
+    private final int[] axes;
+    private final String[] names; // null for *
+    private final Predicate[][] predicates; // per step, empty if none
+
+    /**
+     * [n] or [@name] or [@name='value'].
+     */
+    private static class Predicate {
+        private final int position; // 0 for attribute tests
+        private final String attribute;
+        private final String value; // null to test for existence
+
+        private Predicate(int position, String attribute, String value) {
+            this.position = position;
+            this.attribute = attribute;
+            this.value = value;
+        }
+    }
+
+    private SimplePath(String path, boolean absolute, int[] axes, String[] names, Predicate[][] predicates) {
+        this.path = path;
+        this.absolute = absolute;
+        this.axes = axes;
+        this.names = names;
+        this.predicates = predicates;
+    }
+
+    /**
+     * @param path an XPath expression
+     * @return the compiled path or null if the expression is not supported
+     */
+    static SimplePath compile(String path) {
+        if (path == null) {
+            return null;
+        }
+        String p = path.trim();
+        if (p.isEmpty()) {
+            return null;
+        }
+        boolean absolute = p.startsWith("/");
+        boolean descendant = false;
+        if (p.startsWith("//")) {
+            descendant = true;
+            p = p.substring(2);
+        } else if (absolute) {
+            p = p.substring(1);
+        }
+        ArrayList<String> tokens = split(p);
+        if (tokens == null) {
+            return null;
+        }
+        int[] axes = new int[tokens.size()];
+        String[] names = new String[tokens.size()];
+        Predicate[][] predicates = new Predicate[tokens.size()][];
+        int steps = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i).trim();
+            if (token.isEmpty()) {
+                // the empty token between the slashes of //
+                if (descendant || i == tokens.size() - 1) {
+                    return null;
+                }
+                descendant = true;
+                continue;
+            }
+            boolean last = i == tokens.size() - 1;
+            ArrayList<Predicate> stepPredicates = new ArrayList<>();
+            int bracket = token.indexOf('[');
+            if (bracket >= 0) {
+                if (!parsePredicates(token.substring(bracket), stepPredicates)) {
+                    return null;
+                }
+                token = token.substring(0, bracket).trim();
+            }
+            int axis;
+            String name = null;
+            if (token.equals(".")) {
+                axis = SELF;
+            } else if (token.equals("..")) {
+                axis = PARENT;
+            } else if (token.equals("text()")) {
+                axis = descendant ? DESCENDANT_TEXT : TEXT;
+            } else if (token.startsWith("@")) {
+                name = token.substring(1).trim();
+                if (!isName(name)) {
+                    return null;
+                }
+                axis = descendant ? DESCENDANT_ATTRIBUTE : ATTRIBUTE;
+            } else if (token.startsWith("ancestor::")) {
+                name = token.substring("ancestor::".length()).trim();
+                if (!isName(name) && !name.equals("*")) {
+                    return null;
+                }
+                name = name.equals("*") ? null : name;
+                axis = ANCESTOR;
+            } else if (token.equals("*") || isName(token)) {
+                name = token.equals("*") ? null : token;
+                axis = descendant ? DESCENDANT : CHILD;
+            } else {
+                return null;
+            }
+            if (descendant && axis != DESCENDANT && axis != DESCENDANT_TEXT && axis != DESCENDANT_ATTRIBUTE) {
+                return null;
+            }
+            if ((axis == TEXT || axis == DESCENDANT_TEXT || axis == ATTRIBUTE || axis == DESCENDANT_ATTRIBUTE) && !last) {
+                return null;
+            }
+            if (!stepPredicates.isEmpty()) {
+                if (axis != CHILD && axis != DESCENDANT && axis != ANCESTOR) {
+                    return null;
+                }
+                for (Predicate predicate : stepPredicates) {
+                    // in XPath //a[1] counts per parent, not per context node
+                    if (axis == DESCENDANT && predicate.position > 0) {
+                        return null;
+                    }
+                }
+            }
+            axes[steps] = axis;
+            names[steps] = name;
+            predicates[steps] = stepPredicates.toArray(new Predicate[0]);
+            steps++;
+            descendant = false;
+        }
+        if (steps == 0) {
+            return null;
+        }
+        return new SimplePath(path, absolute, Arrays.copyOf(axes, steps), Arrays.copyOf(names, steps),
+                Arrays.copyOf(predicates, steps));
+    }
+
+    /**
+     * splits the path at every "/" outside of predicates.
+     * @return null, if a predicate or string isn't closed
+     */
+    private static ArrayList<String> split(String p) {
+        ArrayList<String> tokens = new ArrayList<>();
+        int brackets = 0;
+        char quote = 0;
+        int begin = 0;
+        for (int i = 0; i < p.length(); i++) {
+            char c = p.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '[') {
+                brackets++;
+            } else if (c == ']') {
+                brackets--;
+            } else if (c == '/' && brackets == 0) {
+                tokens.add(p.substring(begin, i));
+                begin = i + 1;
+            }
+        }
+        if (brackets != 0 || quote != 0) {
+            return null;
+        }
+        tokens.add(p.substring(begin));
+        return tokens;
+    }
+
+    /**
+     * parses a sequence of predicates like [@a='b'][1].
+     * @return false, if one of them is not supported
+     */
+    private static boolean parsePredicates(String s, ArrayList<Predicate> predicates) {
+        int i = 0;
+        while (i < s.length()) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                i++;
+                continue;
+            }
+            if (s.charAt(i) != '[') {
+                return false;
+            }
+            int close = i + 1;
+            char quote = 0;
+            while (close < s.length() && (quote != 0 || s.charAt(close) != ']')) {
+                char c = s.charAt(close);
+                if (quote != 0 && c == quote) {
+                    quote = 0;
+                } else if (quote == 0 && (c == '\'' || c == '"')) {
+                    quote = c;
+                } else if (quote == 0 && c == '[') {
+                    return false;
+                }
+                close++;
+            }
+            if (close == s.length()) {
+                return false;
+            }
+            Predicate predicate = parsePredicate(s.substring(i + 1, close).trim());
+            if (predicate == null) {
+                return false;
+            }
+            predicates.add(predicate);
+            i = close + 1;
+        }
+        return true;
+    }
+
+    private static Predicate parsePredicate(String s) {
+        if (!s.isEmpty() && s.chars().allMatch(Character::isDigit)) {
+            try {
+                int position = Integer.parseInt(s);
+                return position > 0 ? new Predicate(position, null, null) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (!s.startsWith("@")) {
+            return null;
+        }
+        int equals = s.indexOf('=');
+        if (equals < 0) {
+            String name = s.substring(1).trim();
+            return isName(name) ? new Predicate(0, name, null) : null;
+        }
+        String name = s.substring(1, equals).trim();
+        String literal = s.substring(equals + 1).trim();
+        if (!isName(name) || literal.length() < 2) {
+            return null;
+        }
+        char quote = literal.charAt(0);
+        if ((quote != '\'' && quote != '"') || literal.charAt(literal.length() - 1) != quote
+                || literal.indexOf(quote, 1) != literal.length() - 1) {
+            return null;
+        }
+        return new Predicate(0, name, literal.substring(1, literal.length() - 1));
+    }
+
+    private static boolean isName(String s) {
+        if (s.isEmpty() || !(Character.isLetter(s.charAt(0)) || s.charAt(0) == '_')) {
+            return false;
+        }
+        for (int i = 1; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true, if the path can only select elements (or the document), as required for word paths
+     */
+    boolean selectsElements() {
+        int last = this.axes[this.axes.length - 1];
+        return last != TEXT && last != DESCENDANT_TEXT && last != ATTRIBUTE && last != DESCENDANT_ATTRIBUTE;
+    }
+
+    /**
+     * @return true, if whether the path selects an element, evaluated on the document node, only depends on the
+     * names and attributes of the element and its ancestors. This is the case for paths of child and descendant
+     * element steps without positions, which can be matched while streaming, see {@link #selects(CompactSubtree, int)}.
+     */
+    boolean isDecidableAtStart() {
+        int last = this.axes[this.axes.length - 1];
+        if (last != CHILD && last != DESCENDANT) {
+            return false;
+        }
+        for (int s = 0; s < this.axes.length; s++) {
+            if (this.axes[s] != CHILD && this.axes[s] != DESCENDANT && this.axes[s] != SELF) {
+                return false;
+            }
+            for (Predicate predicate : this.predicates[s]) {
+                if (predicate.position > 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true, if the path only looks at the context node and its descendants or at attributes of its
+     * ancestors, which are all known when the end of the context element is read.
+     */
+    boolean isDecidableAtEnd() {
+        if (this.absolute) {
+            return false;
+        }
+        boolean upward = false;
+        for (int s = 0; s < this.axes.length; s++) {
+            upward |= this.axes[s] == PARENT || this.axes[s] == ANCESTOR;
+        }
+        if (!upward) {
+            return true;
+        }
+        // a chain of ancestors, of which only attributes are known
+        int last = this.axes.length - 1;
+        if (this.axes[last] != ATTRIBUTE) {
+            return false;
+        }
+        for (int s = 0; s < last; s++) {
+            if (this.axes[s] != PARENT && this.axes[s] != ANCESTOR && this.axes[s] != SELF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true, if the path can be evaluated for all words of a sentence at once, see
+     * {@link #evaluateStrings(CompactSubtree, int[], String[], ValueDictionary)}. This is the case for relative paths of child, parent
+     * and self steps, optionally ending in an attribute or text(): the nodes they select for one context are in
+     * document order, no matter how many contexts are evaluated together.
+     */
+    boolean isBatchable() {
+        if (this.absolute) {
+            return false;
+        }
+        for (int axis : this.axes) {
+            if (axis != CHILD && axis != PARENT && axis != SELF && axis != TEXT && axis != ATTRIBUTE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * tests whether the path, evaluated on the document node, selects a node. Only the ancestors of the node need
+     * to be in the tree, so it can be used while the tree is built. Requires {@link #isDecidableAtStart()}.
+     * @param tree
+     * @param node an element
+     * @return
+     */
+    boolean selects(CompactSubtree tree, int node) {
+        CompactSubtree.StringTable strings = tree.getStringTable();
+        int noNamespace = strings.lookup("");
+        int last = this.axes.length - 1;
+        if (this.names[last] != null && !tree.hasName(node, strings.lookup(this.names[last]), noNamespace)) {
+            // most elements fail here, without looking at their ancestors
+            return false;
+        }
+        int depth = 0;
+        for (int n = node; n > 0; n = tree.getParent(n)) {
+            depth++;
+        }
+        // chain[0] is the document node, chain[depth] the node
+        int[] chain = new int[depth + 1];
+        for (int n = node, d = depth; d >= 0; n = tree.getParent(n), d--) {
+            chain[d] = n;
+        }
+        // reachable[d]: the steps so far can select chain[d]
+        boolean[] reachable = new boolean[depth + 1];
+        boolean[] next = new boolean[depth + 1];
+        reachable[0] = true;
+        for (int s = 0; s < this.axes.length; s++) {
+            int nameId = -1;
+            if (this.names[s] != null) {
+                nameId = strings.lookup(this.names[s]);
+                if (nameId < 0 || noNamespace < 0) {
+                    return false;
+                }
+            }
+            Arrays.fill(next, false);
+            boolean any = false;
+            for (int d = 0; d <= depth; d++) {
+                if (!reachable[d]) {
+                    continue;
+                }
+                if (this.axes[s] == SELF) {
+                    next[d] = true;
+                    any = true;
+                    continue;
+                }
+                int end = this.axes[s] == CHILD ? Math.min(d + 1, depth) : depth;
+                for (int e = d + 1; e <= end; e++) {
+                    if (!next[e] && matches(tree, chain[e], nameId, noNamespace)
+                            && this.matchesAttributes(tree, chain[e], this.predicates[s])) {
+                        next[e] = true;
+                        any = true;
+                    }
+                }
+            }
+            if (!any) {
+                return false;
+            }
+            boolean[] swap = reachable;
+            reachable = next;
+            next = swap;
+        }
+        return reachable[depth];
+    }
+
+    private boolean matchesAttributes(CompactSubtree tree, int node, Predicate[] stepPredicates) {
+        for (Predicate predicate : stepPredicates) {
+            CompactSubtree.StringTable strings = tree.getStringTable();
+            int nameId = strings.lookup(predicate.attribute);
+            int noNamespace = strings.lookup("");
+            int a = nameId < 0 || noNamespace < 0 ? -1 : tree.findAttribute(node, nameId, noNamespace);
+            if (a < 0 || (predicate.value != null && !tree.attributeValueEquals(a, predicate.value))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //========================================================================
+    // EVALUATION ON COMPACT SUBTREES
+    //========================================================================
+
+    /**
+     * evaluates the path like XPathConstants.NODESET would.
+     * @param tree
+     * @param context
+     * @return the selected nodes in document order, without duplicates
+     */
+    int[] evaluateNodes(CompactSubtree tree, int context) {
+        if (!this.selectsElements()) {
+            throw new IllegalStateException("Path "+this.path+" doesn't select elements.");
+        }
+        NodeSet nodes = this.evaluate(tree, context, this.axes.length);
+        return Arrays.copyOf(nodes.ids, nodes.size);
+    }
+
+    /**
+     * evaluates the path like XPathConstants.STRING would: the string-value of the first selected node in document
+     * order or "" if nothing is selected.
+     * @param tree
+     * @param context
+     * @return
+     */
+    String evaluateString(CompactSubtree tree, int context) {
+        return this.evaluateString(tree, context, null);
+    }
+
+    /**
+     * Same as {@link #evaluateString(CompactSubtree, int)}, values are taken from the dictionary of the column.
+     * @param tree
+     * @param context
+     * @param dictionary or null
+     * @return
+     */
+    String evaluateString(CompactSubtree tree, int context, ValueDictionary dictionary) {
+        int lastStep = this.axes.length - 1;
+        int lastAxis = this.axes[lastStep];
+        if (lastAxis == ATTRIBUTE || lastAxis == DESCENDANT_ATTRIBUTE) {
+            // attributes directly follow their element in document order, so the first element having the attribute wins
+            NodeSet owners = this.evaluate(tree, context, lastStep);
+            CompactSubtree.StringTable strings = tree.getStringTable();
+            int nameId = strings.lookup(this.names[lastStep]);
+            int noNamespace = strings.lookup("");
+            if (nameId < 0 || noNamespace < 0) {
+                return "";
+            }
+            int first = Integer.MAX_VALUE;
+            int value = -1;
+            for (int i = 0; i < owners.size; i++) {
+                int owner = owners.ids[i];
+                int end = lastAxis == ATTRIBUTE ? owner + 1 : tree.getEnd(owner);
+                for (int n = owner; n < end && n < first; n++) {
+                    int a = tree.findAttribute(n, nameId, noNamespace);
+                    if (a >= 0) {
+                        first = n;
+                        value = a;
+                        break;
+                    }
+                }
+            }
+            return value < 0 ? "" : tree.getAttributeValue(value, dictionary);
+        }
+        NodeSet nodes = this.evaluate(tree, context, this.axes.length);
+        if (nodes.size == 0) {
+            return "";
+        }
+        return tree.getStringValue(nodes.ids[0], dictionary);
+    }
+
+    /**
+     * evaluates the path on every context like {@link #evaluateString(CompactSubtree, int)}, but step by step for all
+     * of them together, like the sentence-relative path word/path would be evaluated. Every selected node keeps the
+     * index of the context it was reached from, which aligns the results to the contexts. Requires
+     * {@link #isBatchable()}.
+     * @param tree
+     * @param contexts the words of a sentence
+     * @param results results[i] is set to the value for contexts[i], "" if nothing is selected
+     * @param dictionary of the column, or null
+     */
+    void evaluateStrings(CompactSubtree tree, int[] contexts, String[] results, ValueDictionary dictionary) {
+        Arrays.fill(results, 0, contexts.length, null);
+        int lastStep = this.axes.length - 1;
+        boolean attribute = this.axes[lastStep] == ATTRIBUTE;
+        CompactSubtree.StringTable strings = tree.getStringTable();
+        int noNamespace = strings.lookup("");
+        if (attribute && lastStep == 0) {
+            // the most common case, @name, needs no node sets
+            int nameId = strings.lookup(this.names[0]);
+            for (int i = 0; i < contexts.length; i++) {
+                int a = nameId < 0 || noNamespace < 0 ? -1 : tree.findAttribute(contexts[i], nameId, noNamespace);
+                results[i] = a < 0 ? "" : tree.getAttributeValue(a, dictionary);
+            }
+            return;
+        }
+        NodeSet current = new NodeSet();
+        NodeSet owners = new NodeSet();
+        for (int i = 0; i < contexts.length; i++) {
+            current.add(contexts[i]);
+            owners.add(i);
+        }
+        for (int s = 0; s < (attribute ? lastStep : this.axes.length) && current.size > 0; s++) {
+            int axis = this.axes[s];
+            int nameId = -1;
+            if (this.names[s] != null) {
+                nameId = strings.lookup(this.names[s]);
+                if (nameId < 0 || noNamespace < 0) {
+                    current.size = 0;
+                    break;
+                }
+            }
+            NodeSet next = new NodeSet();
+            NodeSet nextOwners = new NodeSet();
+            for (int i = 0; i < current.size; i++) {
+                int node = current.ids[i];
+                int before = next.size;
+                switch (axis) {
+                    case CHILD:
+                        for (int c = tree.getFirstChild(node); c >= 0; c = tree.getNextSibling(c)) {
+                            if (matches(tree, c, nameId, noNamespace)) {
+                                next.add(c);
+                            }
+                        }
+                        break;
+                    case TEXT:
+                        for (int c = tree.getFirstChild(node); c >= 0; c = tree.getNextSibling(c)) {
+                            if (tree.isText(c)) {
+                                next.add(c);
+                            }
+                        }
+                        break;
+                    case SELF:
+                        next.add(node);
+                        break;
+                    case PARENT:
+                        if (tree.getParent(node) >= 0) {
+                            next.add(tree.getParent(node));
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Path "+this.path+" can't be evaluated in a batch.");
+                }
+                for (Predicate predicate : this.predicates[s]) {
+                    next.filter(before, predicate, tree);
+                }
+                while (nextOwners.size < next.size) {
+                    nextOwners.add(owners.ids[i]);
+                }
+            }
+            current = next;
+            owners = nextOwners;
+        }
+        if (attribute && current.size > 0) {
+            int nameId = strings.lookup(this.names[lastStep]);
+            if (nameId >= 0 && noNamespace >= 0) {
+                for (int i = 0; i < current.size; i++) {
+                    int owner = owners.ids[i];
+                    if (results[owner] == null) {
+                        int a = tree.findAttribute(current.ids[i], nameId, noNamespace);
+                        if (a >= 0) {
+                            results[owner] = tree.getAttributeValue(a, dictionary);
+                        }
+                    }
+                }
+            }
+        } else {
+            for (int i = 0; i < current.size; i++) {
+                if (results[owners.ids[i]] == null) {
+                    results[owners.ids[i]] = tree.getStringValue(current.ids[i], dictionary);
+                }
+            }
+        }
+        for (int i = 0; i < contexts.length; i++) {
+            if (results[i] == null) {
+                results[i] = "";
+            }
+        }
+    }
+
+    /**
+     * evaluates the first steps of the path.
+     */
+    private NodeSet evaluate(CompactSubtree tree, int context, int steps) {
+        NodeSet current = new NodeSet();
+        current.add(this.absolute ? 0 : context);
+        CompactSubtree.StringTable strings = tree.getStringTable();
+        int noNamespace = strings.lookup("");
+        for (int s = 0; s < steps; s++) {
+            int axis = this.axes[s];
+            int nameId = -1;
+            if (this.names[s] != null) {
+                nameId = strings.lookup(this.names[s]);
+                if (nameId < 0 || noNamespace < 0) {
+                    // the name doesn't occur anywhere
+                    return new NodeSet();
+                }
+            }
+            Predicate[] stepPredicates = this.predicates[s];
+            NodeSet next = new NodeSet();
+            for (int i = 0; i < current.size; i++) {
+                int node = current.ids[i];
+                int before = next.size;
+                switch (axis) {
+                    case CHILD:
+                        for (int c = tree.getFirstChild(node); c >= 0; c = tree.getNextSibling(c)) {
+                            if (matches(tree, c, nameId, noNamespace)) {
+                                next.add(c);
+                            }
+                        }
+                        break;
+                    case DESCENDANT:
+                        for (int d = node + 1; d < tree.getEnd(node); d++) {
+                            if (matches(tree, d, nameId, noNamespace)) {
+                                next.add(d);
+                            }
+                        }
+                        break;
+                    case TEXT:
+                        for (int c = tree.getFirstChild(node); c >= 0; c = tree.getNextSibling(c)) {
+                            if (tree.isText(c)) {
+                                next.add(c);
+                            }
+                        }
+                        break;
+                    case DESCENDANT_TEXT:
+                        for (int d = node + 1; d < tree.getEnd(node); d++) {
+                            if (tree.isText(d)) {
+                                next.add(d);
+                            }
+                        }
+                        break;
+                    case ANCESTOR:
+                        // nearest first, as positions count on this reverse axis
+                        for (int a = tree.getParent(node); a >= 0; a = tree.getParent(a)) {
+                            if (matches(tree, a, nameId, noNamespace)) {
+                                next.add(a);
+                            }
+                        }
+                        break;
+                    case SELF:
+                        next.add(node);
+                        break;
+                    case PARENT:
+                        if (tree.getParent(node) >= 0) {
+                            next.add(tree.getParent(node));
+                        }
+                        break;
+                    default:
+                        // attribute steps are only evaluated by evaluateString()
+                        throw new IllegalStateException("Unexpected step in "+this.path);
+                }
+                for (Predicate predicate : stepPredicates) {
+                    next.filter(before, predicate, tree);
+                }
+            }
+            if (current.size > 1 || axis == ANCESTOR) {
+                next.sortAndDeduplicate();
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    private static boolean matches(CompactSubtree tree, int node, int nameId, int noNamespace) {
+        if (nameId < 0) {
+            return tree.isElement(node);
+        }
+        return tree.hasName(node, nameId, noNamespace);
+    }
+
+    //========================================================================
+    // EVALUATION ON DOM NODES
+    //========================================================================
+
+    /**
+     * evaluates the path like XPathConstants.NODESET would.
+     * @param context
+     * @return the selected nodes in document order, without duplicates
+     */
+    ArrayList<Node> evaluateNodes(Node context) {
+        if (!this.selectsElements()) {
+            throw new IllegalStateException("Path "+this.path+" doesn't select elements.");
+        }
+        return this.evaluate(context, this.axes.length);
+    }
+
+    /**
+     * evaluates the path like XPathConstants.STRING would, see {@link #evaluateString(CompactSubtree, int)}.
+     * Adjacent text and CDATA nodes are one text node, as in the XPath data model.
+     * @param context
+     * @return
+     */
+    String evaluateString(Node context) {
+        int lastStep = this.axes.length - 1;
+        int lastAxis = this.axes[lastStep];
+        if (lastAxis == ATTRIBUTE || lastAxis == DESCENDANT_ATTRIBUTE) {
+            String name = this.names[lastStep];
+            for (Node owner : this.evaluate(context, lastStep)) {
+                if (lastAxis == ATTRIBUTE) {
+                    Attr attribute = getAttribute(owner, name);
+                    if (attribute != null) {
+                        return attribute.getValue();
+                    }
+                    continue;
+                }
+                // the subtrees of later owners follow or lie inside the one of the first owner
+                Attr attribute = findAttribute(owner, name);
+                if (attribute != null) {
+                    return attribute.getValue();
+                }
+            }
+            return "";
+        }
+        ArrayList<Node> nodes = this.evaluate(context, this.axes.length);
+        if (nodes.isEmpty()) {
+            return "";
+        }
+        return getStringValue(nodes.get(0));
+    }
+
+    /**
+     * Same as {@link #evaluateStrings(CompactSubtree, int[], String[], ValueDictionary)} for DOM nodes.
+     * @param contexts
+     * @param results
+     */
+    void evaluateStrings(List<Node> contexts, String[] results) {
+        Arrays.fill(results, 0, contexts.size(), null);
+        int lastStep = this.axes.length - 1;
+        boolean attribute = this.axes[lastStep] == ATTRIBUTE;
+        if (attribute && lastStep == 0) {
+            for (int i = 0; i < contexts.size(); i++) {
+                Attr a = getAttribute(contexts.get(i), this.names[0]);
+                results[i] = a == null ? "" : a.getValue();
+            }
+            return;
+        }
+        ArrayList<Node> current = new ArrayList<>(contexts);
+        int[] owners = new int[current.size()];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = i;
+        }
+        for (int s = 0; s < (attribute ? lastStep : this.axes.length) && !current.isEmpty(); s++) {
+            int axis = this.axes[s];
+            String name = this.names[s];
+            ArrayList<Node> next = new ArrayList<>();
+            int[] nextOwners = new int[Math.max(16, current.size())];
+            for (int i = 0; i < current.size(); i++) {
+                Node node = current.get(i);
+                int before = next.size();
+                switch (axis) {
+                    case CHILD:
+                        for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+                            if (matches(c, name)) {
+                                next.add(c);
+                            }
+                        }
+                        break;
+                    case TEXT:
+                        for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+                            if (isText(c) && !isText(c.getPreviousSibling())) {
+                                next.add(c);
+                            }
+                        }
+                        break;
+                    case SELF:
+                        next.add(node);
+                        break;
+                    case PARENT:
+                        if (node.getParentNode() != null) {
+                            next.add(node.getParentNode());
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Path "+this.path+" can't be evaluated in a batch.");
+                }
+                for (Predicate predicate : this.predicates[s]) {
+                    filter(next, before, predicate);
+                }
+                if (next.size() > nextOwners.length) {
+                    nextOwners = Arrays.copyOf(nextOwners, Math.max(next.size(), nextOwners.length * 2));
+                }
+                Arrays.fill(nextOwners, before, next.size(), owners[i]);
+            }
+            current = next;
+            owners = nextOwners;
+        }
+        for (int i = 0; i < current.size(); i++) {
+            int owner = owners[i];
+            if (results[owner] != null) {
+                continue;
+            }
+            if (attribute) {
+                Attr a = getAttribute(current.get(i), this.names[lastStep]);
+                if (a != null) {
+                    results[owner] = a.getValue();
+                }
+            } else {
+                results[owner] = getStringValue(current.get(i));
+            }
+        }
+        for (int i = 0; i < contexts.size(); i++) {
+            if (results[i] == null) {
+                results[i] = "";
+            }
+        }
+    }
+
+    private ArrayList<Node> evaluate(Node context, int steps) {
+        ArrayList<Node> current = new ArrayList<>();
+        if (this.absolute) {
+            current.add(context.getNodeType() == Node.DOCUMENT_NODE ? context : context.getOwnerDocument());
+        } else {
+            current.add(context);
+        }
+        for (int s = 0; s < steps; s++) {
+            int axis = this.axes[s];
+            String name = this.names[s];
+            Predicate[] stepPredicates = this.predicates[s];
+            ArrayList<Node> next = new ArrayList<>();
+            for (Node node : current) {
+                int before = next.size();
+                switch (axis) {
+                    case CHILD:
+                        for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+                            if (matches(c, name)) {
+                                next.add(c);
+                            }
+                        }
+                        break;
+                    case DESCENDANT:
+                        addDescendants(node, name, next);
+                        break;
+                    case TEXT:
+                        for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+                            if (isText(c) && !isText(c.getPreviousSibling())) {
+                                next.add(c);
+                            }
+                        }
+                        break;
+                    case DESCENDANT_TEXT:
+                        addDescendantTexts(node, next);
+                        break;
+                    case ANCESTOR:
+                        for (Node a = node.getParentNode(); a != null; a = a.getParentNode()) {
+                            if (matches(a, name)) {
+                                next.add(a);
+                            }
+                        }
+                        break;
+                    case SELF:
+                        next.add(node);
+                        break;
+                    case PARENT:
+                        if (node.getParentNode() != null) {
+                            next.add(node.getParentNode());
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Unexpected step in "+this.path);
+                }
+                for (Predicate predicate : stepPredicates) {
+                    filter(next, before, predicate);
+                }
+            }
+            if (current.size() > 1 || axis == ANCESTOR) {
+                sortAndDeduplicate(next);
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    private static boolean matches(Node node, String name) {
+        if (node.getNodeType() != Node.ELEMENT_NODE) {
+            return false;
+        }
+        if (name == null) {
+            return true;
+        }
+        String localName = node.getLocalName();
+        if (localName == null) {
+            // DOM level 1, built without namespace support
+            return name.equals(node.getNodeName());
+        }
+        return node.getNamespaceURI() == null && name.equals(localName);
+    }
+
+    private static boolean isText(Node node) {
+        return node != null && (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE);
+    }
+
+    private static void addDescendants(Node node, String name, ArrayList<Node> result) {
+        for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c.getNodeType() == Node.ELEMENT_NODE) {
+                if (matches(c, name)) {
+                    result.add(c);
+                }
+                addDescendants(c, name, result);
+            }
+        }
+    }
+
+    private static void addDescendantTexts(Node node, ArrayList<Node> result) {
+        for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (isText(c)) {
+                if (!isText(c.getPreviousSibling())) {
+                    result.add(c);
+                }
+            } else if (c.getNodeType() == Node.ELEMENT_NODE) {
+                addDescendantTexts(c, result);
+            }
+        }
+    }
+
+    private static Attr getAttribute(Node node, String name) {
+        if (node.getNodeType() != Node.ELEMENT_NODE) {
+            return null;
+        }
+        Element element = (Element) node;
+        return element.getLocalName() == null ? element.getAttributeNode(name) : element.getAttributeNodeNS(null, name);
+    }
+
+    /**
+     * @return the attribute of the node or its first descendant having it
+     */
+    private static Attr findAttribute(Node node, String name) {
+        Attr attribute = getAttribute(node, name);
+        if (attribute != null) {
+            return attribute;
+        }
+        for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c.getNodeType() == Node.ELEMENT_NODE) {
+                attribute = findAttribute(c, name);
+                if (attribute != null) {
+                    return attribute;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the XPath string-value of an element, document or the text node starting at the given node
+     */
+    private static String getStringValue(Node node) {
+        if (isText(node)) {
+            if (!isText(node.getNextSibling())) {
+                return node.getNodeValue();
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Node t = node; isText(t); t = t.getNextSibling()) {
+                sb.append(t.getNodeValue());
+            }
+            return sb.toString();
+        }
+        if (node.getNodeType() == Node.DOCUMENT_NODE) {
+            Element root = ((Document) node).getDocumentElement();
+            return root == null ? "" : root.getTextContent();
+        }
+        return node.getTextContent();
+    }
+
+    private static void filter(ArrayList<Node> nodes, int from, Predicate predicate) {
+        if (predicate.position > 0) {
+            int index = from + predicate.position - 1;
+            Node selected = index < nodes.size() ? nodes.get(index) : null;
+            nodes.subList(from, nodes.size()).clear();
+            if (selected != null) {
+                nodes.add(selected);
+            }
+            return;
+        }
+        int kept = from;
+        for (int i = from; i < nodes.size(); i++) {
+            Attr attribute = getAttribute(nodes.get(i), predicate.attribute);
+            if (attribute != null && (predicate.value == null || predicate.value.equals(attribute.getValue()))) {
+                nodes.set(kept++, nodes.get(i));
+            }
+        }
+        nodes.subList(kept, nodes.size()).clear();
+    }
+
+    private static void sortAndDeduplicate(ArrayList<Node> nodes) {
+        if (nodes.size() < 2) {
+            return;
+        }
+        IdentityHashMap<Node, Boolean> seen = new IdentityHashMap<>();
+        nodes.removeIf(n -> seen.put(n, Boolean.TRUE) != null);
+        Collections.sort(nodes, (a, b) -> {
+            if (a == b) {
+                return 0;
+            }
+            return (a.compareDocumentPosition(b) & Node.DOCUMENT_POSITION_FOLLOWING) != 0 ? -1 : 1;
+        });
+    }
+
+    @Override
+    public String toString() {
+        return this.path;
+    }
+
+    /**
+     * growable list of node ids.
+     */
+    private static class NodeSet {
+        private int[] ids = new int[16];
+        private int size;
+
+        void add(int id) {
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            this.ids[this.size++] = id;
+        }
+
+        /**
+         * applies a predicate to the nodes from index from on, which one step selected for one context node.
+         */
+        void filter(int from, Predicate predicate, CompactSubtree tree) {
+            if (predicate.position > 0) {
+                int index = from + predicate.position - 1;
+                if (index < this.size) {
+                    this.ids[from] = this.ids[index];
+                    this.size = from + 1;
+                } else {
+                    this.size = from;
+                }
+                return;
+            }
+            CompactSubtree.StringTable strings = tree.getStringTable();
+            int nameId = strings.lookup(predicate.attribute);
+            int noNamespace = strings.lookup("");
+            int kept = from;
+            for (int i = from; i < this.size; i++) {
+                int a = nameId < 0 || noNamespace < 0 ? -1 : tree.findAttribute(this.ids[i], nameId, noNamespace);
+                if (a >= 0 && (predicate.value == null || tree.attributeValueEquals(a, predicate.value))) {
+                    this.ids[kept++] = this.ids[i];
+                }
+            }
+            this.size = kept;
+        }
+
+        void sortAndDeduplicate() {
+            Arrays.sort(this.ids, 0, this.size);
+            int unique = 0;
+            for (int i = 0; i < this.size; i++) {
+                if (unique == 0 || this.ids[unique - 1] != this.ids[i]) {
+                    this.ids[unique++] = this.ids[i];
+                }
+            }
+            this.size = unique;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SpanIndex holds the byte offsets of all subtrees with a given name in an xml file. It is built once with
+ * a fast byte-level scan and saved as a sidecar file next to the corpus (corpus.xml.spans), so later runs can seek
+ * directly to any subtree instead of reading the file from the start.
+ * The sidecar is ignored and rebuilt if the corpus changed (size or modification date) or a different
+ * subtree name is requested.
+ */
+public class SpanIndex {
+
+    public final static String SUFFIX = ".spans";
+    private final static int MAGIC = 0x58324353; // "X2CS"
+    private final static int VERSION = 1;
+    private final static Logger LOGGER = Logger.getLogger(SpanIndex.class.getName());
+
+    private final String sentenceName;
+    private String encoding;
+    private long[] begins; // byte offset of the '<' of each subtree root
+    private long[] ends; // byte offset right after the end tag of each subtree root
+    private int[] namespaceContextIds; // index into namespaceContexts for each subtree
+    private ArrayList<String> namespaceContexts;
+    private int size;
+
+    private SpanIndex(String sentenceName, String encoding) {
+        this.sentenceName = sentenceName;
+        this.encoding = encoding;
+        this.begins = new long[1024];
+        this.ends = new long[1024];
+        this.namespaceContextIds = new int[1024];
+        this.namespaceContexts = new ArrayList<>();
+    }
+
+    /**
+     * Loads the index from its sidecar file if it is up to date, otherwise scans the file and tries to
+     * save the index for later use.
+     * @param xmlFile the corpus
+     * @param sentenceName name or path of the subtree root elements, see {@link SubtreeGenerator}
+     * @return the span index
+     * @throws IOException if the xml file can't be scanned
+     */
+    public static SpanIndex load(File xmlFile, String sentenceName) throws IOException {
+        File sidecar = getSidecarFile(xmlFile);
+        if (sidecar.exists()) {
+            SpanIndex index = read(sidecar, xmlFile, sentenceName);
+            if (index != null) {
+                LOGGER.info("Loaded span index with "+index.size()+" subtrees from "+sidecar.getAbsolutePath());
+                return index;
+            }
+            LOGGER.info("Span index "+sidecar.getAbsolutePath()+" is outdated, rebuilding..");
+        }
+        SpanIndex index = build(xmlFile, sentenceName);
+        try {
+            index.save(sidecar, xmlFile);
+        } catch (IOException e) {
+            LOGGER.warning("Couldn't save span index to "+sidecar.getAbsolutePath()+": "+e.getMessage());
+        }
+        return index;
+    }
+
+    public static File getSidecarFile(File xmlFile) {
+        return new File(xmlFile.getAbsolutePath()+SUFFIX);
+    }
+
+    /**
+     * Scans the xml file for all subtrees named sentenceName.
+     * @param xmlFile
+     * @param sentenceName
+     * @return
+     * @throws IOException if the file can't be read or is compressed, byte offsets are meaningless then
+     */
+    public static SpanIndex build(File xmlFile, String sentenceName) throws IOException {
+        if (XMLParts.isCompressed(xmlFile)) {
+            throw new IOException("Can't index compressed file "+xmlFile.getAbsolutePath()+", it can only be read sequentially.");
+        }
+        long start = System.currentTimeMillis();
+        String encoding = readEncoding(xmlFile);
+        SpanIndex index = new SpanIndex(sentenceName, encoding);
+        boolean splitOnXPath = sentenceName.contains("/");
+        SentencePathMatcher pathMatcher = new SentencePathMatcher(sentenceName);
+        try (InputStream in = new FileInputStream(xmlFile)) {
+            new XMLTagScanner(in, Charset.forName(encoding)).scan(new XMLTagScanner.TagHandler() {
+                private int depth = 0; // depth inside the current subtree, 0 if outside
+                private long begin;
+                private String namespaceContext;
+
+                @Override
+                public void startElement(String name, long beginOffset, String namespaceContext) {
+                    boolean atPath = pathMatcher.push(name);
+                    if (this.depth > 0) {
+                        this.depth++;
+                    } else if (splitOnXPath ? atPath : sentenceName.equals(name)) {
+                        this.depth = 1;
+                        this.begin = beginOffset;
+                        this.namespaceContext = namespaceContext;
+                    }
+                }
+
+                @Override
+                public void endElement(String name, long endOffset) {
+                    if (this.depth > 0 && --this.depth == 0) {
+                        index.add(this.begin, endOffset, this.namespaceContext);
+                    }
+                    pathMatcher.pop();
+                }
+            });
+        }
+        LOGGER.info("Indexed "+index.size()+" subtrees of "+xmlFile.getAbsolutePath()+" in "+(System.currentTimeMillis()-start)+"ms.");
+        return index;
+    }
+
+    private void add(long begin, long end, String namespaceContext) {
+        if (this.size == this.begins.length) {
+            int capacity = this.size * 2;
+            long[] grownBegins = new long[capacity];
+            long[] grownEnds = new long[capacity];
+            int[] grownIds = new int[capacity];
+            System.arraycopy(this.begins, 0, grownBegins, 0, this.size);
+            System.arraycopy(this.ends, 0, grownEnds, 0, this.size);
+            System.arraycopy(this.namespaceContextIds, 0, grownIds, 0, this.size);
+            this.begins = grownBegins;
+            this.ends = grownEnds;
+            this.namespaceContextIds = grownIds;
+        }
+        // contexts hardly ever change in a corpus, so the last one is a good guess
+        int contextId = this.namespaceContexts.size() - 1;
+        if (contextId < 0 || !this.namespaceContexts.get(contextId).equals(namespaceContext)) {
+            contextId = this.namespaceContexts.indexOf(namespaceContext);
+            if (contextId < 0) {
+                this.namespaceContexts.add(namespaceContext);
+                contextId = this.namespaceContexts.size() - 1;
+            }
+        }
+        this.begins[this.size] = begin;
+        this.ends[this.size] = end;
+        this.namespaceContextIds[this.size] = contextId;
+        this.size++;
+    }
+
+    /**
+     * reads the encoding from the xml declaration, defaults to UTF-8.
+     */
+    private static String readEncoding(File xmlFile) throws IOException {
+        byte[] head = new byte[256];
+        int n;
+        try (InputStream in = new FileInputStream(xmlFile)) {
+            n = in.read(head);
+        }
+        if (n <= 0) {
+            return StandardCharsets.UTF_8.name();
+        }
+        String prolog = new String(head, 0, n, StandardCharsets.ISO_8859_1);
+        Matcher m = Pattern.compile("^\\s*<\\?xml[^>]*encoding\\s*=\\s*[\"']([A-Za-z0-9._\\-]+)[\"']").matcher(prolog);
+        if (m.find() && Charset.isSupported(m.group(1))) {
+            return m.group(1);
+        }
+        return StandardCharsets.UTF_8.name();
+    }
+
+    //========================================================================
+    // SIDECAR FILE
+    //========================================================================
+
+    void save(File sidecar, File xmlFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(xmlFile.length());
+            out.writeLong(xmlFile.lastModified());
+            out.writeUTF(this.sentenceName);
+            out.writeUTF(this.encoding);
+            out.writeInt(this.namespaceContexts.size());
+            for (String context : this.namespaceContexts) {
+                out.writeUTF(context);
+            }
+            out.writeInt(this.size);
+            for (int i = 0; i < this.size; i++) {
+                out.writeLong(this.begins[i]);
+                out.writeLong(this.ends[i]);
+                out.writeInt(this.namespaceContextIds[i]);
+            }
+        }
+        LOGGER.info("Saved span index to "+sidecar.getAbsolutePath());
+    }
+
+    /**
+     * @return the index stored in the sidecar or null if it doesn't belong to the given file and sentence name.
+     */
+    static SpanIndex read(File sidecar, File xmlFile, String sentenceName) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != xmlFile.length() || in.readLong() != xmlFile.lastModified()
+                    || !in.readUTF().equals(sentenceName)) {
+                return null;
+            }
+            SpanIndex index = new SpanIndex(sentenceName, in.readUTF());
+            int contexts = in.readInt();
+            for (int i = 0; i < contexts; i++) {
+                index.namespaceContexts.add(in.readUTF());
+            }
+            int size = in.readInt();
+            index.begins = new long[Math.max(size, 1)];
+            index.ends = new long[Math.max(size, 1)];
+            index.namespaceContextIds = new int[Math.max(size, 1)];
+            for (int i = 0; i < size; i++) {
+                index.begins[i] = in.readLong();
+                index.ends[i] = in.readLong();
+                index.namespaceContextIds[i] = in.readInt();
+            }
+            index.size = size;
+            return index;
+        } catch (IOException e) {
+            LOGGER.warning("Couldn't read span index "+sidecar.getAbsolutePath()+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    //========================================================================
+    // ACCESS
+    //========================================================================
+
+    /**
+     * Reads the raw bytes of subtree i from the channel.
+     * @param channel an open channel on the indexed file
+     * @param i index of the subtree
+     * @return the bytes from the start tag to the end tag of the subtree
+     * @throws IOException
+     */
+    byte[] readSpan(FileChannel channel, int i) throws IOException {
+        return this.readSpans(channel, i, i + 1);
+    }
+
+    /**
+     * Reads the raw bytes of the subtrees from to (exclusive) in one go, including anything between them.
+     * Use {@link #getBegin(int)} - {@link #getBegin(int) getBegin(from)} as offset of a subtree in the result.
+     * @param channel an open channel on the indexed file
+     * @param from index of the first subtree
+     * @param to index after the last subtree
+     * @return the bytes from the start tag of subtree from to the end tag of subtree to-1
+     * @throws IOException
+     */
+    byte[] readSpans(FileChannel channel, int from, int to) throws IOException {
+        long begin = this.getBegin(from);
+        long length = this.getEnd(to - 1) - begin;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Subtrees #"+from+" to #"+(to-1)+" are too large to be read at once ("+length+" bytes).");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        long position = begin;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file while reading subtrees #"+from+" to #"+(to-1)+", is the index outdated?");
+            }
+            position += n;
+        }
+        return buffer.array();
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public long getBegin(int i) {
+        checkIndex(i);
+        return this.begins[i];
+    }
+
+    public long getEnd(int i) {
+        checkIndex(i);
+        return this.ends[i];
+    }
+
+    /**
+     * @param i index of the subtree
+     * @return the namespace declarations in scope at subtree i, serialized as xml attributes
+     */
+    public String getNamespaceContext(int i) {
+        checkIndex(i);
+        return this.namespaceContexts.get(this.namespaceContextIds[i]);
+    }
+
+    public String getEncoding() {
+        return this.encoding;
+    }
+
+    public String getSentenceName() {
+        return this.sentenceName;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= this.size) {
+            throw new IndexOutOfBoundsException("Subtree #"+i+" not in index of size "+this.size);
+        }
+    }
+}
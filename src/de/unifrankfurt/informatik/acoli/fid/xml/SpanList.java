@@ -0,0 +1,67 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * SpanList stores the begin and end of many subtrees in two growable primitive arrays, 16 bytes per subtree
+ * instead of a {@link SubtreeGenerator.Span} object with two boxed fields each. Offsets are longs, so event
+ * indices and byte offsets of files with more than {@link Integer#MAX_VALUE} events are fine.
+ */
+class SpanList {
+
+    private long[] begins;
+    private long[] ends;
+    private int size;
+
+    SpanList() {
+        this.begins = new long[1024];
+        this.ends = new long[1024];
+    }
+
+    void add(long begin, long end) {
+        if (this.size == this.begins.length) {
+            int capacity = this.size + (this.size >> 1);
+            if (capacity < 0 || capacity > Integer.MAX_VALUE - 8) {
+                capacity = Integer.MAX_VALUE - 8;
+                if (this.size == capacity) {
+                    throw new IllegalStateException("Too many spans.");
+                }
+            }
+            this.begins = Arrays.copyOf(this.begins, capacity);
+            this.ends = Arrays.copyOf(this.ends, capacity);
+        }
+        this.begins[this.size] = begin;
+        this.ends[this.size] = end;
+        this.size++;
+    }
+
+    long getBegin(int i) {
+        if (i >= this.size) {
+            throw new IndexOutOfBoundsException("Span "+i+" of "+this.size);
+        }
+        return this.begins[i];
+    }
+
+    long getEnd(int i) {
+        if (i >= this.size) {
+            throw new IndexOutOfBoundsException("Span "+i+" of "+this.size);
+        }
+        return this.ends[i];
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the spans as objects, for the public API of {@link SubtreeGenerator}
+     */
+    ArrayList<SubtreeGenerator.Span> toSpans(SubtreeGenerator generator) {
+        ArrayList<SubtreeGenerator.Span> spans = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            spans.add(generator.new Span(this.begins[i], this.ends[i]));
+        }
+        return spans;
+    }
+}
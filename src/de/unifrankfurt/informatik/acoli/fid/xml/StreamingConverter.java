@@ -0,0 +1,198 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import javax.xml.stream.XMLStreamConstants;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * StreamingConverter converts sentences while they are parsed, without building a DOM or a subtree of the whole
+ * sentence. It works for templates whose word path only depends on the ancestors of a word and whose columns only
+ * look at the word, its descendants or the attributes of its ancestors, see {@link #supports(Template)}.
+ * <p>
+ * A {@link CompactSubtree} holds the open elements of the sentence (without text) and the words that are still
+ * open. When a word ends, all its columns are known: its row is evaluated and written, then the word is removed
+ * from the tree again. Memory therefore depends on the size of a word and the depth of the document, not on the
+ * size of a sentence, so even documents without any sentence structure are converted in constant memory.
+ * Rows of nested words are written in document order, like {@link XML2CoNLL} does. Rows are appended to a
+ * {@link CoNLLSink} directly, which does the buffering.
+ */
+class StreamingConverter {
+
+    private final static Logger LOGGER = Logger.getLogger(StreamingConverter.class.getName());
+
+    private final XML2CoNLL x2c;
+    private final SimplePath wordPath;
+    private final CompactSubtree tree = new CompactSubtree();
+    private final CoNLLRow row; // reused for all words that are written as soon as they end
+
+    // state of the current sentence
+    private int[] openNodes = new int[64]; // tree nodes of the open elements
+    private int[] openWords = new int[64]; // row index of the open elements, -1 for elements that are no words
+    private int depth;
+    private int wordDepth; // number of open words
+    private final ArrayList<CoNLLRow> rows = new ArrayList<>(); // rows not written yet, null while their word is open
+    private int firstRow; // row index of rows.get(0)
+
+    /**
+     * @param template a template that is supported, see {@link #supports(Template)}
+     */
+    StreamingConverter(Template template) {
+        this.x2c = new XML2CoNLL(template);
+        if (!supports(template)) {
+            throw new IllegalArgumentException("Template #"+template.getId()+" can't be converted while streaming.");
+        }
+        this.wordPath = template.wordSimplePath;
+        this.row = new CoNLLRow(template.rowLayout, 0);
+    }
+
+    /**
+     * @param template a compiled template
+     * @return true, if the template can be converted without building subtrees
+     */
+    static boolean supports(Template template) {
+        if (!template.supportsCompactSubtrees() || !template.wordSimplePath.isDecidableAtStart()) {
+            return false;
+        }
+        for (SimplePath path : template.columnSimplePaths.values()) {
+            if (path != null && !path.isDecidableAtEnd()) {
+                return false;
+            }
+        }
+        for (SimplePath path : template.featureSimplePaths.values()) {
+            if (!path.isDecidableAtEnd()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see XML2CoNLL#getValueDictionaryReport()
+     */
+    String getValueDictionaryReport() {
+        return this.x2c.getValueDictionaryReport();
+    }
+
+    /**
+     * converts the next sentence of the generator.
+     * @param sg a streaming subtree generator
+     * @param out where the rows are written to
+     * @param delimiter written after the sentence
+     * @return false, if there are no more sentences
+     * @throws IOException if the rows can't be written
+     */
+    boolean convertNext(SubtreeGenerator sg, CoNLLSink out, String delimiter) throws IOException {
+        if (!sg.nextSubtreeRoot()) {
+            return false;
+        }
+        this.convertSubtree(sg, out, delimiter);
+        return true;
+    }
+
+    /**
+     * converts the sentence whose root the generator was moved to by {@link SubtreeGenerator#nextSubtreeRoot()}.
+     * @param sg
+     * @param out
+     * @param delimiter
+     * @throws IOException if the rows can't be written
+     */
+    void convertSubtree(SubtreeGenerator sg, CoNLLSink out, String delimiter) throws IOException {
+        this.tree.clear();
+        this.depth = 0;
+        this.wordDepth = 0;
+        this.rows.clear();
+        this.firstRow = 0;
+        try {
+            boolean complete = sg.readSubtreeEvents(cursor -> {
+                try {
+                    this.add(cursor, out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // the listener can't throw, unwrapped below
+                }
+            });
+            if (!complete) {
+                LOGGER.warning("Sentence is incomplete, "+(this.firstRow + this.rows.size())+" words were read.");
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.append(delimiter);
+    }
+
+    private void add(XMLCursor cursor, CoNLLSink out) throws IOException {
+        switch (cursor.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                cursor.copyEventTo(this.tree);
+                int node = this.tree.size() - 1;
+                int row = -1;
+                if (this.wordPath.selects(this.tree, node)) {
+                    row = this.firstRow + this.rows.size();
+                    this.rows.add(null);
+                    this.wordDepth++;
+                }
+                this.push(node, row);
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                cursor.copyEventTo(this.tree);
+                this.depth--;
+                int closed = this.openNodes[this.depth];
+                int closedRow = this.openWords[this.depth];
+                if (closedRow >= 0) {
+                    this.wordDepth--;
+                    if (closedRow == this.firstRow) {
+                        // no open word before it, so the row can be written right away
+                        this.row.reset(closedRow);
+                        this.x2c.fillRow(this.row, this.tree, closed);
+                        this.row.appendTo(out);
+                        out.append('\n');
+                        this.rows.remove(0);
+                        this.firstRow++;
+                    } else {
+                        this.rows.set(closedRow - this.firstRow, this.x2c.transformToCoNLL(this.tree, closed, closedRow));
+                    }
+                    this.writeCompleteRows(out);
+                }
+                if (this.wordDepth == 0) {
+                    // neither a word nor inside of one, nothing will look at it anymore
+                    this.tree.removeLast(closed);
+                }
+                break;
+            default:
+                // text is only needed inside of words
+                if (this.wordDepth > 0) {
+                    cursor.copyEventTo(this.tree);
+                }
+        }
+    }
+
+    private void push(int node, int row) {
+        if (this.depth == this.openNodes.length) {
+            this.openNodes = Arrays.copyOf(this.openNodes, this.depth * 2);
+            this.openWords = Arrays.copyOf(this.openWords, this.depth * 2);
+        }
+        this.openNodes[this.depth] = node;
+        this.openWords[this.depth] = row;
+        this.depth++;
+    }
+
+    /**
+     * writes the rows of all words that ended, up to the first word that is still open.
+     */
+    private void writeCompleteRows(CoNLLSink out) throws IOException {
+        int written = 0;
+        while (written < this.rows.size() && this.rows.get(written) != null) {
+            this.rows.get(written).appendTo(out);
+            out.append('\n');
+            written++;
+        }
+        if (written == this.rows.size()) {
+            this.rows.clear();
+        } else {
+            this.rows.subList(0, written).clear();
+        }
+        this.firstRow += written;
+    }
+}
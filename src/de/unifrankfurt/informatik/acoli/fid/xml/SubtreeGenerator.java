@@ -3,52 +3,60 @@ package de.unifrankfurt.informatik.acoli.fid.xml;
 import org.apache.commons.io.FileUtils;
 import org.w3c.dom.Document;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.stream.*;
 import javax.xml.stream.events.XMLEvent;
-import javax.xml.transform.dom.DOMResult;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Stack;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import static de.unifrankfurt.informatik.acoli.fid.xml.Utils.stack2Path;
-
 
 /**
  * SubtreeGenerator should be used to read in any .xml file that represents a corpus. It splits up a xml file of
  * arbitrary size into subtrees with a previously specified name. (e.g.: each sentence subtree).
  * Evaluates the xml lazily, thus saving significantly on memory. Also hold's a few service functions for
  * optional use.
+ * In streaming mode the file is read only once: each subtree is built while reading and handed out as soon
+ * as its closing tag arrives, instead of collecting all span indices in a first pass.
+ * With a {@link SpanIndex} single subtrees can be read directly by their byte offsets, see {@link #getSubtrees(List)}.
  * @author lglaser
  *
  */
 public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 
 	public class Span implements Comparable<Span> {
-		private Integer begin;
-		private Integer end;
+		private long begin; // -1 if not set
+		private long end;
 
 		Span() {
-			this.begin = null;
-			this.end = null;
+			this(-1, -1);
+		}
+
+		Span(long begin, long end) {
+			this.begin = begin;
+			this.end = end;
 		}
 
 		public boolean isComplete() {
-			return this.begin != null && this.end != null;
+			return this.begin >= 0 && this.end >= 0;
 		}
 
 		@Override
 		public int compareTo(Span o) {
-			return this.begin - o.begin;
+			return Long.compare(this.begin, o.begin);
 		}
 
 		@Override
@@ -60,12 +68,28 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 	private final static Logger LOGGER = Logger.getLogger(SubtreeGenerator.class.getName());
 	private String sentenceName;
 	private File file;
-	private XMLEventReader xmlReader;
-	private int indexOfNextXMLEvent; // this will always represent the index of the item next will return
-	private int currentSpanIndex;
-	private ArrayList<Span> subtreeSpans;
-	private Stack<String> XPATHSTACK;
+	private XMLCursor cursor;
+	private XMLCursor.Name sentenceRootName; // sentenceName, if it isn't a path
+	private long currentSpanIndex; // streaming mode counts subtrees without storing them, so it may exceed an int
+	private SpanList subtreeSpans; // event indices of all subtrees, collected on demand
+	private SentencePathMatcher pathMatcher; // matches sentenceName, if it is a path
 	private boolean SPLIT_ON_XPATH = false;
+	private boolean streaming = false;
+	private Document lookahead; // streaming mode: the subtree next() will return, if already read
+	private boolean exhausted; // streaming mode: no more subtrees in the file
+	private boolean atSubtreeRoot; // streaming mode: nextSubtreeRoot() found a root whose events weren't read yet
+	private boolean useSpanIndex = false;
+	private SpanIndex spanIndex;
+	private boolean reservoirSampling = true;
+	private Long seed; // null for non-reproducible sampling
+	private boolean checkpointing = false;
+	private ArrayList<String> openTags; // checkpointing: start tags of the open elements around the next subtree
+	private long subtreeCharOffset; // checkpointing: char offset of the root of the last subtree read
+	private long charOffsetShift; // added to the char offsets of the cursor after resuming
+	private long resumeCharOffset = -1; // char and byte offset the cursor was resumed at, -1 if read from the start
+	private long resumeByteOffset = -1;
+	private Checkpoint.ByteOffsets byteOffsets;
+	private boolean byteOffsetsUnavailable;
 
 
 	public SubtreeGenerator(String sentenceName, String filePath) throws FileNotFoundException{
@@ -101,26 +125,43 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 	}
 
 	/**
-	 * Initializes the XMLReader directly with a file.
+	 * @param sentenceName name or path of the subtree root elements
+	 * @param file the xml file
+	 * @param streaming if true, subtrees are emitted in a single pass while reading, see {@link #setStreaming(boolean)}
+	 * @throws FileNotFoundException
+	 */
+	public SubtreeGenerator(String sentenceName, File file, boolean streaming) throws FileNotFoundException {
+		this(sentenceName, file);
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Initializes the XMLCursor directly with a file.
 	 * @param file
 	 * @throws XMLStreamException
 	 * @throws FileNotFoundException
 	 */
 	private void initialize(File file) throws XMLStreamException, FileNotFoundException{
-		Reader xml = new FileReader(file);
-		XMLInputFactory staxFactory = XMLInputFactory.newInstance();
-		staxFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
-		XMLEventReader staxReader = staxFactory.createXMLEventReader( xml );
-		this.setXmlReader(staxReader);
-		this.indexOfNextXMLEvent = 0;
+		if (this.cursor != null) {
+			this.cursor.close();
+		}
+		this.setCursor(XMLCursor.open(file));
 		this.currentSpanIndex = 0;
-		this.XPATHSTACK = new Stack<>();
+		this.pathMatcher = null;
+		this.lookahead = null;
+		this.exhausted = false;
+		this.atSubtreeRoot = false;
+		this.resetCheckpointState();
 		if (this.sentenceName.contains("/")) {
 			this.SPLIT_ON_XPATH = true;
+			this.pathMatcher = new SentencePathMatcher(this.sentenceName);
+		} else {
+			this.sentenceRootName = XMLCursor.Name.parse(this.sentenceName);
 		}
 	}
+
 	/**
-	 * Sets up the XMLEventReader and sets it as an object variable.
+	 * Sets up the XMLCursor and sets it as an object variable.
 	 * @throws FileNotFoundException
 	 * @throws XMLStreamException
 	 */
@@ -128,41 +169,42 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 		this.initialize(this.file);
 	}
 
+	/**
+	 * collects the spans of all subtrees as indices of the events of the reader. A subtree root nested in another
+	 * one is part of the outer subtree.
+	 * @param staxReader
+	 * @return
+	 * @deprecated the generator reads with an {@link XMLCursor}, whose event indices are shifted by one,
+	 * use {@link #collectSubtreeIndices(XMLCursor)}.
+	 */
+	@Deprecated
 	public ArrayList<Span> collectSubtreeIndices(XMLEventReader staxReader) {
 		ArrayList<Span> spanIndices = new ArrayList<>();
-		int i = 0;
+		SentencePathMatcher pathMatcher = new SentencePathMatcher(this.sentenceName); // own matcher, so a streaming pass stays intact
+		long i = 0;
+		int depth = 0; // depth inside the current subtree, 0 if outside
 		Span span = new Span();
 		while (staxReader.hasNext()) {
 			try {
 				XMLEvent next = staxReader.nextEvent();
 				if (next.isStartElement()) {
-					this.XPATHSTACK.push(next.asStartElement().getName().toString());
-					if ((this.SPLIT_ON_XPATH && stack2Path(this.XPATHSTACK).equals(this.sentenceName))
+					pathMatcher.push(next.asStartElement().getName().toString());
+					if (depth > 0) {
+						depth++;
+					} else if ((this.SPLIT_ON_XPATH && pathMatcher.isMatch())
 							|| (!this.SPLIT_ON_XPATH && this.sentenceName.equals(next.asStartElement().getName().toString()))) {
-						if (span.begin != null) {
-							LOGGER.warning("Span " + span + " already has a begin.");
-						}
+						depth = 1;
 						span.begin = i;
 					}
 				}
 				if (next.isEndElement()) {
-					if ((this.SPLIT_ON_XPATH && stack2Path(this.XPATHSTACK).equals(this.sentenceName))
-							|| (!this.SPLIT_ON_XPATH && this.sentenceName.equals(next.asEndElement().getName().toString()))) {
-						if (span.end != null) {
-							LOGGER.warning("Span " + span + " already has an end.");
-						}
+					if (depth > 0 && --depth == 0) {
 						span.end = i;
-						if (span.isComplete()) {
-							LOGGER.finer("Found span [" + span.begin + ", " + span.end + "]");
-							spanIndices.add(span);
-						} else {
-							LOGGER.warning("Overwriting span " + span);
-						}
-
+						LOGGER.finer("Found span [" + span.begin + ", " + span.end + "]");
+						spanIndices.add(span);
 						span = new Span();
-
 					}
-					this.XPATHSTACK.pop();
+					pathMatcher.pop();
 				}
 				i++;
 			} catch (XMLStreamException e) {
@@ -174,6 +216,53 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 		return spanIndices;
 	}
 
+	/**
+	 * collects the spans of all subtrees as indices of the events of the cursor, see {@link XMLCursor#getEventIndex()}.
+	 * @param cursor a cursor at the start of the document
+	 * @return
+	 */
+	public ArrayList<Span> collectSubtreeIndices(XMLCursor cursor) {
+		return this.collectSpans(cursor).toSpans(this);
+	}
+
+	/**
+	 * like {@link #collectSubtreeIndices(XMLCursor)}, but stores the spans in primitive arrays. A subtree root
+	 * nested in another one is part of the outer subtree, as in streaming mode and in the {@link SpanIndex}.
+	 */
+	private SpanList collectSpans(XMLCursor cursor) {
+		SpanList spans = new SpanList();
+		SentencePathMatcher pathMatcher = new SentencePathMatcher(this.sentenceName); // own matcher, so a streaming pass stays intact
+		long begin = -1;
+		int depth = 0; // depth inside the current subtree, 0 if outside
+		try {
+			while (cursor.hasNext()) {
+				cursor.next();
+				long i = cursor.getEventIndex();
+				if (cursor.isStartElement()) {
+					pathMatcher.push(cursor);
+					if (depth > 0) {
+						depth++;
+					} else if ((this.SPLIT_ON_XPATH && pathMatcher.isMatch())
+							|| (!this.SPLIT_ON_XPATH && cursor.hasName(this.sentenceRootName))) {
+						depth = 1;
+						begin = i;
+					}
+				}
+				if (cursor.isEndElement()) {
+					if (depth > 0 && --depth == 0) {
+						LOGGER.finer("Found span [" + begin + ", " + i + "]");
+						spans.add(begin, i);
+					}
+					pathMatcher.pop();
+				}
+			}
+		} catch (XMLStreamException e) {
+			LOGGER.severe("Failed to read XMLEvent at index "+cursor.getEventIndex()+", stopping collection. Aborting. Stacktrace: "+e.getMessage());
+		}
+		LOGGER.info("Collected "+spans.size()+" indices from file.");
+		return spans;
+	}
+
 	/**
 	 * Initializes again, renamed to have things more readable and provide public access
 	 * without BufferedReader argument
@@ -199,20 +288,43 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 		if (this.subtreeSpans != null) {
 			return this.subtreeSpans.size();
 		}
+		// while streaming we must not move the shared reader, so the spans are collected with a reader of their own.
+		if (this.streaming) {
+			try (XMLCursor spanCursor = XMLCursor.open(this.file)) {
+				this.subtreeSpans = this.collectSpans(spanCursor);
+			} catch (XMLStreamException | FileNotFoundException e) {
+				LOGGER.severe("Unable to collect the subtree indices. Stacktrace: "+e.getMessage());
+				this.subtreeSpans = new SpanList();
+			}
+			return this.subtreeSpans.size();
+		}
 		// otherwise we compute the documentLength and save it for later use.
 		else {
-			this.subtreeSpans = this.collectSubtreeIndices(this.getXmlReader());
+			this.subtreeSpans = this.collectSpans(this.getCursor());
 		}
 		this.reset(); // reset reader to beginning
 		return this.subtreeSpans.size();
 	}
 
 	/**
-	 * TODO: document
+	 * Draws k subtrees uniformly at random, returned in document order. Depending on the configuration
+	 * the samples are read via the span index, with reservoir sampling in a single pass (default),
+	 * or by collecting all span indices first and then reading the sampled spans.
+	 * Resets the generator.
 	 * @param k
 	 * @return
 	 */
 	public ArrayList<Document> getSamples(Integer k) {
+		if (k < 0) {
+			LOGGER.warning("Negative sample size ("+k+"), sampling nothing.");
+			return new ArrayList<>();
+		}
+		if (this.useSpanIndex && this.getSpanIndex() != null) {
+			return this.getSamplesFromSpanIndex(k);
+		}
+		if (this.reservoirSampling) {
+			return this.getReservoirSamples(k);
+		}
 		this.reset();
 		int doclen = this.getDocumentLength();
 		if (k > doclen) {
@@ -224,10 +336,9 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 			ArrayList<Integer> sampleIndices = createSampleIndices(k);
 			Collections.sort(sampleIndices);
 			for (Integer sampleIndex : sampleIndices) {
-				Span sampleSpan = this.getSubtreeSpans().get(sampleIndex);
-				LOGGER.fine("Sampling of subtree #"+sampleIndex+": "+sampleSpan);
-				this.skipToBeginOf(sampleSpan);
-				Document sampled = this.collectSubtree(sampleSpan);
+				LOGGER.fine("Sampling of subtree #"+sampleIndex+": ["+this.subtreeSpans.getBegin(sampleIndex)+", "+this.subtreeSpans.getEnd(sampleIndex)+"]");
+				this.skipToBeginOf(this.subtreeSpans.getBegin(sampleIndex));
+				Document sampled = this.collectSubtree(this.subtreeSpans.getBegin(sampleIndex), this.subtreeSpans.getEnd(sampleIndex));
 				samples.add(sampled);
 			}
 		} catch (IllegalArgumentException e){
@@ -245,8 +356,18 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 	 * @return
 	 */
 	ArrayList<Integer> createSampleIndices(Integer k){
-		int max = this.getSubtreeSpans().size();
-		ArrayList<Integer> sampleIndices = ThreadLocalRandom.current()
+		return createSampleIndices(k, this.getDocumentLength(), this.createRandom());
+	}
+
+	/**
+	 * creates k distinct random indices between 0 and max.
+	 * @param k
+	 * @param max
+	 * @param random
+	 * @return
+	 */
+	static ArrayList<Integer> createSampleIndices(Integer k, int max, Random random){
+		ArrayList<Integer> sampleIndices = random
 				.ints(0, max)
 				.distinct().limit(k).boxed()
 				.collect(Collectors.toCollection(ArrayList::new));
@@ -254,56 +375,358 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 	}
 
 
-	private void skipToBeginOf(Span target) {
-		XMLEventReader xmlReader = this.getXmlReader();
-		int indexBeforeSkipping = this.indexOfNextXMLEvent;
-		LOGGER.fine("Skipping to begin of span from "+indexBeforeSkipping+", target span: "+target);
-		// i < target.begin so we don't touch the element that will want to write to the DOM
-		for (int i = indexBeforeSkipping; i < target.begin; i++){
-			xmlReader.next();
-			this.indexOfNextXMLEvent++;
-			//System.out.println("Skipped to "+next+" at index "+this.indexOfNextXMLEvent);
+	/**
+	 * Reservoir sampling (Algorithm R): picks k subtrees uniformly in a single streaming pass. Whether a subtree
+	 * enters the reservoir is decided at its start tag, so only the DOMs of at most k subtrees are held
+	 * in memory and all others are skipped without building one.
+	 * @param k
+	 * @return the sampled subtrees in document order
+	 */
+	private ArrayList<Document> getReservoirSamples(Integer k) {
+		this.reset();
+		Random random = this.createRandom();
+		// grown while filled, k may be far larger than the corpus
+		ArrayList<Document> reservoir = new ArrayList<>();
+		ArrayList<Integer> reservoirIndices = new ArrayList<>();
+		int i = 0;
+		while (this.readToNextSubtreeRoot()) {
+			if (i < k) {
+				reservoir.add(this.readSubtreeFrom(true));
+				reservoirIndices.add(i);
+			} else {
+				int slot = random.nextInt(i + 1);
+				if (slot < k) {
+					reservoir.set(slot, this.readSubtreeFrom(true));
+					reservoirIndices.set(slot, i);
+				} else {
+					this.readSubtreeFrom(false);
+				}
+			}
+			i++;
+		}
+		this.reset();
+		if (i < k) {
+			LOGGER.info("sample size ("+k+") exceedes number of sentences, reducing to corpus size ("+i+").");
 		}
-		this.setXmlReader(xmlReader); // save back
-		LOGGER.fine("Skipped to begin of span, next Event will have index: "+this.indexOfNextXMLEvent +", target span: "+target);
+		ArrayList<Integer> slots = new ArrayList<>();
+		for (int slot = 0; slot < reservoir.size(); slot++) {
+			slots.add(slot);
+		}
+		slots.sort((a, b) -> Integer.compare(reservoirIndices.get(a), reservoirIndices.get(b)));
+		ArrayList<Document> samples = new ArrayList<>();
+		for (Integer slot : slots) {
+			LOGGER.fine("Sampled subtree #"+reservoirIndices.get(slot));
+			samples.add(reservoir.get(slot));
+		}
+		return samples;
 	}
 
+	private Random createRandom() {
+		return this.seed == null ? ThreadLocalRandom.current() : new Random(this.seed);
+	}
 
+	/**
+	 * samples k subtrees by seeking directly to their byte offsets in the span index.
+	 * @param k
+	 * @return
+	 */
+	private ArrayList<Document> getSamplesFromSpanIndex(Integer k) {
+		int doclen = this.getSpanIndex().size();
+		if (k > doclen) {
+			LOGGER.info("sample size ("+k+") exceedes number of sentences, reducing to corpus size ("+doclen+").");
+			k = doclen;
+		}
+		ArrayList<Integer> sampleIndices = createSampleIndices(k, doclen, this.createRandom());
+		Collections.sort(sampleIndices);
+		return this.getSubtrees(sampleIndices);
+	}
 
-	//========================================================================
-	// SUBTREE PARSING
-	//========================================================================
+	/**
+	 * Draws up to max subtrees uniformly at random, a batch at a time, for sequential sampling: the batches drawn so
+	 * far are always a uniform sample. With a span index only the drawn subtrees are read. Otherwise max subtrees are
+	 * sampled in one pass, see {@link ReservoirBatches}, but only the DOMs of the first prefetch subtrees handed out are
+	 * built in it. The others are read in a second pass, and only if their batches are requested.
+	 * Resets the generator.
+	 * @param batchSize number of subtrees per batch, the last batch may be smaller
+	 * @param max maximum number of subtrees drawn, reduced to the number of subtrees
+	 * @param prefetch number of subtrees that are certainly requested, e.g. the minimum sample size
+	 * @return the batches, in no particular order within a batch
+	 */
+	public Iterator<ArrayList<Document>> getSampleBatches(int batchSize, int max, int prefetch) {
+		Random random = this.createRandom();
+		SpanIndex index = this.useSpanIndex ? this.getSpanIndex() : null;
+		if (index == null) {
+			return new ReservoirBatches(Math.max(1, batchSize), Math.max(1, max), prefetch, random);
+		}
+		int size = Math.min(max, index.size());
+		return new Iterator<ArrayList<Document>>() {
+			private final HashSet<Integer> drawn = new HashSet<>();
+			private int next = 0;
 
+			@Override
+			public boolean hasNext() {
+				return this.next < size;
+			}
 
-	private Document collectSubtree(Span span){
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		DocumentBuilder db;
-		Document subtree = null;
+			@Override
+			public ArrayList<Document> next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int to = Math.min(size, this.next + Math.max(1, batchSize));
+				ArrayList<Integer> indices = new ArrayList<>();
+				while (indices.size() < to - this.next) {
+					int i = random.nextInt(index.size());
+					if (this.drawn.add(i)) {
+						indices.add(i);
+					}
+				}
+				Collections.sort(indices);
+				this.next = to;
+				return getSubtrees(indices);
+			}
+		};
+	}
 
-		XMLEventReader current = this.getXmlReader(); // retrieve the Reader in it's current state
-		try {
-			db = dbf.newDocumentBuilder();
-			subtree = db.newDocument();
+	/**
+	 * The batches of {@link #getSampleBatches(int, int, int)} without a span index. The subtrees are sampled like
+	 * {@link #getReservoirSamples(Integer)} does, and the order in which the slots of the reservoir are handed out is
+	 * shuffled while they are filled (inside-out Fisher-Yates), so it is fixed once the reservoir is full. Then only
+	 * the subtrees that land in one of the first prefetch slots of that order are built while sampling, all others are
+	 * skipped and just numbered. Slots whose DOMs weren't built are read together in a second pass, once a batch
+	 * needs one of them.
+	 */
+	private class ReservoirBatches implements Iterator<ArrayList<Document>> {
+		private final int batchSize;
+		// grown while filled, max may be far larger than the corpus
+		private final ArrayList<Document> reservoir = new ArrayList<>();
+		private final ArrayList<Integer> reservoirIndices = new ArrayList<>(); // number of the subtree in each slot
+		private final ArrayList<Boolean> pending = new ArrayList<>(); // slots whose subtrees weren't built yet
+		private final ArrayList<Integer> order = new ArrayList<>(); // slots in the order they are handed out
+		private int next = 0;
+
+		ReservoirBatches(int batchSize, int max, int prefetch, Random random) {
+			this.batchSize = batchSize;
+			boolean[] prefetched = null; // per slot, once the order is fixed
+			reset();
+			int i = 0;
+			while (readToNextSubtreeRoot()) {
+				int slot;
+				boolean build;
+				if (i < max) {
+					slot = i;
+					int position = random.nextInt(i + 1);
+					this.order.add(position, slot);
+					// slots are only moved back by later ones, so a slot that isn't prefetched now never will be
+					build = position < prefetch;
+				} else {
+					if (prefetched == null) {
+						prefetched = new boolean[max];
+						for (int position = 0; position < Math.min(prefetch, max); position++) {
+							prefetched[this.order.get(position)] = true;
+						}
+					}
+					slot = random.nextInt(i + 1);
+					build = slot < max && prefetched[slot];
+				}
+				if (slot < max) {
+					Document subtree = build ? readSubtreeFrom(true) : null;
+					if (slot == this.reservoir.size()) {
+						this.reservoir.add(subtree);
+						this.reservoirIndices.add(i);
+						this.pending.add(!build);
+					} else {
+						this.reservoir.set(slot, subtree);
+						this.reservoirIndices.set(slot, i);
+						this.pending.set(slot, !build);
+					}
+				}
+				if (slot >= max || !build) {
+					readSubtreeFrom(false);
+				}
+				i++;
+			}
+			reset();
+			if (i < max) {
+				LOGGER.info("sample size ("+max+") exceedes number of sentences, reducing to corpus size ("+i+").");
+			}
+		}
 
-			// Using an XMLWriter that writes directly to a DOM Object
-			XMLEventWriter writer;
-			writer = XMLOutputFactory.newInstance().createXMLEventWriter(new DOMResult(subtree));
+		@Override
+		public boolean hasNext() {
+			return this.next < this.order.size();
+		}
 
-			if ((span.begin) != this.indexOfNextXMLEvent) {
-				LOGGER.warning("Beginning to collect from span "+span+" while next element reader will return is "+this.indexOfNextXMLEvent);
+		@Override
+		public ArrayList<Document> next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int to = Math.min(this.order.size(), this.next + this.batchSize);
+			ArrayList<Document> batch = new ArrayList<>();
+			for (int position = this.next; position < to; position++) {
+				int slot = this.order.get(position);
+				if (this.pending.get(slot)) {
+					this.readPending();
+				}
+				batch.add(this.reservoir.get(slot));
 			}
+			this.next = to;
+			return batch;
+		}
 
-			for (int i = span.begin; i <= span.end; i++){
-				XMLEvent next = current.nextEvent();
-				//System.out.println("Trying to write at index "+i+": "+next);
-				writer.add(next);
-				this.indexOfNextXMLEvent++; // update reader index
+		/**
+		 * builds the subtrees of all slots that weren't built yet in a single pass, up to the last of them.
+		 */
+		private void readPending() {
+			ArrayList<Integer> slots = new ArrayList<>();
+			for (int slot = 0; slot < this.pending.size(); slot++) {
+				if (this.pending.get(slot)) {
+					slots.add(slot);
+				}
+			}
+			slots.sort((a, b) -> Integer.compare(this.reservoirIndices.get(a), this.reservoirIndices.get(b)));
+			LOGGER.info("Reading "+slots.size()+" more sampled subtrees.");
+			reset();
+			int i = 0;
+			for (int slot : slots) {
+				int index = this.reservoirIndices.get(slot);
+				while (i < index && readToNextSubtreeRoot()) {
+					readSubtreeFrom(false);
+					i++;
+				}
+				if (i == index && readToNextSubtreeRoot()) {
+					LOGGER.fine("Sampled subtree #"+i);
+					this.reservoir.set(slot, readSubtreeFrom(true));
+					i++;
+				}
+				this.pending.set(slot, false);
+			}
+			reset();
+		}
+	}
 
+	/**
+	 * Reads the subtrees with the given indices directly from the file, using the span index.
+	 * Does not affect the iteration with {@link #next()}.
+	 * @param indices indices of the subtrees in document order, the result has the same order
+	 * @return the subtrees, empty if the file couldn't be indexed
+	 */
+	public ArrayList<Document> getSubtrees(List<Integer> indices) {
+		ArrayList<Document> subtrees = new ArrayList<>();
+		SpanIndex index = this.getSpanIndex();
+		if (index == null) {
+			LOGGER.warning("No span index available for "+this.getFilePath()+", can't access subtrees by index.");
+			return subtrees;
+		}
+		try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+			for (Integer i : indices) {
+				LOGGER.fine("Reading subtree #"+i+" at byte "+index.getBegin(i));
+				subtrees.add(this.parseSpan(index, channel, i));
+			}
+		} catch (IOException e) {
+			LOGGER.severe("Unable to read subtrees from "+this.getFilePath()+": "+e.getMessage());
+		}
+		return subtrees;
+	}
+
+	public Document getSubtree(int i) {
+		ArrayList<Document> subtrees = this.getSubtrees(Collections.singletonList(i));
+		return subtrees.isEmpty() ? null : subtrees.get(0);
+	}
 
+	/**
+	 * parses the bytes of a single subtree into a DOM, see {@link #parseSubtree(byte[], int, int, String, String)}.
+	 */
+	private Document parseSpan(SpanIndex index, FileChannel channel, int i) throws IOException {
+		byte[] span = index.readSpan(channel, i);
+		try {
+			return parseSubtree(span, 0, span.length, index.getNamespaceContext(i), index.getEncoding());
+		} catch (XMLStreamException e) {
+			LOGGER.severe("Unable to parse subtree #"+i+" at byte "+index.getBegin(i)+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * parses the bytes of a single subtree into a DOM. The subtree is wrapped in an element declaring
+	 * all namespaces that are in scope at its position in the file, the wrapper itself is not written.
+	 * @param bytes buffer holding the subtree
+	 * @param offset start of the subtree in the buffer
+	 * @param length length of the subtree in bytes
+	 * @param namespaceContext namespace declarations in scope, see {@link SpanIndex#getNamespaceContext(int)}
+	 * @param encoding encoding of the file
+	 * @return the subtree
+	 * @throws XMLStreamException if the bytes are no well-formed subtree
+	 */
+	static Document parseSubtree(byte[] bytes, int offset, int length, String namespaceContext, String encoding) throws XMLStreamException {
+		InputStream in;
+		try {
+			in = new SequenceInputStream(Collections.enumeration(java.util.Arrays.asList(
+					new ByteArrayInputStream(("<subtree"+namespaceContext+">").getBytes(encoding)),
+					new ByteArrayInputStream(bytes, offset, length),
+					new ByteArrayInputStream("</subtree>".getBytes(encoding)))));
+		} catch (UnsupportedEncodingException e) {
+			throw new XMLStreamException("Unsupported encoding "+encoding, e);
+		}
+		XMLCursor.DOMWriter writer = new XMLCursor.DOMWriter();
+		try (XMLCursor cursor = XMLCursor.open(in, encoding)) {
+			int depth = 0;
+			while (cursor.hasNext()) {
+				cursor.next();
+				if (cursor.isStartElement() && depth++ == 0) {
+					continue; // wrapper
+				}
+				if (cursor.isEndElement() && --depth == 0) {
+					break; // end of wrapper
+				}
+				if (depth > 0) {
+					writer.add(cursor);
+				}
 			}
-			this.setXmlReader(current);
+		}
+		return writer.getDocument();
+	}
+
+	private void skipToBeginOf(long begin) {
+		XMLCursor cursor = this.getCursor();
+		long indexBeforeSkipping = cursor.getEventIndex();
+		LOGGER.fine("Skipping to begin of span from "+indexBeforeSkipping+", target event: "+begin);
+		// stops on the start element of the span, so collectSubtree() can write it to the DOM
+		try {
+			while (cursor.getEventIndex() < begin && cursor.hasNext()) {
+				cursor.next();
+			}
+		} catch (XMLStreamException e) {
+			LOGGER.severe("Failed to skip to event "+begin+" at index "+cursor.getEventIndex()+": "+e.getMessage());
+		}
+		LOGGER.fine("Skipped to begin of span, current event has index: "+cursor.getEventIndex()+", target event: "+begin);
+	}
+
+
+
+	//========================================================================
+	// SUBTREE PARSING
+	//========================================================================
+
+
+	private Document collectSubtree(long begin, long end){
+		Document subtree = null;
+		XMLCursor current = this.getCursor(); // retrieve the cursor in it's current state
+		try {
+			// writes the events directly to a DOM Object
+			XMLCursor.DOMWriter writer = new XMLCursor.DOMWriter();
 
-		}catch (XMLStreamException | ParserConfigurationException e ) {
+			if (begin != current.getEventIndex()) {
+				LOGGER.warning("Beginning to collect from span ["+begin+", "+end+"] while the current event of the reader is "+current.getEventIndex());
+			}
+			writer.add(current);
+			while (current.getEventIndex() < end && current.hasNext()) {
+				current.next();
+				writer.add(current);
+			}
+			subtree = writer.getDocument();
+		} catch (XMLStreamException e) {
 			System.err.println("Unable to collect the subtree with index " + this.currentSpanIndex);
 			e.printStackTrace();
 		}
@@ -311,24 +734,359 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 	}
 	@Override
 	public boolean hasNext() {
+		if (this.streaming) {
+			if (this.lookahead == null && !this.exhausted) {
+				this.lookahead = this.readNextSubtree();
+				this.exhausted = this.lookahead == null;
+			}
+			return this.lookahead != null;
+		}
 		return this.currentSpanIndex < this.getDocumentLength();
 	}
 
-	private void push2Stack(XMLEvent startElement) {
-		this.XPATHSTACK.push(startElement.asStartElement().getName().toString());
+	/**
+	 * Streaming mode: reads forward until the next subtree root is found and writes all of its events
+	 * into a new DOM until the matching closing tag arrives.
+	 * @return the next subtree or null if the end of the file is reached
+	 */
+	private Document readNextSubtree() {
+		return this.readToNextSubtreeRoot() ? this.readSubtreeFrom(true) : null;
+	}
+
+	/**
+	 * reads forward until the start element of the next subtree root, which is the current event of the cursor afterwards.
+	 * @return false if the end of the file is reached
+	 */
+	private boolean readToNextSubtreeRoot() {
+		XMLCursor current = this.getCursor();
+		try {
+			while (current.hasNext()) {
+				current.next();
+				if (current.isStartElement()) {
+					this.push2Stack(current);
+					if (this.isSubtreeRoot(current)) {
+						if (this.checkpointing) {
+							this.subtreeCharOffset = current.getStartingCharOffset();
+						}
+						return true;
+					}
+					if (this.checkpointing) {
+						this.openTags.add(startTag(current));
+					}
+				} else if (current.isEndElement()) {
+					this.popFromStack();
+					if (this.checkpointing && !this.openTags.isEmpty()) {
+						this.openTags.remove(this.openTags.size() - 1);
+					}
+				}
+			}
+		} catch (XMLStreamException e) {
+			LOGGER.severe("Failed to read XMLEvent at index "+current.getEventIndex()+", stopping. Stacktrace: "+e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * reads the remaining events of a subtree up to the closing tag of its root.
+	 * The cursor must be on the start element of the subtree root.
+	 * @param build whether to write the events into a DOM or to just skip them
+	 * @return the subtree, null if it isn't built or the end of the file is reached before it's complete
+	 */
+	private Document readSubtreeFrom(boolean build) {
+		XMLCursor current = this.getCursor();
+		try {
+			if (!build) {
+				current.skipElement();
+				this.popFromStack();
+				return null;
+			}
+			XMLCursor.DOMWriter writer = new XMLCursor.DOMWriter();
+			writer.add(current);
+			int depth = 1; // depth of open elements inside the current subtree
+			while (current.hasNext()) {
+				current.next();
+				writer.add(current);
+				if (current.isStartElement()) {
+					depth++;
+				} else if (current.isEndElement() && --depth == 0) {
+					this.popFromStack();
+					return writer.getDocument();
+				}
+			}
+		} catch (XMLStreamException e) {
+			LOGGER.severe("Failed to read XMLEvent at index "+current.getEventIndex()+", stopping. Stacktrace: "+e.getMessage());
+		}
+		LOGGER.warning("Reached end of file inside an unfinished subtree, dropping it.");
+		return null;
+	}
+
+	/**
+	 * Streaming mode alternative to {@link #hasNext()} and {@link #next()} that doesn't build a DOM: reads the next
+	 * subtree into the given {@link CompactSubtree}, whose arrays are reused for every subtree.
+	 * Must not be mixed with hasNext()/next() on the same generator.
+	 * @param target cleared and filled with the next subtree
+	 * @return false, if the end of the file is reached
+	 */
+	public boolean nextCompact(CompactSubtree target) {
+		if (!this.streaming || this.lookahead != null) {
+			throw new IllegalStateException("Compact subtrees can only be read in streaming mode and not after hasNext().");
+		}
+		if (this.exhausted) {
+			return false;
+		}
+		if (!this.readToNextSubtreeRoot() || !this.readCompactSubtreeFrom(target)) {
+			this.exhausted = true;
+			return false;
+		}
+		this.currentSpanIndex++;
+		return true;
+	}
+
+	/**
+	 * Streaming mode alternative to {@link #nextCompact(CompactSubtree)} that stores nothing: moves the cursor to
+	 * the start of the next subtree root, whose events can then be read by {@link #readSubtreeEvents(Consumer)}.
+	 * Counts as reading the subtree, so a checkpoint taken now resumes at it.
+	 * @return false, if the end of the file is reached
+	 */
+	public boolean nextSubtreeRoot() {
+		if (!this.streaming || this.lookahead != null || this.atSubtreeRoot) {
+			throw new IllegalStateException("Subtree roots can only be read in streaming mode, not after hasNext() and one at a time.");
+		}
+		if (this.exhausted) {
+			return false;
+		}
+		if (!this.readToNextSubtreeRoot()) {
+			this.exhausted = true;
+			return false;
+		}
+		this.atSubtreeRoot = true;
+		this.currentSpanIndex++;
+		return true;
+	}
+
+	/**
+	 * passes every event of the subtree found by {@link #nextSubtreeRoot()} to the listener while it is read,
+	 * from the start of the root to its end. The cursor must not be moved by the listener.
+	 * @param listener
+	 * @return false, if the end of the file is reached before the subtree is complete
+	 */
+	public boolean readSubtreeEvents(Consumer<XMLCursor> listener) {
+		if (!this.atSubtreeRoot) {
+			throw new IllegalStateException("Call nextSubtreeRoot() first.");
+		}
+		this.atSubtreeRoot = false;
+		XMLCursor current = this.getCursor();
+		listener.accept(current);
+		int depth = 1;
+		try {
+			while (current.hasNext()) {
+				current.next();
+				listener.accept(current);
+				if (current.isStartElement()) {
+					depth++;
+				} else if (current.isEndElement() && --depth == 0) {
+					this.popFromStack();
+					return true;
+				}
+			}
+		} catch (XMLStreamException e) {
+			LOGGER.severe("Failed to read XMLEvent at index "+current.getEventIndex()+", stopping. Stacktrace: "+e.getMessage());
+		}
+		LOGGER.warning("Reached end of file inside an unfinished subtree.");
+		this.exhausted = true;
+		return false;
+	}
+
+	/**
+	 * like {@link #readSubtreeFrom(boolean)}, but adds the events to a compact subtree.
+	 * @return false, if the end of the file is reached before the subtree is complete
+	 */
+	private boolean readCompactSubtreeFrom(CompactSubtree target) {
+		XMLCursor current = this.getCursor();
+		target.clear();
+		current.copyEventTo(target);
+		int depth = 1;
+		try {
+			while (current.hasNext()) {
+				current.next();
+				current.copyEventTo(target);
+				if (current.isStartElement()) {
+					depth++;
+				} else if (current.isEndElement() && --depth == 0) {
+					this.popFromStack();
+					return true;
+				}
+			}
+		} catch (XMLStreamException e) {
+			LOGGER.severe("Failed to read XMLEvent at index "+current.getEventIndex()+", stopping. Stacktrace: "+e.getMessage());
+		}
+		LOGGER.warning("Reached end of file inside an unfinished subtree, dropping it.");
+		return false;
+	}
+
+	/**
+	 * checks whether the current start element, already pushed to the stack, is the root of a subtree.
+	 * @param cursor
+	 * @return
+	 */
+	private boolean isSubtreeRoot(XMLCursor cursor) {
+		if (this.SPLIT_ON_XPATH) {
+			return this.pathMatcher.isMatch();
+		}
+		return cursor.hasName(this.sentenceRootName);
+	}
+
+	/**
+	 * the open elements are only tracked to match paths.
+	 */
+	private void push2Stack(XMLCursor startElement) {
+		if (this.SPLIT_ON_XPATH) {
+			this.pathMatcher.push(startElement);
+		}
 	}
 
 	private void popFromStack(){
-		this.XPATHSTACK.pop();
+		if (this.SPLIT_ON_XPATH) {
+			this.pathMatcher.pop();
+		}
 	}
 	public Document next() {
-		Span currentSpan = this.subtreeSpans.get(this.currentSpanIndex);
-		this.skipToBeginOf(currentSpan);
-		Document doc = this.collectSubtree(currentSpan);
+		if (this.streaming) {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException("No more subtrees named "+this.sentenceName+" in "+this.getFilePath());
+			}
+			Document doc = this.lookahead;
+			this.lookahead = null;
+			this.currentSpanIndex++;
+			return doc;
+		}
+		int span = (int) this.currentSpanIndex;
+		this.skipToBeginOf(this.subtreeSpans.getBegin(span));
+		Document doc = this.collectSubtree(this.subtreeSpans.getBegin(span), this.subtreeSpans.getEnd(span));
 		this.currentSpanIndex++;
 		return doc;
 	}
 
+	//========================================================================
+	// CHECKPOINTS
+	//========================================================================
+
+	/**
+	 * If set, the generator keeps track of where the next subtree starts, so {@link #createCheckpoint()} can
+	 * record it. Only for streaming mode, resets the generator.
+	 * @param checkpointing
+	 */
+	public void setCheckpointing(boolean checkpointing) {
+		this.checkpointing = checkpointing;
+		this.reset();
+	}
+
+	private void resetCheckpointState() {
+		this.openTags = this.checkpointing ? new ArrayList<>() : null;
+		this.subtreeCharOffset = -1;
+		this.charOffsetShift = 0;
+		this.resumeCharOffset = -1;
+		this.resumeByteOffset = -1;
+		this.byteOffsetsUnavailable = this.checkpointing && XMLParts.isCompressed(this.file);
+		if (this.byteOffsets != null) {
+			try {
+				this.byteOffsets.close();
+			} catch (IOException e) {
+				// nothing left to do
+			}
+			this.byteOffsets = null;
+		}
+	}
+
+	/**
+	 * the start tag of the current element with its namespace declarations, but without attributes.
+	 */
+	private static String startTag(XMLCursor cursor) {
+		StringBuilder sb = new StringBuilder("<");
+		String prefix = cursor.getPrefix();
+		if (!prefix.isEmpty()) {
+			sb.append(prefix).append(':');
+		}
+		sb.append(cursor.getLocalName());
+		for (int i = 0; i < cursor.getNamespaceCount(); i++) {
+			String nsPrefix = cursor.getNamespacePrefix(i);
+			sb.append(nsPrefix.isEmpty() ? " xmlns" : " xmlns:"+nsPrefix).append("=\"")
+					.append(cursor.getNamespaceURI(i).replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;"))
+					.append('"');
+		}
+		return sb.append('>').toString();
+	}
+
+	/**
+	 * Records the position of the subtree the last call of {@link #nextCompact(CompactSubtree)} or {@link #next()}
+	 * returned. Resuming at the checkpoint returns that subtree again, so it must be taken before the subtree is
+	 * converted. Requires {@link #setCheckpointing(boolean)}.
+	 * @return the checkpoint, without output length and template
+	 */
+	Checkpoint createCheckpoint() {
+		if (!this.checkpointing || this.currentSpanIndex == 0 || this.lookahead != null) {
+			throw new IllegalStateException("Checkpoints need checkpointing and the last subtree read.");
+		}
+		Checkpoint checkpoint = new Checkpoint(this.currentSpanIndex - 1, this.sentenceName);
+		String encoding = this.getCursor().getEncoding();
+		long charOffset = this.subtreeCharOffset + this.charOffsetShift;
+		long byteOffset = -1;
+		if (!this.byteOffsetsUnavailable) {
+			try {
+				if (this.byteOffsets == null) {
+					this.byteOffsets = Checkpoint.ByteOffsets.open(this.file, encoding, this.resumeCharOffset, this.resumeByteOffset);
+				}
+				if (this.byteOffsets != null) {
+					byteOffset = this.byteOffsets.toByteOffset(charOffset);
+				} else {
+					LOGGER.info("Can't compute byte offsets in "+encoding+", resuming will skip the converted subtrees.");
+					this.byteOffsetsUnavailable = true;
+				}
+			} catch (IOException e) {
+				LOGGER.warning("Unable to compute the byte offset of subtree #"+checkpoint.getSentenceIndex()+": "+e.getMessage());
+				this.byteOffsetsUnavailable = true;
+			}
+		}
+		checkpoint.setPosition(byteOffset < 0 ? -1 : charOffset, byteOffset, encoding, this.openTags);
+		return checkpoint;
+	}
+
+	/**
+	 * Streaming mode: continues reading at the subtree of a checkpoint. Seeks directly to its byte offset and
+	 * replays the start tags of its ancestors, or skips all subtrees before it if the offset is unknown.
+	 * @param checkpoint
+	 * @throws IOException if the file can't be read
+	 * @throws XMLStreamException
+	 */
+	public void resumeAt(Checkpoint checkpoint) throws IOException, XMLStreamException {
+		if (!this.streaming) {
+			throw new IllegalStateException("Only streaming generators can be resumed.");
+		}
+		this.initialize();
+		if (checkpoint.getByteOffset() >= 0 && !this.byteOffsetsUnavailable) {
+			String prefix = "<?xml version=\"1.0\" encoding=\""+checkpoint.getEncoding()+"\"?>"+String.join("", checkpoint.getAncestors());
+			FileInputStream in = new FileInputStream(this.file);
+			in.getChannel().position(checkpoint.getByteOffset());
+			this.cursor.close();
+			this.setCursor(XMLCursor.open(new SequenceInputStream(
+					new ByteArrayInputStream(prefix.getBytes(Charset.forName(checkpoint.getEncoding()))), in), null));
+			this.charOffsetShift = checkpoint.getCharOffset() - prefix.length();
+			this.resumeCharOffset = checkpoint.getCharOffset();
+			this.resumeByteOffset = checkpoint.getByteOffset();
+			LOGGER.info("Resuming at subtree #"+checkpoint.getSentenceIndex()+", byte "+checkpoint.getByteOffset()+" of "+this.getFilePath());
+		} else {
+			LOGGER.info("Skipping "+checkpoint.getSentenceIndex()+" converted subtrees of "+this.getFilePath()+"..");
+			for (long i = 0; i < checkpoint.getSentenceIndex(); i++) {
+				if (!this.readToNextSubtreeRoot()) {
+					this.exhausted = true;
+					break;
+				}
+				this.readSubtreeFrom(false);
+			}
+		}
+		this.currentSpanIndex = checkpoint.getSentenceIndex();
+	}
+
 	//========================================================================
 	// ITERATOR, SETTERS AND GETTERS
 	//========================================================================
@@ -338,6 +1096,67 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 		// TODO Auto-generated method stub
 		return this;
 	}
+	/**
+	 * Switches between single-pass streaming and the span based iteration. Resets the generator.
+	 * @param streaming
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+		this.reset();
+	}
+
+	public boolean isStreaming() {
+		return this.streaming;
+	}
+
+	/**
+	 * If set, {@link #getSamples(Integer)} seeks directly to the sampled subtrees using a {@link SpanIndex}
+	 * that is loaded from (or saved to) a sidecar file next to the corpus.
+	 * @param useSpanIndex
+	 */
+	public void setUseSpanIndex(boolean useSpanIndex) {
+		this.useSpanIndex = useSpanIndex;
+	}
+
+	public boolean isUsingSpanIndex() {
+		return this.useSpanIndex;
+	}
+
+	/**
+	 * If set (default), {@link #getSamples(Integer)} uses reservoir sampling in a single pass over the file.
+	 * Otherwise all span indices are collected first and the sampled spans are read in a second pass.
+	 * @param reservoirSampling
+	 */
+	public void setReservoirSampling(boolean reservoirSampling) {
+		this.reservoirSampling = reservoirSampling;
+	}
+
+	public boolean isReservoirSampling() {
+		return this.reservoirSampling;
+	}
+
+	/**
+	 * Fixes the seed of the random generator used for sampling, so samples are reproducible.
+	 * @param seed the seed or null for a different sample each time
+	 */
+	public void setSeed(Long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the byte offset index of all subtrees, built on first access. Null if the file can't be indexed.
+	 */
+	public SpanIndex getSpanIndex() {
+		if (this.spanIndex == null) {
+			try {
+				this.spanIndex = SpanIndex.load(this.file, this.sentenceName);
+			} catch (IOException e) {
+				LOGGER.warning("Unable to index "+this.getFilePath()+": "+e.getMessage());
+			}
+		}
+		return this.spanIndex;
+	}
+
 	/**
 	 * @return the filePath
 	 */
@@ -346,21 +1165,25 @@ public class SubtreeGenerator implements Iterable<Document>, Iterator<Document>{
 	}
 
 	/**
-	 * @return the xmlReader
+	 * @return the cursor
 	 */
-	XMLEventReader getXmlReader() {
-		return xmlReader;
+	XMLCursor getCursor() {
+		return cursor;
 	}
 
 	/**
-	 * @param xmlReader the xmlReader to set
+	 * @param cursor the cursor to set
 	 */
-	void setXmlReader(XMLEventReader xmlReader) {
-		this.xmlReader = xmlReader;
+	void setCursor(XMLCursor cursor) {
+		this.cursor = cursor;
 	}
 
 
+	/**
+	 * @return the spans of all subtrees as event indices, null if they weren't collected yet, see
+	 * {@link #getDocumentLength()}. Creates a new list of Span objects on every call.
+	 */
 	public ArrayList<Span> getSubtreeSpans() {
-		return subtreeSpans;
+		return this.subtreeSpans == null ? null : this.subtreeSpans.toSpans(this);
 	}
 }
@@ -29,6 +29,16 @@ public class Template {
 	public transient XPathExpression wordXPath;
 	public transient LinkedHashMap<String, XPathExpression> columnXPaths;
 	public transient LinkedHashMap<String, XPathExpression> featureXPaths;
+	// paths that can be evaluated on a CompactSubtree, null if at least one path is not supported.
+	transient SimplePath wordSimplePath;
+	transient LinkedHashMap<String, SimplePath> columnSimplePaths;
+	transient LinkedHashMap<String, SimplePath> featureSimplePaths;
+	// the same per path, for DOM nodes: null for paths that need XPath.
+	transient SimplePath directWordPath;
+	transient LinkedHashMap<String, SimplePath> directColumnPaths;
+	transient LinkedHashMap<String, SimplePath> directFeaturePaths;
+	// order of the values in the rows, as in columnXPaths and featureXPaths
+	transient CoNLLRow.Layout rowLayout;
 
 	/**
 	 * empty constructor for gson serialization
@@ -70,6 +80,24 @@ public class Template {
 		}
 	}
 
+	/**
+	 * Copy constructor, copies all paths but not the compiled XPaths. Since compiled XPaths must not be
+	 * shared between threads, each thread should compile its own copy.
+	 * @param other
+	 */
+	public Template(Template other) {
+		this.id = other.id;
+		this.description = other.description;
+		this.chunkPath = other.chunkPath;
+		this.sentencePath = other.sentencePath;
+		this.wordPath = other.wordPath;
+		if (other.columnPaths != null) {
+			this.columnPaths = new LinkedHashMap<>(other.columnPaths);
+		}
+		if (other.featurePaths != null) {
+			this.featurePaths = new LinkedHashMap<>(other.featurePaths);
+		}
+	}
 
 	/**
 	 * throws together all values from the extraction template and returns
@@ -227,5 +255,60 @@ public class Template {
 			}
 
 		}
+		this.rowLayout = new CoNLLRow.Layout(this.columnXPaths.keySet(),
+				this.featureXPaths == null ? Collections.emptySet() : this.featureXPaths.keySet());
+		this.compileSimplePaths();
+	}
+
+	/**
+	 * compiles every path that was compiled into an XPath into a {@link SimplePath} as well, if it is supported.
+	 * Unsupported paths are null in the direct maps and left to JAXP. Only if all paths are supported, the
+	 * template can be evaluated on {@link CompactSubtree}s.
+	 */
+	private void compileSimplePaths() {
+		this.wordSimplePath = null;
+		this.columnSimplePaths = null;
+		this.featureSimplePaths = null;
+		this.directWordPath = null;
+		this.directColumnPaths = new LinkedHashMap<>();
+		this.directFeaturePaths = new LinkedHashMap<>();
+		boolean allSupported = true;
+		if (this.wordXPath != null) {
+			SimplePath word = SimplePath.compile(this.wordPath);
+			if (word != null && word.selectsElements()) {
+				this.directWordPath = word;
+			}
+		}
+		allSupported &= this.directWordPath != null;
+		if (this.columnXPaths != null) {
+			for (Map.Entry<String, XPathExpression> e : this.columnXPaths.entrySet()) {
+				SimplePath column = e.getValue() == null ? null : SimplePath.compile(this.columnPaths.get(e.getKey()));
+				this.directColumnPaths.put(e.getKey(), column);
+				allSupported &= e.getValue() == null || column != null; // FEATS has no path
+			}
+		}
+		if (this.featureXPaths != null) {
+			for (String feature : this.featureXPaths.keySet()) {
+				SimplePath path = SimplePath.compile(this.featurePaths.get(feature));
+				this.directFeaturePaths.put(feature, path);
+				allSupported &= path != null;
+			}
+		}
+		int direct = (int) (this.directColumnPaths.values().stream().filter(Objects::nonNull).count()
+				+ this.directFeaturePaths.values().stream().filter(Objects::nonNull).count());
+		LOGGER.fine("Template #"+this.id+": "+direct+" of "+(this.directColumnPaths.size()+this.directFeaturePaths.size())
+				+" column and feature paths are evaluated directly, the others by XPath.");
+		if (allSupported) {
+			this.wordSimplePath = this.directWordPath;
+			this.columnSimplePaths = this.directColumnPaths;
+			this.featureSimplePaths = this.directFeaturePaths;
+		}
+	}
+
+	/**
+	 * @return true, if the template is compiled and all of its paths can be evaluated on a {@link CompactSubtree}
+	 */
+	public boolean supportsCompactSubtrees() {
+		return this.wordSimplePath != null;
 	}
 }
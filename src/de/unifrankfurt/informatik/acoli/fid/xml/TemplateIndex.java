@@ -0,0 +1,122 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import javax.xml.stream.XMLStreamConstants;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * TemplateIndex is built once from the loaded templates and maps the sentence element names and the attribute names
+ * ("@name") of their columns and features to the templates that use them. It finds the sentence name of a file
+ * in a single scan, and selects the templates worth scoring against a sample: a template that uses none of the
+ * attribute names of the sample has no recall and can't be the best match.
+ */
+class TemplateIndex {
+
+    private final static Logger LOGGER = Logger.getLogger(TemplateIndex.class.getName());
+
+    private final List<Template> templates;
+    private final int size;
+    private final ArrayList<String> sentenceNames; // in the order they used to be probed
+    private final HashMap<String, ArrayList<Integer>> sentenceNamesByLocalName = new HashMap<>();
+    private final XMLCursor.Name[] parsedSentenceNames;
+    private final HashMap<String, int[]> templatesByAttributeName = new HashMap<>();
+
+    /**
+     * @param templates the templates, ids are their positions in the list
+     */
+    TemplateIndex(List<Template> templates) {
+        this.templates = templates;
+        this.size = templates.size();
+        HashSet<String> sentenceNames = new HashSet<>();
+        HashMap<String, ArrayList<Integer>> postings = new HashMap<>();
+        for (int t = 0; t < templates.size(); t++) {
+            sentenceNames.add(templates.get(t).getSentencePath());
+            for (String path : templates.get(t).getAllPaths()) {
+                postings.computeIfAbsent(path, p -> new ArrayList<>()).add(t);
+            }
+        }
+        postings.remove("text()"); // not an attribute, see TemplateQuality
+        for (String path : postings.keySet()) {
+            this.templatesByAttributeName.put(path, postings.get(path).stream().mapToInt(Integer::intValue).toArray());
+        }
+        this.sentenceNames = new ArrayList<>(sentenceNames);
+        this.parsedSentenceNames = new XMLCursor.Name[this.sentenceNames.size()];
+        for (int i = 0; i < this.parsedSentenceNames.length; i++) {
+            this.parsedSentenceNames[i] = XMLCursor.Name.parse(this.sentenceNames.get(i));
+            this.sentenceNamesByLocalName.computeIfAbsent(this.parsedSentenceNames[i].getLocalName(), n -> new ArrayList<>()).add(i);
+        }
+    }
+
+    /**
+     * @return true, if the index was built from this list of templates and the list wasn't resized since
+     */
+    boolean isFor(List<Template> templates) {
+        return this.templates == templates && this.size == templates.size();
+    }
+
+    /**
+     * Finds the sentence names of the templates that occur in the file, reading it only once and only until all
+     * have been seen. If several occur, the one is returned that the converters used to pick by probing the
+     * names one after another.
+     * @param xmlFile
+     * @return the sentence name or null, if none occurs
+     */
+    String findSentenceName(File xmlFile) {
+        boolean[] found = new boolean[this.sentenceNames.size()];
+        int missing = found.length;
+        try (XMLCursor cursor = XMLCursor.open(xmlFile)) {
+            while (missing > 0 && cursor.hasNext()) {
+                if (cursor.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                ArrayList<Integer> candidates = this.sentenceNamesByLocalName.get(cursor.getLocalName());
+                if (candidates == null) {
+                    continue;
+                }
+                for (int i : candidates) {
+                    if (!found[i] && cursor.hasName(this.parsedSentenceNames[i])) {
+                        found[i] = true;
+                        missing--;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace(); // keep the names found so far
+        }
+        for (int i = found.length - 1; i >= 0; i--) {
+            if (found[i]) {
+                return this.sentenceNames.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Selects the templates that use at least one attribute name of the sample. The others have a recall of 0,
+     * so they are only needed if every template does: if no template is selected, or if a subtree without attributes
+     * makes every recall NaN, all templates are returned.
+     * @param samples the attribute names of the sample
+     * @return the ids of the templates to score, in ascending order
+     */
+    int[] selectCandidates(AttributeNameSets samples) {
+        BitSet candidates = new BitSet(this.size);
+        for (String name : samples.getNames()) {
+            int[] ids = this.templatesByAttributeName.get(name);
+            if (ids != null) {
+                for (int id : ids) {
+                    candidates.set(id);
+                }
+            }
+        }
+        if (candidates.isEmpty() || samples.hasSubtreeWithoutAttributes()) {
+            candidates.set(0, this.size);
+        }
+        LOGGER.fine("Selected "+candidates.cardinality()+" of "+this.size+" templates for scoring.");
+        return candidates.stream().toArray();
+    }
+}
@@ -4,7 +4,11 @@ import org.w3c.dom.Document;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -21,8 +25,12 @@ public class TemplateMatcher {
 	ArrayList<Template> templates;
 	ArrayList<Document> subtrees;
 	TreeSet<TemplateQuality> matches;
+	private ExecutorService executor; // null to score in the calling thread
+	private TemplateIndex index;
 	private final static Logger LOGGER =
 			Logger.getLogger(TemplateMatcher.class.getName());
+	// templates scored by one task, scoring a single template against a sample takes microseconds
+	private final static int TEMPLATES_PER_TASK = 16;
 	
 	public TemplateMatcher(ArrayList<Template> templates, ArrayList<Document> subtrees){
 		this.templates = templates;
@@ -55,24 +63,109 @@ public class TemplateMatcher {
 		this.matches = new TreeSet<>();
 	}
 	
+	/**
+	 * Scores the templates in parallel on the executor. The executor is not shut down by the matcher.
+	 * @param executor or null to score in the calling thread
+	 */
+	public void setExecutor(ExecutorService executor){
+		this.executor = executor;
+	}
+
+	/**
+	 * Scores the templates against the subtrees. Null subtrees are ignored. Only the templates that the
+	 * {@link TemplateIndex} selects as candidates for the sample are scored, the others can't be the best match.
+	 * The qualities are added in the order of the templates, so of templates with equal qualities the first is kept,
+	 * no matter which thread scored it.
+	 */
 	public void calculateQualities(){
 		TreeSet<TemplateQuality> matches = new TreeSet<>();
-		for (Template template : templates){
-			matches.add(new TemplateQuality(template, this.subtrees));
+		if (!templates.isEmpty()){
+			// the attribute names of the subtrees are the same for every template
+			AttributeNameSets samples = new AttributeNameSets(this.subtrees);
+			int[] candidates = this.getIndex().selectCandidates(samples);
+			if (this.executor == null || candidates.length <= TEMPLATES_PER_TASK){
+				for (int t : candidates){
+					matches.add(new TemplateQuality(templates.get(t), samples));
+				}
+			} else {
+				ArrayList<Future<TemplateQuality[]>> tasks = new ArrayList<>();
+				for (int from = 0; from < candidates.length; from += TEMPLATES_PER_TASK){
+					int[] batch = Arrays.copyOfRange(candidates, from, Math.min(candidates.length, from + TEMPLATES_PER_TASK));
+					tasks.add(this.executor.submit(() -> {
+						TemplateQuality[] qualities = new TemplateQuality[batch.length];
+						for (int i = 0; i < qualities.length; i++){
+							qualities[i] = new TemplateQuality(templates.get(batch[i]), samples);
+						}
+						return qualities;
+					}));
+				}
+				for (Future<TemplateQuality[]> task : tasks){
+					matches.addAll(Arrays.asList(waitFor(task)));
+				}
+			}
+			LOGGER.fine("Scored "+candidates.length+" of "+templates.size()+" templates against "+samples.size()+" subtrees.");
 		}
 		this.matches = matches;
 	}
 
+	/**
+	 * @return the index of the templates, built on first use and again if the templates were replaced or resized
+	 */
+	TemplateIndex getIndex(){
+		if (this.index == null || !this.index.isFor(this.templates)){
+			this.index = new TemplateIndex(this.templates);
+		}
+		return this.index;
+	}
+
+	private static TemplateQuality[] waitFor(Future<TemplateQuality[]> task){
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while scoring templates.", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to score templates: "+e.getCause().getMessage(), e.getCause());
+		}
+	}
+
 	public TemplateQuality getTemplateQuality(int i){
 		return (TemplateQuality) this.matches.toArray()[this.matches.size()-(i+1)];
 	}
+	/**
+	 * Finds the best template without scoring all templates completely, see {@link #getBestTemplateQualities}.
+	 * Afterwards only the best match is in the ranking.
+	 * @param subtrees
+	 * @return the same template and quality as the last of the full ranking
+	 */
 	public TemplateQuality getBestTemplateQuality(ArrayList<Document> subtrees){
-		this.subtrees = subtrees;
-		calculateQualities();
+		getBestTemplateQualities(subtrees, 1);
 		TemplateQuality bestMatch = matches.last();
 		//LOGGER.info("Best match was: \n"+bestMatch);
 		return bestMatch;
 	}
+
+	/**
+	 * Finds the k best templates with a {@link TopKTemplateSelector}: templates are dropped as soon as the bounds
+	 * of their recall show that they can't be among the k best anymore. If a subtree without attributes makes the
+	 * recall NaN, the templates are scored completely instead. Either way the result is the same as the last k of
+	 * the full ranking of {@link #calculateQualities()}, which is replaced by these k.
+	 * @param subtrees the sample, null entries are ignored
+	 * @param k
+	 * @return the best templates with their qualities, the best first
+	 */
+	public List<TemplateQuality> getBestTemplateQualities(ArrayList<Document> subtrees, int k){
+		this.subtrees = subtrees;
+		AttributeNameSets samples = new AttributeNameSets(this.subtrees);
+		if (templates.isEmpty() || samples.hasSubtreeWithoutAttributes()){
+			calculateQualities();
+			return new ArrayList<>(this.matches.descendingSet()).subList(0, Math.min(k, this.matches.size()));
+		}
+		int[] candidates = this.getIndex().selectCandidates(samples);
+		List<TemplateQuality> best = new TopKTemplateSelector(this.executor).select(templates, candidates, samples, k);
+		this.matches = new TreeSet<>(best);
+		return best;
+	}
 	public Template getBestTemplate(){
 		if (matches.size() == 0){
 			calculateQualities();
@@ -1,11 +1,7 @@
 package de.unifrankfurt.informatik.acoli.fid.xml;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
 
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.util.*;
 
 public class TemplateQuality implements Comparable<TemplateQuality>{
@@ -33,14 +29,34 @@ public class TemplateQuality implements Comparable<TemplateQuality>{
 		
 	}
 	
+	/**
+	 * @param template
+	 * @param documents the sample, null entries are ignored
+	 */
 	TemplateQuality(Template template, ArrayList<Document> documents){
 		this.template = template;
-		Document[] removeA = {null};
-		ArrayList<Document> remove = new ArrayList<>(Arrays.asList(removeA));
-		documents.removeAll(remove);
 		this.quality = calculateQuality(documents);
 	}
+
+	/**
+	 * Doesn't modify the samples, so templates can be scored against them concurrently.
+	 * @param template
+	 * @param samples the attribute names of the sample, shared by all templates that are compared
+	 */
+	TemplateQuality(Template template, AttributeNameSets samples){
+		this.template = template;
+		this.quality = calculateQuality(samples);
+	}
 	
+	/**
+	 * @param template
+	 * @param quality as calculated by {@link Scores}
+	 */
+	TemplateQuality(Template template, HashMap<String, Float> quality){
+		this.template = template;
+		this.quality = quality;
+	}
+
 	/**
 	 * @return the quality
 	 */
@@ -75,89 +91,122 @@ public class TemplateQuality implements Comparable<TemplateQuality>{
 	 * @return
 	 */
 	HashMap<String, Float> calculateQuality(ArrayList<Document> documents){
-		HashMap<String, Float> qualities = new HashMap<>();
-		HashSet<String> templateValues = this.template.getAllPaths();
-		// TODO: quickfix since text content was too hard to retrieve from xml as a path
-		templateValues.remove("text()");
-		qualities.put("accuracy",calculateAccuracy(templateValues, documents));
-		qualities.put("precision",calculatePrecision(templateValues, documents));
-		qualities.put("recall",calculateRecall(templateValues,documents));
-		return qualities;
-
-		
+		return calculateQuality(new AttributeNameSets(documents));
 	}
+
 	/**
-	 * Calculates the accuracy.
-	 * Accuracy is defined as
-	 * |{relevant documents} intersect {retrieved documents}| + true negatives  /
-	 * |{retrieved documents}| + |{retrieved documents} intersect {relevant documents}| + true negatives
-	 * @param templateValues
-	 * @param documents
+	 * Same as {@link #calculateQuality(ArrayList)} for the attribute names of the samples, which are extracted
+	 * only once for all templates. With the attribute names of a document as relevant and the paths of the template
+	 * as retrieved items, the qualities are averaged over all documents:
+	 * <ul>
+	 * <li>accuracy: |relevant intersect retrieved| + true negatives / |relevant union retrieved| + true negatives,
+	 * there are no true negatives</li>
+	 * <li>precision: |relevant intersect retrieved| / |retrieved|</li>
+	 * <li>recall: |relevant intersect retrieved| / |relevant|</li>
+	 * </ul>
+	 * @param samples
 	 * @return
 	 */
-	Float calculateAccuracy(HashSet<String> templateValues, ArrayList<Document> documents){
-		HashSet<String> retrievedSource = new HashSet<>(templateValues);
-		float accuracy = 0.0000f;
-		for (Document document : documents){
-			HashSet<String> relevantSource = getAllAttributeNames(document); // source of the relevant items since we have to copy them multiple times
-
-			// |{relevant documents} intersect {retrieved documents}| + true negatives 
-			HashSet<String> relevant = new HashSet<>(relevantSource);
-			HashSet<String> retrieved = new HashSet<>(retrievedSource);
-			relevant.retainAll(retrieved);
-			float tp = (float) relevant.size() + 0; // 0 since we never have true negatives;
-			// |{retrieved documents}| + |{retrieved documents} intersect {relevant documents}| + true negatives
-
-			relevant = new HashSet<>(relevantSource);
-			retrieved = new HashSet<>(retrievedSource);
-			relevant.addAll(retrieved);
-			float n = (float) relevant.size();
-			accuracy += tp/n;
-		}
-		return accuracy/documents.size();
+	HashMap<String, Float> calculateQuality(AttributeNameSets samples){
+		Scores scores = new Scores(this.template, samples);
+		scores.score(samples.size());
+		return scores.getQualities();
 	}
-	
+
 	/**
-	 * Calculates the precision.
-	 * Precision is defined as 
-	 * |{relevant documents} intersect {retrieved documents}|  /
-	 * |{retrieved documents}|
-	 * @param templateValues
-	 * @param documents
-	 * @return
+	 * The sums of accuracy, precision and recall of a template over the subtrees of a sample, as
+	 * {@link #calculateQuality(AttributeNameSets)} calculates them, but added one subtree after another. Partially
+	 * scored templates can be compared by the bounds of their recall, see {@link TopKTemplateSelector}.
 	 */
-	Float calculatePrecision(HashSet<String> templateValues, ArrayList<Document> documents){
-		HashSet<String> retrieved = new HashSet<>(templateValues);
-		float precision = 0.0000f;
-		float cardinalityRetrieved = (float) retrieved.size(); // |{retrieved documents}|
-		for (Document document : documents){
-			HashSet<String> relevant = getAllAttributeNames(document);
-			relevant.retainAll(retrieved); // {relevant documents} intersect {retrieved documents}
-			precision += relevant.size()/cardinalityRetrieved; 
+	static class Scores {
+		private final Template template;
+		private final AttributeNameSets samples;
+		private final long[] retrieved;
+		private final int cardinality; // |{retrieved documents}|
+		private int scored;
+		private float accuracy = 0.0000f;
+		private float precision = 0.0000f;
+		private float recall = 0.0000f;
+
+		Scores(Template template, AttributeNameSets samples){
+			this.template = template;
+			this.samples = samples;
+			HashSet<String> templateValues = template.getAllPaths();
+			// TODO: quickfix since text content was too hard to retrieve from xml as a path
+			templateValues.remove("text()");
+			this.retrieved = samples.encode(templateValues);
+			this.cardinality = templateValues.size();
 		}
-		return precision/documents.size(); // avg.
-	}
-	
-	/**
-	 * Calculates the recall.
-	 * Precision is defined as 
-	 * |{relevant documents} intersect {retrieved documents}|  /
-	 * |{relevant documents}|
-	 * @param templateValues
-	 * @param documents
-	 * @return
-	 */
-	Float calculateRecall(HashSet<String> templateValues, ArrayList<Document> documents){
-		HashSet<String> retrieved = new HashSet<>(templateValues);
-		Float recall = 0.0000f;
-		for (Document document : documents){
-			HashSet<String> relevant = getAllAttributeNames(document);
-			Float cardinalityRetrieved = (float) relevant.size(); // |{relevant documents}|
-			relevant.retainAll(retrieved); // {relevant documents} intersect {retrieved documents}
-			recall += relevant.size()/cardinalityRetrieved; 
-		
+
+		/**
+		 * adds the subtrees up to the given one (exclusive), in their order.
+		 */
+		void score(int to){
+			float cardinalityRetrieved = (float) this.cardinality;
+			for (; this.scored < to; this.scored++){
+				int relevant = this.samples.getSize(this.scored);
+				int shared = this.samples.countShared(this.scored, this.retrieved); // |{relevant documents} intersect {retrieved documents}|
+				this.accuracy += (float) shared / (float) (relevant + this.cardinality - shared);
+				this.precision += shared / cardinalityRetrieved;
+				this.recall += shared / (float) relevant;
+			}
+		}
+
+		/**
+		 * @param document a subtree of the sample
+		 * @param quality "accuracy", "precision" or "recall"
+		 * @return the quality of the template on the single subtree, as it is added to the sums
+		 */
+		float getSubtreeQuality(int document, String quality){
+			int relevant = this.samples.getSize(document);
+			int shared = this.samples.countShared(document, this.retrieved);
+			switch (quality){
+				case "accuracy":
+					return (float) shared / (float) (relevant + this.cardinality - shared);
+				case "precision":
+					return shared / (float) this.cardinality;
+				case "recall":
+					return shared / (float) relevant;
+				default:
+					throw new IllegalArgumentException("Unknown quality "+quality);
+			}
+		}
+
+		Template getTemplate(){
+			return this.template;
+		}
+
+		/**
+		 * @return the names of the template that occur in the sample, encoded by {@link AttributeNameSets}
+		 */
+		long[] getRetrieved(){
+			return this.retrieved;
+		}
+
+		/**
+		 * @return number of subtrees added
+		 */
+		int getScored(){
+			return this.scored;
+		}
+
+		/**
+		 * @return the recall summed over the subtrees added so far
+		 */
+		float getRecallSum(){
+			return this.recall;
+		}
+
+		/**
+		 * @return the qualities averaged over all subtrees of the sample, once all have been added
+		 */
+		HashMap<String, Float> getQualities(){
+			HashMap<String, Float> qualities = new HashMap<>();
+			qualities.put("accuracy", this.accuracy/this.samples.size());
+			qualities.put("precision", this.precision/this.samples.size());
+			qualities.put("recall", this.recall/this.samples.size());
+			return qualities;
 		}
-		return recall/documents.size(); // avg.
 	}
 
 	/**
@@ -166,21 +215,9 @@ public class TemplateQuality implements Comparable<TemplateQuality>{
 	 * @return
 	 */
 	HashSet<String> getAllAttributeNames(Document document){
-		XPathFactory xPath = XPathFactory.newInstance();
-		try{
-		NodeList atts = (NodeList) xPath.newXPath().compile("//@*").evaluate(document, XPathConstants.NODESET);
 		HashSet<String> attributes = new HashSet<>();
-
-		for (int i = 0; i < atts.getLength(); i++){
-			attributes.add("@"+atts.item(i).getLocalName());
-		}
+		AttributeNameSets.collectAttributeNames(document, attributes);
 		return attributes;
-		}
-		catch(XPathExpressionException e){ // when we can't read the subtree we just assume we can't retrieve anything.
-			System.err.println("Couldn't read attributes. "+e.getMessage());
-			return new HashSet<>();
-		}
 	}
 
-
 }
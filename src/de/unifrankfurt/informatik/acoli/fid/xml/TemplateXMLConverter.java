@@ -4,12 +4,16 @@ import org.w3c.dom.Document;
 
 import javax.xml.stream.XMLStreamException;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 public class TemplateXMLConverter {
 
@@ -18,16 +22,34 @@ public class TemplateXMLConverter {
     @Deprecated
     private int n;
     private int k; // TODO: set default
+    private boolean useSpanIndex = false;
+    private Long seed;
+    private int threads = 1;
+    private int pipelineCapacity = 0;
+    private int checkpointInterval = 10000;
+    private int sentenceCacheCapacity = 0;
+    private ExecutorService matchingExecutor;
+    private int sampleBudget = AdaptiveSampler.DEFAULT_MAX_SAMPLE_SIZE;
+    private long sampleTimeBudget = 0;
 
     private final static Logger LOGGER =
             Logger.getLogger(TemplateXMLConverter.class.getName());
-    static private String SYNOPSIS = "synopsis: TemplateXMLConverter -f IN_FILE -t TEMPLATE_PATH [-o OUT_FILE] [-l LENGTH] [-s SAMPLE_SIZE] [--silent]\n"+
+    static private String SYNOPSIS = "synopsis: TemplateXMLConverter -f IN_FILE -t TEMPLATE_PATH [-o OUT_FILE] [-l LENGTH] [-s SAMPLE_SIZE] [-j THREADS] [-q CAPACITY] [--seed SEED] [-c INTERVAL] [-r CACHE] [-b BUDGET] [--resume] [--columnar] [--index] [--silent]\n"+
             "\tIN_FILE       XML file to convert\n"+
             "\tTEMPLATE_PATH path to template json\n"+
             "\tOUT_FILE      default std out, where to write converted conll\n"+
             "\tLENGTH        how many sentences to convert, will fully convert if empty\n"+
             "\tSAMPLE_SIZE   default 10, How many sentences to sample\n"+
+            "\tTHREADS       default 1, score templates and convert the file in parallel shards on this many threads\n"+
+            "\tCAPACITY      convert in a pipeline of reader, THREADS workers and writer with at most CAPACITY sentences in flight\n"+
+            "\tSEED          seed for sampling, makes template matching reproducible\n"+
+            "\tINTERVAL      save a checkpoint next to OUT_FILE every INTERVAL sentences, default 10000 with --resume\n"+
+            "\tCACHE         cache the CoNLL of the last CACHE sentences and write exact repeats from the cache\n"+
+            "\tBUDGET        default "+AdaptiveSampler.DEFAULT_MAX_SAMPLE_SIZE+", sample at most BUDGET sentences to match the templates\n"+
+            "\t--resume      continue an interrupted conversion into OUT_FILE from its last checkpoint\n"+
+            "\t--columnar    write OUT_FILE in the binary columnar format, see ColumnarReader\n"+
             "\t--guess       will ignore the templates and guess one instead\n"+
+            "\t--index       sample via a byte offset index, saved as IN_FILE"+SpanIndex.SUFFIX+" for later runs\n"+
             "\t--silent      no logging output (also not this synopsis!)\n";
 
 
@@ -55,17 +77,135 @@ public class TemplateXMLConverter {
         this.k = k;
     }
 
+    /**
+     * If set, sentences are sampled by seeking to their byte offsets, see {@link SpanIndex}.
+     * The index is created on first use and saved next to the source file.
+     * @param useSpanIndex
+     */
+    public void setUseSpanIndex(boolean useSpanIndex) {
+        this.useSpanIndex = useSpanIndex;
+    }
+
+    /**
+     * Fixes the seed used to sample sentences for template matching and conversion of samples.
+     * @param seed the seed or null for a different sample each run
+     */
+    public void setSeed(Long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the number of threads for full conversions. With more than one thread the file is split into
+     * shards of sentences using its {@link SpanIndex}, which are converted in parallel, see {@link ShardedConverter}.
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * If set, full conversions run in a {@link ConversionPipeline}: one thread reads, the configured number of
+     * threads transforms and the calling thread writes the sentences in their original order. Needs no index.
+     * Files that can't be indexed are converted in a pipeline of default capacity when more than one thread is set.
+     * @param capacity maximum number of sentences read but not yet written, 0 to disable the pipeline
+     */
+    public void setPipelineCapacity(int capacity) {
+        this.pipelineCapacity = Math.max(0, capacity);
+    }
+
+    /**
+     * Sets how often {@link #getFullCoNLL(File, File, Template, boolean)} saves a checkpoint.
+     * @param checkpointInterval number of sentences between two checkpoints
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+    }
+
+    /**
+     * If set, sequential full conversions keep the CoNLL of the last sentences in a {@link SentenceCache} and
+     * write exact repeats from it instead of converting them again. Sentences are then read into subtrees, also
+     * for templates that could be converted while streaming.
+     * @param capacity maximum number of cached sentences, 0 to disable the cache
+     */
+    public void setSentenceCacheCapacity(int capacity) {
+        this.sentenceCacheCapacity = Math.max(0, capacity);
+    }
+
+    /**
+     * Scores the templates against the sample in parallel on the executor, see {@link TemplateMatcher#setExecutor}.
+     * The executor is not shut down by the converter.
+     * @param executor or null to score in the calling thread
+     */
+    public void setMatchingExecutor(ExecutorService executor) {
+        this.matchingExecutor = executor;
+        if (this.tm != null) {
+            this.tm.setExecutor(executor);
+        }
+    }
+
+    /**
+     * Sets the budget of the adaptive sampling that matches the templates, see {@link AdaptiveSampler}.
+     * @param maxSubtrees maximum number of sentences sampled
+     * @param timeBudgetMillis sampling stops after this many milliseconds, 0 for no limit
+     */
+    public void setSampleBudget(int maxSubtrees, long timeBudgetMillis) {
+        this.sampleBudget = Math.max(1, maxSubtrees);
+        this.sampleTimeBudget = Math.max(0, timeBudgetMillis);
+    }
+
+    /**
+     * matches the templates on a sample of the sentences that grows until the best template is certain, see
+     * {@link AdaptiveSampler}.
+     */
+    private TemplateQuality matchTemplate(SubtreeGenerator sg) {
+        AdaptiveSampler sampler = new AdaptiveSampler(this.tm);
+        sampler.setMaxSampleSize(this.sampleBudget);
+        sampler.setTimeBudget(this.sampleTimeBudget);
+        return sampler.match(sg);
+    }
+
+    /**
+     * @return a converter for the template, with a sentence cache if one is configured
+     */
+    private XML2CoNLL createConverter(Template template) {
+        XML2CoNLL x2c = new XML2CoNLL(template);
+        if (this.sentenceCacheCapacity > 0) {
+            x2c.setSentenceCache(new SentenceCache(this.sentenceCacheCapacity));
+        }
+        return x2c;
+    }
+
+    /**
+     * logs the statistics of the value dictionaries and the sentence cache of a converter.
+     */
+    private static void logStatistics(XML2CoNLL x2c) {
+        LOGGER.info(x2c.getValueDictionaryReport());
+        if (x2c.getSentenceCache() != null) {
+            LOGGER.info(x2c.getSentenceCache().toString());
+        }
+    }
+
+    /**
+     * creates a generator configured with the sampling options of this converter.
+     */
+    private SubtreeGenerator createSubtreeGenerator(String sentenceName, File sourceFile) throws FileNotFoundException {
+        SubtreeGenerator sg = new SubtreeGenerator(sentenceName, sourceFile);
+        sg.setUseSpanIndex(this.useSpanIndex);
+        sg.setSeed(this.seed);
+        return sg;
+    }
+
     // TODO: Implement
     public void getSampleOfSizeKSentencesAsCoNLL(File sourceFile, PrintStream outStream, int k) throws FileNotFoundException {
         String sentenceName = findAppropriateSentenceNameInFileFromTemplates(sourceFile, this.templates);
-        SubtreeGenerator sg = new SubtreeGenerator(sentenceName, sourceFile);
+        SubtreeGenerator sg = createSubtreeGenerator(sentenceName, sourceFile);
 
-        TemplateQuality bestMatch = this.tm.getBestTemplateQuality(sg.getSamples(42));
+        TemplateQuality bestMatch = this.matchTemplate(sg);
         this.getSampleOfSizeKSentencesAsCoNLL(sourceFile, outStream, k, bestMatch.getTemplate());
 
     }
     public void getSampleOfSizeKSentencesAsCoNLL(File sourceFile, PrintStream outStream, int k, Template template) throws FileNotFoundException {
-        SubtreeGenerator sg = new SubtreeGenerator(template.getSentencePath(), sourceFile);
+        SubtreeGenerator sg = createSubtreeGenerator(template.getSentencePath(), sourceFile);
         getSampleOfSizeKSentencesAsCoNLL(sg, outStream, k, template);
     }
     public void getSampleOfSizeKSentencesAsCoNLL(SubtreeGenerator sg, PrintStream outStream, int k, Template template) {
@@ -81,9 +221,9 @@ public class TemplateXMLConverter {
         if (sentenceName == null) { // TODO: Move this somewhere else
             LOGGER.info("Could not find matching sentence name in templates for file "+sourceFile.getAbsolutePath() + " with sample size "+this.k+".");
         }
-        SubtreeGenerator sg = new SubtreeGenerator(sentenceName, sourceFile);
+        SubtreeGenerator sg = createSubtreeGenerator(sentenceName, sourceFile);
 
-        TemplateQuality bestMatch = this.tm.getBestTemplateQuality(sg.getSamples(42));
+        TemplateQuality bestMatch = this.matchTemplate(sg);
         this.getFirstKSentencesAsCoNLL(sourceFile, outStream, k, bestMatch.getTemplate());
     }
     public void getFirstKSentencesAsCoNLL(File sourceFile, PrintStream outStream, int k, Template template) throws FileNotFoundException {
@@ -96,78 +236,393 @@ public class TemplateXMLConverter {
         }
         outStream.flush();
     }
-    // TODO: Implement
-    public void getSampleByIndices(File sourceFile, PrintStream outStream, ArrayList<Integer> indices, Template template) {}
-    public void getFullCoNLL(File sourceFile, PrintStream outStream, Template template, boolean newlineBetweenSentence) throws FileNotFoundException {
+    public void getFirstKSentencesAsCoNLL(File sourceFile, CoNLLSink outStream, int k) throws IOException {
+        String sentenceName = findAppropriateSentenceNameInFileFromTemplates(sourceFile, this.templates);
+        if (sentenceName == null) {
+            LOGGER.info("Could not find matching sentence name in templates for file "+sourceFile.getAbsolutePath() + " with sample size "+this.k+".");
+        }
+        SubtreeGenerator sg = createSubtreeGenerator(sentenceName, sourceFile);
+
+        TemplateQuality bestMatch = this.matchTemplate(sg);
+        this.getFirstKSentencesAsCoNLL(sourceFile, outStream, k, bestMatch.getTemplate());
+    }
+    public void getFirstKSentencesAsCoNLL(File sourceFile, CoNLLSink outStream, int k, Template template) throws IOException {
         SubtreeGenerator sg = new SubtreeGenerator(template.getSentencePath(), sourceFile);
-        String delimiter = newlineBetweenSentence? "\n" : "";
         XML2CoNLL x2c = new XML2CoNLL(template);
+        for (int i = 0; i<k; i++) {
+            if (sg.hasNext()) {
+                x2c.appendCoNLLSentence(sg.next(), outStream, "\n");
+            }
+        }
+        outStream.flush();
+    }
+    /**
+     * Converts the sentences with the given indices, in the given order. Seeks directly to each sentence
+     * using the {@link SpanIndex} of the file, which is created if necessary.
+     * @param sourceFile
+     * @param outStream
+     * @param indices indices of the sentences, starting at 0
+     * @param template
+     */
+    public void getSampleByIndices(File sourceFile, PrintStream outStream, ArrayList<Integer> indices, Template template) {
+        SubtreeGenerator sg;
+        try {
+            sg = new SubtreeGenerator(template.getSentencePath(), sourceFile);
+        } catch (FileNotFoundException e) {
+            LOGGER.severe("Couldn't find file "+sourceFile.getAbsolutePath());
+            return;
+        }
+        SpanIndex index = sg.getSpanIndex();
+        if (index == null) {
+            return;
+        }
+        ArrayList<Integer> validIndices = new ArrayList<>();
+        for (Integer i : indices) {
+            if (i >= 0 && i < index.size()) {
+                validIndices.add(i);
+            } else {
+                LOGGER.warning("Skipping sentence index "+i+", file has "+index.size()+" sentences.");
+            }
+        }
+        XML2CoNLL x2c = new XML2CoNLL(template);
+        for (Document document : sg.getSubtrees(validIndices)) {
+            outStream.print(x2c.transformXMLSentenceToCoNLLSentence(document));
+        }
+        outStream.flush();
+    }
+    /**
+     * Converts the entire file in a single streaming pass: each sentence is written as soon as it is read.
+     * @param sourceFile
+     * @param outStream
+     * @param template
+     * @param newlineBetweenSentence
+     * @throws FileNotFoundException
+     */
+    public void getFullCoNLL(File sourceFile, PrintStream outStream, Template template, boolean newlineBetweenSentence) throws FileNotFoundException {
+        CoNLLSink sink = Utils.convertPrintStreamToCoNLLSink(outStream);
+        try {
+            getFullCoNLL(sourceFile, sink, template, newlineBetweenSentence);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            LOGGER.severe("Unable to write the CoNLL of "+sourceFile.getAbsolutePath()+", output is incomplete. Stacktrace:");
+            e.printStackTrace();
+        }
+    }
+    /**
+     * Like {@link #getFullCoNLL(File, PrintStream, Template, boolean)}, but writes to a {@link CoNLLSink}, which
+     * is faster than a PrintStream and reports write errors. The sink is flushed, but not closed.
+     * @param sourceFile
+     * @param outStream
+     * @param template
+     * @param newlineBetweenSentence
+     * @throws IOException if the file can't be found or the CoNLL can't be written
+     */
+    public void getFullCoNLL(File sourceFile, CoNLLSink outStream, Template template, boolean newlineBetweenSentence) throws IOException {
+        SubtreeGenerator sg = new SubtreeGenerator(template.getSentencePath(), sourceFile, true);
+        String delimiter = newlineBetweenSentence? "\n" : "";
+        XML2CoNLL x2c = createConverter(template);
         int progress = 0;
-        outStream.print(x2c.createCommentString(template)+"\n");
+        outStream.append(x2c.createCommentString(template)).append('\n');
+        if (this.pipelineCapacity > 0) {
+            this.convertInPipeline(sg, outStream, template, delimiter, this.pipelineCapacity);
+            return;
+        }
+        if (this.threads > 1) {
+            SpanIndex index = sg.getSpanIndex();
+            if (index != null) {
+                try {
+                    new ShardedConverter(template, this.threads).convert(sourceFile, index, outStream, delimiter);
+                    outStream.flush();
+                    return;
+                } catch (IOException e) {
+                    LOGGER.severe("Parallel conversion of "+sourceFile.getAbsolutePath()+" failed, output is incomplete. Stacktrace:");
+                    e.printStackTrace();
+                    return;
+                }
+            }
+            LOGGER.warning("Couldn't index "+sourceFile.getAbsolutePath()+", converting in a pipeline.");
+            this.convertInPipeline(sg, outStream, template, delimiter, ConversionPipeline.DEFAULT_CAPACITY);
+            return;
+        }
+        if (StreamingConverter.supports(template) && x2c.getSentenceCache() == null) {
+            // no subtrees at all, rows are written as their words end
+            LOGGER.info("Converting with the streaming engine.");
+            StreamingConverter streaming = new StreamingConverter(template);
+            while (streaming.convertNext(sg, outStream, delimiter)) {
+                progress++;
+                if (progress % 100 == 0) {
+                    LOGGER.info(progress+" subtrees processed.");
+                }
+            }
+            outStream.flush();
+            LOGGER.info(streaming.getValueDictionaryReport());
+            return;
+        }
+        if (x2c.supportsCompactSubtrees()) {
+            // no DOM needed, all sentences are read into the same arrays
+            LOGGER.info("Converting with compact subtrees.");
+            CompactSubtree sentence = new CompactSubtree();
+            while (sg.nextCompact(sentence)) {
+                x2c.appendCoNLLSentence(sentence, outStream, delimiter);
+                progress++;
+                if (progress % 100 == 0) {
+                    LOGGER.info(progress+" subtrees processed.");
+                }
+            }
+            outStream.flush();
+            logStatistics(x2c);
+            return;
+        }
+        LOGGER.info("Template #"+template.getId()+" needs full XPath support, converting with DOM subtrees.");
         while (sg.hasNext()) {
-            outStream.print(x2c.transformXMLSentenceToCoNLLSentence(sg.next(), delimiter));
+            x2c.appendCoNLLSentence(sg.next(), outStream, delimiter);
             progress++;
             if (progress % 100 == 0) {
-                LOGGER.info(progress+"/"+sg.getDocumentLength()+" subtrees processed.");
+                LOGGER.info(progress+" subtrees processed.");
             }
         }
         outStream.flush();
+        if (x2c.getSentenceCache() != null) {
+            LOGGER.info(x2c.getSentenceCache().toString());
+        }
+    }
+    /**
+     * Converts the entire file with several templates, each into its own sink, e.g. a token and a chunk layer.
+     * Templates with the same sentence path are converted in a single pass, which parses every sentence only
+     * once, see {@link MultiTemplateConverter}. Threads and pipeline settings are ignored. The sinks are flushed,
+     * but not closed.
+     * @param sourceFile
+     * @param templates
+     * @param outStreams one per template, in the same order
+     * @throws IOException if the file can't be found or the CoNLL can't be written
+     */
+    public void getFullCoNLL(File sourceFile, List<Template> templates, List<CoNLLSink> outStreams) throws IOException {
+        if (outStreams.size() != templates.size()) {
+            throw new IllegalArgumentException("Got "+templates.size()+" templates, but "+outStreams.size()+" outputs.");
+        }
+        for (int t = 0; t < templates.size(); t++) {
+            outStreams.get(t).append(new XML2CoNLL(templates.get(t)).createCommentString(templates.get(t))).append('\n');
+        }
+        new MultiTemplateConverter(templates).convert(sourceFile, outStreams, "\n");
+        for (CoNLLSink outStream : outStreams) {
+            outStream.flush();
+        }
+    }
+
+    /**
+     * Converts the entire file into the binary format of {@link ColumnarWriter} instead of CoNLL text. The conversion
+     * is sequential, threads and pipeline settings are ignored.
+     * @param sourceFile
+     * @param outFile overwritten, read it with {@link ColumnarReader}
+     * @param template
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public void getFullColumnar(File sourceFile, File outFile, Template template) throws IOException {
+        SubtreeGenerator sg = new SubtreeGenerator(template.getSentencePath(), sourceFile, true);
+        XML2CoNLL x2c = new XML2CoNLL(template);
+        boolean compact = x2c.supportsCompactSubtrees();
+        LOGGER.info("Converting to columnar output with "+(compact ? "compact subtrees." : "DOM subtrees."));
+        try (ColumnarWriter out = ColumnarWriter.open(outFile, x2c.getColumnNames())) {
+            CompactSubtree sentence = new CompactSubtree();
+            int progress = 0;
+            while (compact ? sg.nextCompact(sentence) : sg.hasNext()) {
+                if (compact) {
+                    x2c.appendColumnarSentence(sentence, out);
+                } else {
+                    x2c.appendColumnarSentence(sg.next(), out);
+                }
+                progress++;
+                if (progress % 100 == 0) {
+                    LOGGER.info(progress+" subtrees processed.");
+                }
+            }
+        }
+        LOGGER.info(x2c.getValueDictionaryReport());
+    }
+
+    /**
+     * Like {@link #getFullColumnar(File, File, Template)} with the best matching template.
+     * @return false, if no template matches the file
+     */
+    public boolean getFullColumnar(File sourceFile, File outFile) throws IOException {
+        String sentenceName = findAppropriateSentenceNameInFileFromTemplates(sourceFile, this.templates);
+        if (sentenceName == null) {
+            LOGGER.info("Could not find matching sentence name in templates for file "+sourceFile.getAbsolutePath() + " with sample size "+this.k+".");
+            return false;
+        }
+        SubtreeGenerator sg = createSubtreeGenerator(sentenceName, sourceFile);
+        TemplateQuality bestMatch = this.matchTemplate(sg);
+        getFullColumnar(sourceFile, outFile, bestMatch.getTemplate());
+        return true;
+    }
+
+    private void convertInPipeline(SubtreeGenerator sg, CoNLLSink outStream, Template template, String delimiter, int capacity) throws IOException {
+        try {
+            new ConversionPipeline(template, this.threads, capacity).convert(sg, outStream, delimiter);
+        } catch (IOException e) {
+            LOGGER.severe("Pipelined conversion of "+sg.getFilePath()+" failed, output is incomplete. Stacktrace:");
+            e.printStackTrace();
+        }
+        outStream.flush();
+    }
+    /**
+     * Converts the entire file into an output file and saves a {@link Checkpoint} next to it every few sentences,
+     * see {@link #setCheckpointInterval(int)}. With resume, a conversion that was interrupted continues at its last
+     * checkpoint: the output is truncated to the checkpoint and the input read from the first sentence that wasn't
+     * completely written. The checkpoint is deleted once the conversion is complete.
+     * Checkpoints are only written by the sequential conversion, threads and pipeline settings are ignored.
+     * @param sourceFile
+     * @param outFile
+     * @param template
+     * @param resume whether to continue at an existing checkpoint
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public void getFullCoNLL(File sourceFile, File outFile, Template template, boolean resume) throws IOException {
+        File checkpointFile = Checkpoint.getFile(outFile);
+        Checkpoint checkpoint = resume ? Checkpoint.load(checkpointFile) : null;
+        if (resume && checkpoint == null) {
+            LOGGER.info("No checkpoint at "+checkpointFile.getAbsolutePath()+", converting from the beginning.");
+        } else if (checkpoint != null && (!checkpoint.belongsTo(sourceFile, template) || outFile.length() < checkpoint.getOutputLength())) {
+            LOGGER.warning("Checkpoint "+checkpointFile.getAbsolutePath()+" belongs to a different file, template or output, converting from the beginning.");
+            checkpoint = null;
+        }
+        SubtreeGenerator sg = new SubtreeGenerator(template.getSentencePath(), sourceFile, true);
+        sg.setCheckpointing(true);
+        XML2CoNLL x2c = createConverter(template);
+        String delimiter = "\n";
+        if (checkpoint != null) {
+            try (FileChannel channel = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(checkpoint.getOutputLength());
+            }
+            try {
+                sg.resumeAt(checkpoint);
+            } catch (XMLStreamException e) {
+                throw new IOException("Unable to resume at "+checkpoint+": "+e.getMessage(), e);
+            }
+        }
+        try (CoNLLSink outStream = CoNLLSink.open(outFile, checkpoint != null)) {
+            if (checkpoint == null) {
+                outStream.append(x2c.createCommentString(template)).append('\n');
+            }
+            StreamingConverter streaming = StreamingConverter.supports(template) && x2c.getSentenceCache() == null
+                    ? new StreamingConverter(template) : null;
+            boolean compact = x2c.supportsCompactSubtrees();
+            LOGGER.info("Converting with "+(streaming != null ? "the streaming engine." : compact ? "compact subtrees." : "DOM subtrees."));
+            CompactSubtree sentence = new CompactSubtree();
+            int progress = 0;
+            while (streaming != null ? sg.nextSubtreeRoot() : compact ? sg.nextCompact(sentence) : sg.hasNext()) {
+                Document document = streaming != null || compact ? null : sg.next();
+                if (progress > 0 && progress % this.checkpointInterval == 0) {
+                    // everything before the current sentence is written
+                    outStream.flush();
+                    Checkpoint next = sg.createCheckpoint();
+                    next.setOutputLength(outStream.getPosition());
+                    next.setTemplateId(template.getId());
+                    next.save(checkpointFile, sourceFile);
+                    LOGGER.fine("Saved "+next);
+                }
+                if (streaming != null) {
+                    streaming.convertSubtree(sg, outStream, delimiter);
+                } else if (compact) {
+                    x2c.appendCoNLLSentence(sentence, outStream, delimiter);
+                } else {
+                    x2c.appendCoNLLSentence(document, outStream, delimiter);
+                }
+                progress++;
+                if (progress % 100 == 0) {
+                    LOGGER.info(progress+" subtrees processed.");
+                }
+            }
+            if (streaming != null) {
+                LOGGER.info(streaming.getValueDictionaryReport());
+            } else {
+                logStatistics(x2c);
+            }
+        }
+        Files.deleteIfExists(checkpointFile.toPath());
+    }
+
+    /**
+     * Like {@link #getFullCoNLL(File, PrintStream)} with checkpoints, see {@link #getFullCoNLL(File, File, Template, boolean)}.
+     * When resuming, the template of the checkpoint is used instead of matching the templates again.
+     * @return false, if no template matches the file
+     */
+    public boolean getFullCoNLL(File sourceFile, File outFile, boolean resume) throws IOException {
+        Checkpoint checkpoint = resume ? Checkpoint.load(Checkpoint.getFile(outFile)) : null;
+        if (checkpoint != null && checkpoint.getTemplateId() != null) {
+            for (Template template : this.templates) {
+                if (checkpoint.getTemplateId().equals(template.getId())) {
+                    getFullCoNLL(sourceFile, outFile, template, true);
+                    return true;
+                }
+            }
+        }
+        String sentenceName = findAppropriateSentenceNameInFileFromTemplates(sourceFile, this.templates);
+        if (sentenceName == null) {
+            LOGGER.info("Could not find matching sentence name in templates for file "+sourceFile.getAbsolutePath() + " with sample size "+this.k+".");
+            return false;
+        }
+        SubtreeGenerator sg = createSubtreeGenerator(sentenceName, sourceFile);
+        TemplateQuality bestMatch = this.matchTemplate(sg);
+        getFullCoNLL(sourceFile, outFile, bestMatch.getTemplate(), resume);
+        return true;
     }
     public void getFullCoNLL(File sourceFile, PrintStream outStream, Template template) throws FileNotFoundException {
         getFullCoNLL(sourceFile, outStream, template, true);
     }
+    public void getFullCoNLL(File sourceFile, CoNLLSink outStream, Template template) throws IOException {
+        getFullCoNLL(sourceFile, outStream, template, true);
+    }
+    public boolean getFullCoNLL(File sourceFile, CoNLLSink outStream) throws IOException {
+        String sentenceName = findAppropriateSentenceNameInFileFromTemplates(sourceFile, this.templates);
+        if (sentenceName == null) {
+            LOGGER.info("Could not find matching sentence name in templates for file "+sourceFile.getAbsolutePath() + " with sample size "+this.k+".");
+            return false;
+        }
+        SubtreeGenerator sg = createSubtreeGenerator(sentenceName, sourceFile);
+
+        TemplateQuality bestMatch = this.matchTemplate(sg);
+        getFullCoNLL(sourceFile, outStream, bestMatch.getTemplate());
+        return true;
+    }
     public boolean getFullCoNLL(File sourceFile, PrintStream outStream) throws FileNotFoundException {
         String sentenceName = findAppropriateSentenceNameInFileFromTemplates(sourceFile, this.templates);
         if (sentenceName == null) {
             LOGGER.info("Could not find matching sentence name in templates for file "+sourceFile.getAbsolutePath() + " with sample size "+this.k+".");
             return false;
         }
-        SubtreeGenerator sg = new SubtreeGenerator(sentenceName, sourceFile);
+        SubtreeGenerator sg = createSubtreeGenerator(sentenceName, sourceFile);
 
-        TemplateQuality bestMatch = this.tm.getBestTemplateQuality(sg.getSamples(42));
+        TemplateQuality bestMatch = this.matchTemplate(sg);
         getFullCoNLL(sourceFile, outStream, bestMatch.getTemplate());
         return true;
     }
 
+    /**
+     * @return the sentence name of the templates that occurs in the file, found in a single scan with the
+     * {@link TemplateIndex} of the matcher
+     */
     private String findAppropriateSentenceNameInFileFromTemplates(File sourceFile, ArrayList<Template> templates) {
-        HashSet<String> sentenceNameCandidates = templates.stream()
-                .map(Template::getSentencePath)
-                .collect(Collectors.toCollection(HashSet::new));
-
-        String sentenceName = null;
-
-        for (String sentenceNameCandidate : sentenceNameCandidates) {
-            if (XMLSampler.hasNode(sourceFile, sentenceNameCandidate, 500)) { // TODO: parameterize
-                sentenceName = sentenceNameCandidate;
-            }
-        }
-        return sentenceName;
+        TemplateIndex index = this.tm != null && this.tm.templates == templates ? this.tm.getIndex() : new TemplateIndex(templates);
+        return index.findSentenceName(sourceFile);
     }
 
     @Deprecated
     public boolean convertToStream(File sourceFile, PrintStream outStream) throws FileNotFoundException {
-        // get all possible sentence boarders
-        HashSet<String> sentenceNameCandidates = this.templates.stream()
-                .map(Template::getSentencePath)
-                .collect(Collectors.toCollection(HashSet::new));
-
-        String sentenceName = null;
-
-        for (String sentenceNameCandidate : sentenceNameCandidates) {
-            if (XMLSampler.hasNode(sourceFile, sentenceNameCandidate, this.k)) {
-                sentenceName = sentenceNameCandidate;
-            }
-        }
+        String sentenceName = findAppropriateSentenceNameInFileFromTemplates(sourceFile, this.templates);
         if (sentenceName == null) {
             LOGGER.info("Could not find matching sentence name in templates for file "+sourceFile.getAbsolutePath() + " with sample size "+this.k+".");
             return false;
         }
 
         SubtreeGenerator sg = new SubtreeGenerator(sentenceName, sourceFile);
-        ArrayList<Document> sample = sg.getSamples(this.k);
 
         TemplateMatcher tm = new TemplateMatcher(this.templates);
-        TemplateQuality bestMatch = tm.getBestTemplateQuality(sample);
+        tm.setExecutor(this.matchingExecutor);
+        AdaptiveSampler sampler = new AdaptiveSampler(tm);
+        sampler.setMaxSampleSize(this.k);
+        TemplateQuality bestMatch = sampler.match(sg);
 
         TemplateXMLConverter xc = new TemplateXMLConverter();
         xc.parse(sg, outStream, this.n, bestMatch.getTemplate());
@@ -218,27 +673,17 @@ public class TemplateXMLConverter {
         // first, load the templates from disk
         ArrayList<Template> templates = new ArrayList<>(Arrays.asList(Utils.readJSONTemplates(templatePath)));
         // get all possible sentence boarders
-        HashSet<String> sentenceNameCandidates = templates.stream()
-                .map(Template::getSentencePath)
-                .collect(Collectors.toCollection(HashSet::new));
-
-        String sentenceName = null;
-
-        for (String sentenceNameCandidate : sentenceNameCandidates) {
-            if (XMLSampler.hasNode(xmlFile, sentenceNameCandidate, k)) {
-                sentenceName = sentenceNameCandidate;
-            }
-        }
+        String sentenceName = new TemplateIndex(templates).findSentenceName(xmlFile);
         if (sentenceName == null) {
             LOGGER.severe("No Template found with fitting sentenceName for file " + xmlFile);
             System.exit(1);
         }
 
         SubtreeGenerator sg = new SubtreeGenerator(sentenceName, xmlFile);
-        ArrayList<Document> sample = sg.getSamples(k);
 
-        TemplateMatcher tm = new TemplateMatcher(templates);
-        TemplateQuality bestMatch = tm.getBestTemplateQuality(sample);
+        AdaptiveSampler sampler = new AdaptiveSampler(new TemplateMatcher(templates));
+        sampler.setMaxSampleSize(k);
+        TemplateQuality bestMatch = sampler.match(sg);
 
         PrintStream out = outPath == null ? System.out : new PrintStream(new BufferedOutputStream(new FileOutputStream(new File(outPath))));
 
@@ -252,6 +697,15 @@ public class TemplateXMLConverter {
         String templatePath = null;
         String outPath = null;
         boolean guess = false;
+        boolean useSpanIndex = false;
+        Long seed = null;
+        int threads = 1;
+        int capacity = 0;
+        int checkpointInterval = 0;
+        int cacheCapacity = 0;
+        int sampleBudget = AdaptiveSampler.DEFAULT_MAX_SAMPLE_SIZE;
+        boolean resume = false;
+        boolean columnar = false;
         int n = 0;
         int k = 10;
         // First, read in cmd line args
@@ -284,6 +738,39 @@ public class TemplateXMLConverter {
                 case "--guess":
                     guess = true;
                     break;
+                case "--index":
+                    useSpanIndex = true;
+                    break;
+                case "-j":
+                    i++;
+                    threads = Integer.parseInt(args[i]);
+                    break;
+                case "-q":
+                    i++;
+                    capacity = Integer.parseInt(args[i]);
+                    break;
+                case "-c":
+                    i++;
+                    checkpointInterval = Integer.parseInt(args[i]);
+                    break;
+                case "-r":
+                    i++;
+                    cacheCapacity = Integer.parseInt(args[i]);
+                    break;
+                case "-b":
+                    i++;
+                    sampleBudget = Integer.parseInt(args[i]);
+                    break;
+                case "--resume":
+                    resume = true;
+                    break;
+                case "--columnar":
+                    columnar = true;
+                    break;
+                case "--seed":
+                    i++;
+                    seed = Long.parseLong(args[i]);
+                    break;
                 default:
                     break;
             }
@@ -307,31 +794,73 @@ public class TemplateXMLConverter {
             LOGGER.severe("File Not Found: " + templatePath);
             System.exit(1);
         }
-        PrintStream outStream = System.out;
-        if (outPath != null) {
+        boolean checkpoints = resume || checkpointInterval > 0;
+        if (checkpoints && (outPath == null || n > 0)) {
+            LOGGER.severe("Checkpoints need an OUT_FILE and a full conversion.");
+            System.exit(1);
+        }
+        if (columnar && (outPath == null || n > 0 || checkpoints)) {
+            LOGGER.severe("Columnar output needs an OUT_FILE and a full conversion without checkpoints.");
+            System.exit(1);
+        }
+        CoNLLSink outStream = Utils.convertPrintStreamToCoNLLSink(System.out);
+        if (outPath != null && !checkpoints && !columnar) {
             try {
-                outStream = Utils.convertFileToPrintStream(new File(outPath));
-            } catch (FileNotFoundException e) {
-                LOGGER.warning("Couldn't find file "+outPath+", defaulting to System.out");
+                outStream = Utils.convertFileToCoNLLSink(new File(outPath));
+            } catch (IOException e) {
+                LOGGER.warning("Couldn't open file "+outPath+", defaulting to System.out");
             }
         }
-        try {
+        try (CoNLLSink out = outStream) {
             if (guess) {
                 TemplateXMLConverter txc = new TemplateXMLConverter();
+                txc.setUseSpanIndex(useSpanIndex);
+                txc.setSeed(seed);
+                txc.setThreads(threads);
+                txc.setPipelineCapacity(capacity);
+                txc.setSentenceCacheCapacity(cacheCapacity);
                 Template guessedTemplate = TemplateGuesser.guessTemplate(xmlFile, k);
                 LOGGER.info("Guessed Template: \n"+guessedTemplate);
-                if (n <= 0) {
-                    txc.getFullCoNLL(xmlFile, outStream, guessedTemplate);
+                if (checkpoints) {
+                    if (checkpointInterval > 0) {
+                        txc.setCheckpointInterval(checkpointInterval);
+                    }
+                    txc.getFullCoNLL(xmlFile, new File(outPath), guessedTemplate, resume);
+                } else if (columnar) {
+                    txc.getFullColumnar(xmlFile, new File(outPath), guessedTemplate);
+                } else if (n <= 0) {
+                    txc.getFullCoNLL(xmlFile, out, guessedTemplate);
                 } else {
-                    txc.getFirstKSentencesAsCoNLL(xmlFile, outStream, n, guessedTemplate);
+                    txc.getFirstKSentencesAsCoNLL(xmlFile, out, n, guessedTemplate);
                 }
             }
             else {
                 TemplateXMLConverter txc = new TemplateXMLConverter(templatePath);
-                if (n <= 0) {
-                    txc.getFullCoNLL(xmlFile, outStream);
-                } else {
-                    txc.getFirstKSentencesAsCoNLL(xmlFile, outStream, n);
+                txc.setUseSpanIndex(useSpanIndex);
+                txc.setSeed(seed);
+                txc.setThreads(threads);
+                txc.setPipelineCapacity(capacity);
+                txc.setSentenceCacheCapacity(cacheCapacity);
+                txc.setSampleBudget(sampleBudget, 0);
+                ExecutorService matching = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+                txc.setMatchingExecutor(matching);
+                try {
+                    if (checkpoints) {
+                        if (checkpointInterval > 0) {
+                            txc.setCheckpointInterval(checkpointInterval);
+                        }
+                        txc.getFullCoNLL(xmlFile, new File(outPath), resume);
+                    } else if (columnar) {
+                        txc.getFullColumnar(xmlFile, new File(outPath));
+                    } else if (n <= 0) {
+                        txc.getFullCoNLL(xmlFile, out);
+                    } else {
+                        txc.getFirstKSentencesAsCoNLL(xmlFile, out, n);
+                    }
+                } finally {
+                    if (matching != null) {
+                        matching.shutdown();
+                    }
                 }
             }
         } catch (XMLStreamException e ) {
@@ -342,6 +871,10 @@ public class TemplateXMLConverter {
             LOGGER.severe(filePath + "doesn't exist.");
             e.printStackTrace();
             System.exit(1);
+        } catch (IOException e) {
+            LOGGER.severe("Conversion of "+filePath+" failed"+(checkpoints ? ", resume it from its last checkpoint" : "")+". Stacktrace:");
+            e.printStackTrace();
+            System.exit(1);
         }
     }
 
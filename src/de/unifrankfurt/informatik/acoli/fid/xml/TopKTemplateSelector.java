@@ -0,0 +1,182 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * TopKTemplateSelector finds the k best templates for a sample without scoring every template on every subtree.
+ * Templates are compared by recall first. The recall a template adds on a subtree is the sum of 1/|relevant| over
+ * the names it shares with the subtree, so its recall on the subtrees not scored yet is the sum of these weights
+ * over its names, which are summed up once per name and sample. Only the rounding of the float sums, which
+ * {@link TemplateQuality} keeps for compatibility, is unknown until a template is scored. That makes an optimistic and
+ * a pessimistic bound for the final recall of every template, which are the same up to a small relative margin.
+ * <p>
+ * The templates are scored a block of subtrees at a time. Before each block, a template is dropped if k templates
+ * with certainly different recalls are certainly better. The remaining templates are scored completely and ranked like
+ * {@link TemplateMatcher#calculateQualities()} does, so the result is the same as the last k of its ranking. Usually
+ * only templates whose recall ties with one of the k best are left after the first check.
+ */
+class TopKTemplateSelector {
+
+    private final static Logger LOGGER = Logger.getLogger(TopKTemplateSelector.class.getName());
+    // subtrees scored before the bounds are checked again
+    private final static int SUBTREES_PER_BLOCK = 8;
+    private final static int TEMPLATES_PER_TASK = 64;
+
+    private final ExecutorService executor;
+    private AttributeNameSets samples;
+    // per attribute name, the sum of 1/|relevant| over the subtrees from d on that have the name
+    private double[][] recallSums;
+
+    /**
+     * @param executor to score blocks of templates in parallel, or null to score in the calling thread
+     */
+    TopKTemplateSelector(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param templates to choose from
+     * @param candidates the ids of the templates to score, in ascending order
+     * @param samples the attribute names of the sample, no subtree may be without attributes
+     * @param k number of templates to return
+     * @return the k best templates with their qualities, the best first, fewer if there are fewer distinct qualities
+     */
+    List<TemplateQuality> select(List<Template> templates, int[] candidates, AttributeNameSets samples, int k) {
+        this.samples = samples;
+        this.recallSums = new double[samples.getNameCount()][];
+        ArrayList<TemplateQuality.Scores> alive = new ArrayList<>(candidates.length);
+        for (int t : candidates) {
+            alive.add(new TemplateQuality.Scores(templates.get(t), samples));
+        }
+        int n = samples.size();
+        for (int scored = 0; alive.size() > k; ) {
+            alive = this.prune(alive, k);
+            if (scored == n) {
+                break;
+            }
+            scored = Math.min(n, scored + SUBTREES_PER_BLOCK);
+            this.score(alive, scored);
+        }
+        this.score(alive, n);
+        LOGGER.fine("Scored "+alive.size()+" of "+candidates.length+" templates completely.");
+        // in the order of the templates, so of templates with equal qualities the first is kept
+        TreeSet<TemplateQuality> ranking = new TreeSet<>();
+        for (TemplateQuality.Scores scores : alive) {
+            ranking.add(new TemplateQuality(scores.getTemplate(), scores.getQualities()));
+        }
+        ArrayList<TemplateQuality> best = new ArrayList<>(k);
+        for (TemplateQuality quality : ranking.descendingSet()) {
+            if (best.size() == k) {
+                break;
+            }
+            best.add(quality);
+        }
+        return best;
+    }
+
+    private void score(List<TemplateQuality.Scores> alive, int to) {
+        if (this.executor == null || alive.size() <= TEMPLATES_PER_TASK) {
+            for (TemplateQuality.Scores scores : alive) {
+                scores.score(to);
+            }
+            return;
+        }
+        ArrayList<Future<?>> tasks = new ArrayList<>();
+        for (int from = 0; from < alive.size(); from += TEMPLATES_PER_TASK) {
+            List<TemplateQuality.Scores> batch = alive.subList(from, Math.min(alive.size(), from + TEMPLATES_PER_TASK));
+            tasks.add(this.executor.submit(() -> {
+                for (TemplateQuality.Scores scores : batch) {
+                    scores.score(to);
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while scoring templates.", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to score templates: "+e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return the templates that may still be among the k best, in their order
+     */
+    private ArrayList<TemplateQuality.Scores> prune(ArrayList<TemplateQuality.Scores> alive, int k) {
+        double[] lower = new double[alive.size()];
+        double[] upper = new double[alive.size()];
+        Integer[] byLowerBound = new Integer[alive.size()];
+        for (int i = 0; i < alive.size(); i++) {
+            TemplateQuality.Scores scores = alive.get(i);
+            int remaining = this.samples.size() - scores.getScored();
+            // each remaining float addition and division rounds by a relative error of at most 2^-24
+            double margin = (remaining + 4) * 0x1p-22;
+            double sum = scores.getRecallSum() + this.sumRemainingRecall(scores);
+            lower[i] = remaining == 0 ? scores.getRecallSum() : sum * (1 - margin);
+            upper[i] = sum * (1 + margin);
+            byLowerBound[i] = i;
+        }
+        Arrays.sort(byLowerBound, (a, b) -> Double.compare(lower[b], lower[a]));
+        // k templates whose lowest recalls are each above the highest recall of the next one have distinct recalls
+        int found = 0;
+        double threshold = Double.NEGATIVE_INFINITY;
+        for (int i : byLowerBound) {
+            if (found == 0 || upper[i] < threshold) {
+                threshold = lower[i];
+                found++;
+                if (found == k) {
+                    break;
+                }
+            }
+        }
+        if (found < k) {
+            return alive;
+        }
+        ArrayList<TemplateQuality.Scores> remaining = new ArrayList<>();
+        for (int i = 0; i < alive.size(); i++) {
+            if (upper[i] >= threshold) {
+                remaining.add(alive.get(i));
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * @return the sum of recall the template adds on the subtrees it hasn't been scored on, without rounding
+     */
+    private double sumRemainingRecall(TemplateQuality.Scores scores) {
+        double sum = 0;
+        long[] retrieved = scores.getRetrieved();
+        for (int word = 0; word < retrieved.length; word++) {
+            for (long bits = retrieved[word]; bits != 0; bits &= bits - 1) {
+                int name = word << 6 | Long.numberOfTrailingZeros(bits);
+                if (this.recallSums[name] == null) {
+                    this.recallSums[name] = this.sumRecalls(name);
+                }
+                sum += this.recallSums[name][scores.getScored()];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return for each subtree, the sum of 1/|relevant| over it and the following subtrees that have the name
+     */
+    private double[] sumRecalls(int name) {
+        double[] sums = new double[this.samples.size() + 1];
+        for (int d = this.samples.size() - 1; d >= 0; d--) {
+            sums[d] = sums[d + 1] + (this.samples.contains(d, name) ? 1.0 / this.samples.getSize(d) : 0);
+        }
+        return sums;
+    }
+}
@@ -69,6 +69,10 @@ public class Utils {
     }
 
 
+    /**
+     * @deprecated compressed files are read directly, see {@link XMLParts}
+     */
+    @Deprecated
     static public File gunzip(File zippedFile){
         File out = null;
         String filePath = zippedFile.getAbsolutePath();
@@ -92,6 +96,10 @@ public class Utils {
         }
         return out;
     }
+    /**
+     * @deprecated compressed files are read directly, see {@link XMLParts}
+     */
+    @Deprecated
     static public File unzip(File zippedFile){
         File out = null;
         ZipInputStream inputStream = null;
@@ -161,4 +169,24 @@ public class Utils {
     public static PrintStream convertFileToPrintStream(File file) throws FileNotFoundException {
         return new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
     }
+
+    /**
+     * Opens a file for writing UTF-8 CoNLL, see {@link CoNLLSink}. Faster than {@link #convertFileToPrintStream(File)}.
+     * @param file
+     * @return a sink that must be closed once the conversion is done
+     * @throws IOException if the file can't be opened
+     */
+    public static CoNLLSink convertFileToCoNLLSink(File file) throws IOException {
+        return CoNLLSink.open(file, false);
+    }
+
+    /**
+     * Wraps a PrintStream in a {@link CoNLLSink} that buffers the characters and prints them to the stream, so they
+     * are encoded with the encoding of the stream. Flushing the sink flushes the stream.
+     * @param outStream
+     * @return the sink
+     */
+    public static CoNLLSink convertPrintStreamToCoNLLSink(PrintStream outStream) {
+        return new CoNLLSink(outStream, CoNLLSink.DEFAULT_BUFFER_SIZE);
+    }
 }
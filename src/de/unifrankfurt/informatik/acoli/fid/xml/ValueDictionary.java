@@ -0,0 +1,156 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.util.logging.Logger;
+
+/**
+ * ValueDictionary deduplicates the values of one column, e.g. POS tags, lemmas or feature values, which repeat
+ * over and over. Values read from a {@link CompactSubtree} are looked up by their characters, so a value that is
+ * in the dictionary doesn't have to be created as a new String, and all occurrences share the same instance.
+ * <p>
+ * The dictionary is bounded: a value goes into the slot of its hash and evicts the value that was there before, so
+ * frequent values stay while rare ones replace each other. Columns with too many distinct values, like ids or word
+ * forms, would only pay for the lookups. After every {@link #WINDOW} lookups the hit rate of the window is checked,
+ * below {@link #MIN_HIT_RATE} the entries are dropped and the dictionary passes all values through from then on.
+ * Hits and lookups are counted for {@link #toString()}. Not thread safe.
+ */
+class ValueDictionary {
+
+    private final static Logger LOGGER = Logger.getLogger(ValueDictionary.class.getName());
+    final static int DEFAULT_CAPACITY = 1 << 12;
+    final static int WINDOW = 1 << 13;
+    final static double MIN_HIT_RATE = 0.2;
+
+    private final String name;
+    private String[] entries; // null once the column was found to have too many distinct values
+    private int[] hashes;
+    private final int mask;
+    private long lookups;
+    private long hits;
+    private int windowLookups;
+    private int windowHits;
+
+    /**
+     * @param name of the column, for the statistics
+     */
+    ValueDictionary(String name) {
+        this(name, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param name of the column, for the statistics
+     * @param capacity maximum number of values, rounded up to a power of two
+     */
+    ValueDictionary(String name, int capacity) {
+        this.name = name;
+        int size = 16;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new String[size];
+        this.hashes = new int[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * @return the value of the characters, the instance in the dictionary if there is one
+     */
+    String intern(char[] chars, int start, int length) {
+        if (this.entries == null) {
+            return new String(chars, start, length);
+        }
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int slot = spread(hash) & this.mask;
+        String entry = this.entries[slot];
+        if (entry != null && this.hashes[slot] == hash && entry.length() == length && regionEquals(entry, chars, start)) {
+            this.count(true);
+            return entry;
+        }
+        String value = new String(chars, start, length);
+        this.entries[slot] = value;
+        this.hashes[slot] = hash;
+        this.count(false);
+        return value;
+    }
+
+    /**
+     * @return the instance of an equal value in the dictionary, or the value itself, which is then added
+     */
+    String intern(String value) {
+        if (this.entries == null || value == null) {
+            return value;
+        }
+        int hash = value.hashCode();
+        int slot = spread(hash) & this.mask;
+        String entry = this.entries[slot];
+        if (entry != null && this.hashes[slot] == hash && entry.equals(value)) {
+            this.count(true);
+            return entry;
+        }
+        this.entries[slot] = value;
+        this.hashes[slot] = hash;
+        this.count(false);
+        return value;
+    }
+
+    private void count(boolean hit) {
+        this.lookups++;
+        this.windowLookups++;
+        if (hit) {
+            this.hits++;
+            this.windowHits++;
+        }
+        if (this.windowLookups == WINDOW) {
+            if (this.windowHits < WINDOW * MIN_HIT_RATE) {
+                LOGGER.fine("Column "+this.name+" has too many distinct values, not deduplicating it anymore: "+this);
+                this.entries = null;
+                this.hashes = null;
+            }
+            this.windowLookups = 0;
+            this.windowHits = 0;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean regionEquals(String entry, char[] chars, int start) {
+        for (int i = 0; i < entry.length(); i++) {
+            if (entry.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false, if the column has too many distinct values and all values are passed through
+     */
+    boolean isActive() {
+        return this.entries != null;
+    }
+
+    long getLookups() {
+        return this.lookups;
+    }
+
+    long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return the share of lookups that found their value in the dictionary, 0 without lookups
+     */
+    double getHitRate() {
+        return this.lookups == 0 ? 0 : (double) this.hits / this.lookups;
+    }
+
+    @Override
+    public String toString() {
+        return this.name+": "+String.format("%.1f", this.getHitRate()*100)+"% of "+this.lookups+" values found"
+                +(this.isActive() ? "" : " (disabled)");
+    }
+}
@@ -1,11 +1,17 @@
 package de.unifrankfurt.informatik.acoli.fid.xml;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 
 import org.w3c.dom.Document;
@@ -19,6 +25,17 @@ import org.w3c.dom.NodeList;
 public class XML2CoNLL {
 
     private Template template;
+    private CoNLLRow row; // reused for every word written by appendCoNLLSentence()
+    private boolean batched = true;
+    private SimplePath[] batchColumnPaths; // per column of the row layout, null if evaluated word by word
+    private SimplePath[] batchFeaturePaths;
+    private String[][] batchColumnValues; // values of the current sentence, per column and word
+    private String[][] batchFeatureValues;
+    private ValueDictionary[] columnDictionaries; // per column of the row layout, used for compact subtrees
+    private ValueDictionary[] featureDictionaries;
+    private SentenceCache cache; // null if every sentence is converted
+    private final SentenceCache.Hasher hasher = new SentenceCache.Hasher();
+    private final StringBuilder rendered = new StringBuilder(); // CoNLL of a sentence that goes into the cache
     @Deprecated
     private SubtreeGenerator sg;
     private final static Logger LOGGER =
@@ -32,6 +49,8 @@ public class XML2CoNLL {
     public XML2CoNLL(Template template){
         this.template = template;
         this.template.compile();
+        this.compileBatches();
+        this.createDictionaries();
     }
 
     @Deprecated
@@ -39,28 +58,285 @@ public class XML2CoNLL {
         this.sg = sg;
         this.template = template;
         this.template.compile();
+        this.compileBatches();
+        this.createDictionaries();
     }
 
-    public String transformXMLSentenceToCoNLLSentence(Document xmlSentence, String finalDelimiter) {
-        ArrayList<CoNLLRow> conllSentence;
-        try {
-            conllSentence = consumeSentence(xmlSentence);
-        } catch (XPathExpressionException e) {
-            e.printStackTrace();
-            return "";
+    /**
+     * picks the paths that are evaluated for all words of a sentence at once, see {@link SimplePath#isBatchable()}.
+     */
+    private void compileBatches() {
+        this.batchColumnPaths = new SimplePath[this.template.directColumnPaths.size()];
+        this.batchColumnValues = new String[this.batchColumnPaths.length][];
+        int column = 0;
+        for (SimplePath path : this.template.directColumnPaths.values()) {
+            if (path != null && path.isBatchable()) {
+                this.batchColumnPaths[column] = path;
+                this.batchColumnValues[column] = new String[16];
+            }
+            column++;
+        }
+        this.batchFeaturePaths = new SimplePath[this.template.directFeaturePaths.size()];
+        this.batchFeatureValues = new String[this.batchFeaturePaths.length][];
+        int feat = 0;
+        for (SimplePath path : this.template.directFeaturePaths.values()) {
+            if (path != null && path.isBatchable()) {
+                this.batchFeaturePaths[feat] = path;
+                this.batchFeatureValues[feat] = new String[16];
+            }
+            feat++;
+        }
+    }
+
+    /**
+     * creates a {@link ValueDictionary} for each column and feature, which deduplicates the values read from
+     * {@link CompactSubtree}s. DOM nodes already hold their values as strings.
+     */
+    private void createDictionaries() {
+        this.columnDictionaries = new ValueDictionary[this.template.directColumnPaths.size()];
+        int column = 0;
+        for (Map.Entry<String, SimplePath> e : this.template.directColumnPaths.entrySet()) {
+            if (e.getValue() != null) { // FEATS
+                this.columnDictionaries[column] = new ValueDictionary(e.getKey());
+            }
+            column++;
+        }
+        this.featureDictionaries = new ValueDictionary[this.template.directFeaturePaths.size()];
+        int feat = 0;
+        for (String feature : this.template.directFeaturePaths.keySet()) {
+            this.featureDictionaries[feat++] = new ValueDictionary(feature);
+        }
+    }
+
+    /**
+     * @return the hit rates of the value dictionaries of all columns and features that were looked up
+     */
+    public String getValueDictionaryReport() {
+        ArrayList<String> report = new ArrayList<>();
+        for (ValueDictionary dictionary : this.columnDictionaries) {
+            if (dictionary != null && dictionary.getLookups() > 0) {
+                report.add(dictionary.toString());
+            }
+        }
+        for (ValueDictionary dictionary : this.featureDictionaries) {
+            if (dictionary.getLookups() > 0) {
+                report.add(dictionary.toString());
+            }
         }
+        return "Value dictionaries: "+(report.isEmpty() ? "not used" : String.join(", ", report));
+    }
+
+    /**
+     * With batched evaluation, which is the default, the simple column and feature paths are evaluated once per
+     * sentence for all its words, as if the sentence-relative path word/column was evaluated, instead of once per
+     * word. The results are the same.
+     * @param batched
+     */
+    public void setBatchedEvaluation(boolean batched) {
+        this.batched = batched;
+    }
+
+    /**
+     * With a cache, the CoNLL of the sentences written by the appendCoNLLSentence methods is kept, and a sentence
+     * with exactly the same content as a cached one is written from the cache instead of being converted again.
+     * @param cache the cache to use, may be shared with other converters, or null to convert every sentence
+     */
+    public void setSentenceCache(SentenceCache cache) {
+        this.cache = cache;
+    }
+
+    public SentenceCache getSentenceCache() {
+        return this.cache;
+    }
+
+    public String transformXMLSentenceToCoNLLSentence(Document xmlSentence, String finalDelimiter) {
         StringBuilder sb = new StringBuilder();
-        for (CoNLLRow word : conllSentence) {
-            sb.append(word.toString());
-            sb.append("\n");
+        try {
+            appendCoNLLSentence(xmlSentence, sb, finalDelimiter);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by a StringBuilder
         }
-        sb.append(finalDelimiter);
         return sb.toString();
     }
     public String transformXMLSentenceToCoNLLSentence(Document xmlSentence) {
         return transformXMLSentenceToCoNLLSentence(xmlSentence, "\n");
     }
 
+    /**
+     * Same as {@link #transformXMLSentenceToCoNLLSentence(Document, String)} for a sentence read into a
+     * {@link CompactSubtree}. Only possible if {@link #supportsCompactSubtrees()}.
+     * @param xmlSentence
+     * @param finalDelimiter
+     * @return
+     */
+    public String transformXMLSentenceToCoNLLSentence(CompactSubtree xmlSentence, String finalDelimiter) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendCoNLLSentence(xmlSentence, sb, finalDelimiter);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * writes the CoNLL of a sentence directly, without creating a row per word or a string of the sentence.
+     * Nothing is written if the words of the sentence can't be found. With a {@link SentenceCache}, a repeated
+     * sentence is written from the cache.
+     * @param xmlSentence
+     * @param out
+     * @param finalDelimiter written after the last row
+     * @throws IOException if out can't be written to
+     */
+    public void appendCoNLLSentence(Document xmlSentence, Appendable out, String finalDelimiter) throws IOException {
+        if (this.cache != null) {
+            this.hasher.reset();
+            this.hasher.add(xmlSentence);
+            if (this.appendCached(out, finalDelimiter)) {
+                return;
+            }
+            this.rendered.setLength(0);
+            if (this.appendRows(xmlSentence, this.rendered)) {
+                this.cacheRendered(out, finalDelimiter);
+            }
+            return;
+        }
+        if (this.appendRows(xmlSentence, out)) {
+            out.append(finalDelimiter);
+        }
+    }
+
+    /**
+     * @return false, if the words of the sentence can't be found
+     */
+    private boolean appendRows(Document xmlSentence, Appendable out) throws IOException {
+        List<Node> words;
+        try {
+            words = getWords(xmlSentence);
+        } catch (XPathExpressionException e) {
+            e.printStackTrace();
+            return false;
+        }
+        this.evaluateBatches(words);
+        CoNLLRow row = this.getReusableRow();
+        for (int i = 0; i < words.size(); i++) {
+            row.reset(i);
+            fillRow(row, words.get(i), i);
+            row.appendTo(out);
+            out.append('\n');
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #appendCoNLLSentence(Document, Appendable, String)} for a sentence read into a
+     * {@link CompactSubtree}. Only possible if {@link #supportsCompactSubtrees()}.
+     */
+    public void appendCoNLLSentence(CompactSubtree xmlSentence, Appendable out, String finalDelimiter) throws IOException {
+        if (this.cache != null) {
+            this.hasher.reset();
+            xmlSentence.hashContent(this.hasher);
+            if (this.appendCached(out, finalDelimiter)) {
+                return;
+            }
+            this.rendered.setLength(0);
+            this.appendRows(xmlSentence, this.rendered);
+            this.cacheRendered(out, finalDelimiter);
+            return;
+        }
+        this.appendRows(xmlSentence, out);
+        out.append(finalDelimiter);
+    }
+
+    private void appendRows(CompactSubtree xmlSentence, Appendable out) throws IOException {
+        int[] words = getWords(xmlSentence);
+        this.evaluateBatches(xmlSentence, words);
+        CoNLLRow row = this.getReusableRow();
+        for (int i = 0; i < words.length; i++) {
+            row.reset(i);
+            fillRow(row, xmlSentence, words[i], i);
+            row.appendTo(out);
+            out.append('\n');
+        }
+    }
+
+    /**
+     * writes the sentence hashed by the hasher from the cache.
+     * @return false, if it isn't cached
+     */
+    private boolean appendCached(Appendable out, String finalDelimiter) throws IOException {
+        String conll = this.cache.get(this.template, this.hasher);
+        if (conll == null) {
+            return false;
+        }
+        out.append(conll).append(finalDelimiter);
+        return true;
+    }
+
+    /**
+     * caches the rendered sentence under the hash of the hasher and writes it.
+     */
+    private void cacheRendered(Appendable out, String finalDelimiter) throws IOException {
+        String conll = this.rendered.toString();
+        this.cache.put(this.template, this.hasher, conll);
+        out.append(conll).append(finalDelimiter);
+    }
+
+    /**
+     * writes a sentence to a {@link ColumnarWriter} instead of as CoNLL text, the columns of the writer must be
+     * {@link #getColumnNames()}.
+     * @param xmlSentence
+     * @param out
+     * @throws IOException if out can't be written to
+     */
+    public void appendColumnarSentence(Document xmlSentence, ColumnarWriter out) throws IOException {
+        List<Node> words;
+        try {
+            words = getWords(xmlSentence);
+        } catch (XPathExpressionException e) {
+            e.printStackTrace();
+            return;
+        }
+        this.evaluateBatches(words);
+        CoNLLRow row = this.getReusableRow();
+        for (int i = 0; i < words.size(); i++) {
+            row.reset(i);
+            fillRow(row, words.get(i), i);
+            out.addRow(row);
+        }
+        out.endSentence();
+    }
+
+    /**
+     * Same as {@link #appendColumnarSentence(Document, ColumnarWriter)} for a sentence read into a
+     * {@link CompactSubtree}. Only possible if {@link #supportsCompactSubtrees()}.
+     */
+    public void appendColumnarSentence(CompactSubtree xmlSentence, ColumnarWriter out) throws IOException {
+        int[] words = getWords(xmlSentence);
+        this.evaluateBatches(xmlSentence, words);
+        CoNLLRow row = this.getReusableRow();
+        for (int i = 0; i < words.length; i++) {
+            row.reset(i);
+            fillRow(row, xmlSentence, words[i], i);
+            out.addRow(row);
+        }
+        out.endSentence();
+    }
+
+    private CoNLLRow getReusableRow() {
+        if (this.row == null) {
+            this.row = new CoNLLRow(this.template.rowLayout, 0);
+        }
+        return this.row;
+    }
+
+    /**
+     * @return true, if all paths of the template can be evaluated on a {@link CompactSubtree}, so no DOM is needed.
+     */
+    public boolean supportsCompactSubtrees() {
+        return this.template.supportsCompactSubtrees();
+    }
+
     /**
      * @param out
      * @param n How many sentences to convert
@@ -99,40 +375,195 @@ public class XML2CoNLL {
      * @return
      */
     public CoNLLRow transformToCoNLL(Node node, Integer i){
-        CoNLLRow row = new CoNLLRow(i);
-        if (this.template.columnXPaths != null) {
-            this.template.columnXPaths.forEach((col, xpath) -> {
+        CoNLLRow row = new CoNLLRow(this.template.rowLayout, i);
+        fillRow(row, node, -1);
+        return row;
+    }
+
+    /**
+     * evaluates the paths that can be batched for all words of a sentence, see {@link #setBatchedEvaluation(boolean)}.
+     */
+    private void evaluateBatches(List<Node> words) {
+        if (!this.batched) {
+            return;
+        }
+        for (int c = 0; c < this.batchColumnPaths.length; c++) {
+            if (this.batchColumnPaths[c] != null) {
+                this.batchColumnValues[c] = ensureCapacity(this.batchColumnValues[c], words.size());
+                this.batchColumnPaths[c].evaluateStrings(words, this.batchColumnValues[c]);
+            }
+        }
+        for (int f = 0; f < this.batchFeaturePaths.length; f++) {
+            if (this.batchFeaturePaths[f] != null) {
+                this.batchFeatureValues[f] = ensureCapacity(this.batchFeatureValues[f], words.size());
+                this.batchFeaturePaths[f].evaluateStrings(words, this.batchFeatureValues[f]);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #evaluateBatches(List)} for a sentence read into a {@link CompactSubtree}.
+     */
+    private void evaluateBatches(CompactSubtree sentence, int[] words) {
+        if (!this.batched) {
+            return;
+        }
+        for (int c = 0; c < this.batchColumnPaths.length; c++) {
+            if (this.batchColumnPaths[c] != null) {
+                this.batchColumnValues[c] = ensureCapacity(this.batchColumnValues[c], words.length);
+                this.batchColumnPaths[c].evaluateStrings(sentence, words, this.batchColumnValues[c], this.columnDictionaries[c]);
+            }
+        }
+        for (int f = 0; f < this.batchFeaturePaths.length; f++) {
+            if (this.batchFeaturePaths[f] != null) {
+                this.batchFeatureValues[f] = ensureCapacity(this.batchFeatureValues[f], words.length);
+                this.batchFeaturePaths[f].evaluateStrings(sentence, words, this.batchFeatureValues[f], this.featureDictionaries[f]);
+            }
+        }
+    }
+
+    private static String[] ensureCapacity(String[] values, int words) {
+        return values.length >= words ? values : new String[Math.max(words, values.length * 2)];
+    }
+
+    /**
+     * @return the value of a column for the word, if it was evaluated by {@link #evaluateBatches(List)}, else null
+     */
+    private String getBatchedColumn(int column, int word) {
+        return word < 0 || !this.batched || this.batchColumnPaths[column] == null ? null : this.batchColumnValues[column][word];
+    }
+
+    private String getBatchedFeature(int feat, int word) {
+        return word < 0 || !this.batched || this.batchFeaturePaths[feat] == null ? null : this.batchFeatureValues[feat][word];
+    }
+
+    /**
+     * evaluates the columns and features of the template on a word, in the order of the row layout.
+     * @param word index of the word in the current sentence, whose batched values are used, or -1
+     */
+    private void fillRow(CoNLLRow row, Node node, int word) {
+        int column = 0;
+        for (Map.Entry<String, XPathExpression> e : this.template.columnXPaths.entrySet()) {
+            String batched = getBatchedColumn(column, word);
+            if (batched != null) {
+                row.setColumn(column, batched.isEmpty() ? "_" : batched);
+            } else if (e.getValue() != null) { // FEATS
                 try {
-                    if (xpath == null){
-                        row.getColumns().put(col, "FEATS");
-                    } else {
-                        String result = xpath.evaluate(node, XPathConstants.STRING).toString();
-                        result = result == "" ? "_" : result;
-                        row.getColumns().put(col, result);
-                    }
-                } catch (Exception e) {
+                    String result = evaluateString(this.template.directColumnPaths.get(e.getKey()), e.getValue(), node);
+                    row.setColumn(column, result.isEmpty() ? "_" : result);
+                } catch (Exception ex) {
                     // TODO Auto-generated catch block
-                    e.printStackTrace();
+                    ex.printStackTrace();
                 }
-            });
+            }
+            column++;
         }
+        int feat = 0;
         if (this.template.featureXPaths != null) {
-            this.template.featureXPaths.forEach((feat, xpath) -> {
+            for (Map.Entry<String, XPathExpression> e : this.template.featureXPaths.entrySet()) {
                 try {
-                    String result = xpath.evaluate(node, XPathConstants.STRING).toString();
+                    String result = getBatchedFeature(feat, word);
+                    if (result == null) {
+                        result = evaluateString(this.template.directFeaturePaths.get(e.getKey()), e.getValue(), node);
+                    }
                     result = result.equals("") ? "_" : result;
                     LOGGER.finest(result);
-                    row.getFeats().put(feat, result);
-                } catch (Exception e) {
+                    row.setFeat(feat, result);
+                } catch (Exception ex) {
                     // TODO Auto-generated catch block
-                    e.printStackTrace();
+                    ex.printStackTrace();
                 }
-            });
+                feat++;
+            }
         }
-        LOGGER.finer("CONLL:"+row);
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("CONLL:"+row);
+        }
+    }
+
+    /**
+     * evaluates a path directly if it was compiled into a {@link SimplePath}, otherwise by XPath.
+     */
+    private static String evaluateString(SimplePath direct, XPathExpression xpath, Node node)
+            throws XPathExpressionException {
+        if (direct != null) {
+            return direct.evaluateString(node);
+        }
+        return xpath.evaluate(node, XPathConstants.STRING).toString();
+    }
+
+    /**
+     * Same as {@link #transformToCoNLL(Node, Integer)} for a word of a {@link CompactSubtree}.
+     * @param tree
+     * @param node
+     * @param i
+     * @return
+     */
+    public CoNLLRow transformToCoNLL(CompactSubtree tree, int node, Integer i) {
+        CoNLLRow row = new CoNLLRow(this.template.rowLayout, i);
+        fillRow(row, tree, node, -1);
         return row;
     }
 
+    /**
+     * Same as {@link #fillRow(CoNLLRow, Node, int)} for a word of a {@link CompactSubtree}.
+     */
+    void fillRow(CoNLLRow row, CompactSubtree tree, int node) {
+        fillRow(row, tree, node, -1);
+    }
+
+    private void fillRow(CoNLLRow row, CompactSubtree tree, int node, int word) {
+        int column = 0;
+        for (SimplePath path : this.template.columnSimplePaths.values()) {
+            if (path != null) { // FEATS
+                String result = getBatchedColumn(column, word);
+                if (result == null) {
+                    result = path.evaluateString(tree, node, this.columnDictionaries[column]);
+                }
+                row.setColumn(column, result.isEmpty() ? "_" : result);
+            }
+            column++;
+        }
+        int feat = 0;
+        for (SimplePath path : this.template.featureSimplePaths.values()) {
+            String result = getBatchedFeature(feat, word);
+            if (result == null) {
+                result = path.evaluateString(tree, node, this.featureDictionaries[feat]);
+            }
+            row.setFeat(feat++, result.isEmpty() ? "_" : result);
+        }
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("CONLL:"+row);
+        }
+    }
+
+    /**
+     * Same as {@link #consumeSentence(Node)} for a sentence read into a {@link CompactSubtree}.
+     * @param sentence
+     * @return
+     */
+    public ArrayList<CoNLLRow> consumeSentence(CompactSubtree sentence) {
+        int[] words = getWords(sentence);
+        this.evaluateBatches(sentence, words);
+        ArrayList<CoNLLRow> sentenceRows = new ArrayList<>(words.length);
+        for (int i = 0; i < words.length; i++) {
+            CoNLLRow row = new CoNLLRow(this.template.rowLayout, i);
+            fillRow(row, sentence, words[i], i);
+            sentenceRows.add(row);
+        }
+        return sentenceRows;
+    }
+
+    private int[] getWords(CompactSubtree sentence) {
+        if (!this.supportsCompactSubtrees()) {
+            throw new IllegalStateException("Template #"+this.template.getId()+" has paths that need a DOM.");
+        }
+        // like the DOM version, the word path is evaluated on the document node
+        int[] words = this.template.wordSimplePath.evaluateNodes(sentence, 0);
+        LOGGER.fine("Handling a sentence with "+words.length+" words.");
+        return words;
+    }
+
     /**
      * receives an entire subtree, split into words and chunks and calls functions to create
      * CoNLL rows out of them.
@@ -141,13 +572,44 @@ public class XML2CoNLL {
      * @throws XPathExpressionException
      */
     public ArrayList<CoNLLRow> consumeSentence(Node sentence) throws XPathExpressionException{
+        List<Node> words = getWords(sentence);
+        this.evaluateBatches(words);
+        ArrayList<CoNLLRow> sentenceRows = new ArrayList<>(words.size());
+        for (int i = 0; i < words.size(); i++){
+            CoNLLRow row = new CoNLLRow(this.template.rowLayout, i);
+            fillRow(row, words.get(i), i);
+            sentenceRows.add(row);
+        }
+        return sentenceRows;
+    }
+
+    private List<Node> getWords(Node sentence) throws XPathExpressionException {
+        if (this.template.directWordPath != null) {
+            ArrayList<Node> words = this.template.directWordPath.evaluateNodes(sentence);
+            LOGGER.fine("Handling a sentence with "+words.size()+" words.");
+            return words;
+        }
         NodeList words = (NodeList) this.template.wordXPath.evaluate(sentence, XPathConstants.NODESET);
-        ArrayList<CoNLLRow> sentenceRows = new ArrayList<>();
         LOGGER.fine("Handling a sentence with "+words.getLength()+" words.");
-        for (int i = 0; i < words.getLength(); i++){
-            sentenceRows.add(transformToCoNLL(words.item(i), i));
+        ArrayList<Node> list = new ArrayList<>(words.getLength());
+        for (int i = 0; i < words.getLength(); i++) {
+            list.add(words.item(i));
         }
-        return sentenceRows;
+        return list;
+    }
+
+    /**
+     * @return the columns of the rows of the template in the order of {@link #createCommentString(Template)},
+     * without the ID. The FEATS column is named after the joined feature names.
+     */
+    public String[] getColumnNames() {
+        String[] comment = createCommentString(this.template).substring(1).split("\t", -1);
+        // the features are written even if the template has none
+        String[] columns = new String[this.template.rowLayout.getValueCount()];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = c + 1 < comment.length ? comment[c + 1] : "";
+        }
+        return columns;
     }
 
     /**
@@ -0,0 +1,494 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import com.ctc.wstx.stax.WstxInputFactory;
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+
+/**
+ * XMLCursor is the shared parsing layer of all readers in this project. It wraps a Woodstox {@link XMLStreamReader2}
+ * (StAX cursor API), so no event, attribute or QName objects are created per token: attributes are read by index
+ * and element names are compared against pre-parsed {@link Name}s by reference, since Woodstox interns all names
+ * and namespace URIs.
+ * Besides plain iteration it can copy the current event into a DOM ({@link DOMWriter}) or a {@link CompactSubtree}.
+ * Files are opened through {@link XMLParts}, so gzip and zip compressed files are read directly. The documents of
+ * a zip archive are read one after the other, as one sequence of events with a START_DOCUMENT per document.
+ */
+public class XMLCursor implements Closeable {
+
+    private final static XMLInputFactory2 FACTORY = createInputFactory();
+
+    private XMLStreamReader2 reader;
+    private final Closeable source;
+    private final XMLParts parts; // null if the cursor reads a single stream
+    private boolean atNextPart; // the reader of the next part was opened by hasNext(), but not reported yet
+    private long eventIndex; // index of the current event, 0 is the start of the document
+
+    private XMLCursor(XMLStreamReader2 reader, Closeable source) {
+        this(reader, source, null);
+    }
+
+    private XMLCursor(XMLStreamReader2 reader, Closeable source, XMLParts parts) {
+        this.reader = reader;
+        this.source = source;
+        this.parts = parts;
+        this.eventIndex = 0;
+    }
+
+    private static XMLInputFactory2 createInputFactory() {
+        XMLInputFactory2 factory = new WstxInputFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty(XMLInputFactory2.P_INTERN_NAMES, true);
+        factory.setProperty(XMLInputFactory2.P_INTERN_NS_URIS, true);
+        factory.setProperty(XMLInputFactory2.P_REPORT_CDATA, true);
+        return factory;
+    }
+
+    /**
+     * opens a cursor on an xml file, the encoding is detected from the file. The file may be gzip compressed
+     * or a zip archive of xml files.
+     * @param file
+     * @return
+     * @throws XMLStreamException if the file is no xml or can't be decompressed
+     * @throws FileNotFoundException
+     */
+    public static XMLCursor open(File file) throws XMLStreamException, FileNotFoundException {
+        XMLParts parts;
+        try {
+            parts = new XMLParts(file);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+        try {
+            if (!parts.next()) {
+                throw new XMLStreamException("No xml document in "+file.getAbsolutePath());
+            }
+            return new XMLCursor((XMLStreamReader2) FACTORY.createXMLStreamReader(parts.getStream()), parts, parts);
+        } catch (IOException e) {
+            closeQuietly(parts);
+            throw new XMLStreamException(e.getMessage(), e);
+        } catch (XMLStreamException e) {
+            closeQuietly(parts);
+            throw e;
+        }
+    }
+
+    /**
+     * opens a cursor on a stream.
+     * @param in
+     * @param encoding encoding of the stream or null to detect it
+     * @return
+     * @throws XMLStreamException
+     */
+    public static XMLCursor open(InputStream in, String encoding) throws XMLStreamException {
+        XMLStreamReader2 reader = (XMLStreamReader2) (encoding == null
+                ? FACTORY.createXMLStreamReader(in)
+                : FACTORY.createXMLStreamReader(in, encoding));
+        return new XMLCursor(reader, in);
+    }
+
+    //========================================================================
+    // ITERATION
+    //========================================================================
+
+    public boolean hasNext() throws XMLStreamException {
+        return this.atNextPart || this.reader.hasNext() || this.openNextPart();
+    }
+
+    /**
+     * moves to the next event.
+     * @return the type of the event, see {@link XMLStreamConstants}
+     * @throws XMLStreamException
+     */
+    public int next() throws XMLStreamException {
+        if (!this.atNextPart && !this.reader.hasNext()) {
+            this.openNextPart();
+        }
+        this.eventIndex++;
+        if (this.atNextPart) {
+            this.atNextPart = false;
+            return this.reader.getEventType();
+        }
+        return this.reader.next();
+    }
+
+    /**
+     * replaces the exhausted reader with one on the next document of the file.
+     * @return false, if there is no next document
+     * @throws XMLStreamException
+     */
+    private boolean openNextPart() throws XMLStreamException {
+        if (this.parts == null) {
+            return false;
+        }
+        try {
+            if (!this.parts.next()) {
+                return false;
+            }
+        } catch (IOException e) {
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+        this.reader.closeCompletely();
+        this.reader = (XMLStreamReader2) FACTORY.createXMLStreamReader(this.parts.getStream());
+        this.atNextPart = true;
+        return true;
+    }
+
+    public int getEventType() {
+        return this.reader.getEventType();
+    }
+
+    /**
+     * @return the number of the current event, counting from 0 for the start of the document
+     */
+    public long getEventIndex() {
+        return this.eventIndex;
+    }
+
+    /**
+     * @return the offset of the first character of the current event, in chars counted from the start of the
+     * current document
+     */
+    public long getStartingCharOffset() {
+        return this.reader.getLocationInfo().getStartingCharOffset();
+    }
+
+    /**
+     * @return the encoding the input is read with, declared or detected
+     */
+    public String getEncoding() {
+        return this.reader.getEncoding();
+    }
+
+    public boolean isStartElement() {
+        return this.reader.getEventType() == XMLStreamConstants.START_ELEMENT;
+    }
+
+    public boolean isEndElement() {
+        return this.reader.getEventType() == XMLStreamConstants.END_ELEMENT;
+    }
+
+    /**
+     * skips the rest of the current element, afterwards the cursor is on its end element.
+     * @throws XMLStreamException
+     */
+    public void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int type = this.next();
+            if (type == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (type == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    //========================================================================
+    // NAMES AND ATTRIBUTES
+    //========================================================================
+
+    /**
+     * @return the interned local name of the current start or end element
+     */
+    public String getLocalName() {
+        return this.reader.getLocalName();
+    }
+
+    /**
+     * @return the interned namespace URI of the current start or end element, "" if it has none
+     */
+    public String getNamespaceURI() {
+        String uri = this.reader.getNamespaceURI();
+        return uri == null ? "" : uri;
+    }
+
+    public String getPrefix() {
+        String prefix = this.reader.getPrefix();
+        return prefix == null ? "" : prefix;
+    }
+
+    /**
+     * @return the name of the current element as {@link javax.xml.namespace.QName#toString()} renders it: "{uri}local"
+     * or just "local" without namespace. Creates a new string for elements in a namespace.
+     */
+    public String getName() {
+        String uri = this.getNamespaceURI();
+        return uri.isEmpty() ? this.getLocalName() : "{" + uri + "}" + this.getLocalName();
+    }
+
+    /**
+     * @return true, if the current start or end element has the given name, without creating any objects
+     */
+    public boolean hasName(Name name) {
+        return name.localName == this.getLocalName() && name.namespaceURI == this.getNamespaceURI();
+    }
+
+    public int getAttributeCount() {
+        return this.reader.getAttributeCount();
+    }
+
+    public String getAttributeLocalName(int i) {
+        return this.reader.getAttributeLocalName(i);
+    }
+
+    public String getAttributeNamespace(int i) {
+        String uri = this.reader.getAttributeNamespace(i);
+        return uri == null ? "" : uri;
+    }
+
+    public String getAttributePrefix(int i) {
+        String prefix = this.reader.getAttributePrefix(i);
+        return prefix == null ? "" : prefix;
+    }
+
+    public String getAttributeValue(int i) {
+        return this.reader.getAttributeValue(i);
+    }
+
+    /**
+     * @return the name of attribute i as {@link javax.xml.namespace.QName#toString()} renders it
+     */
+    public String getAttributeName(int i) {
+        String uri = this.getAttributeNamespace(i);
+        return uri.isEmpty() ? this.getAttributeLocalName(i) : "{" + uri + "}" + this.getAttributeLocalName(i);
+    }
+
+    /**
+     * @return number of namespaces declared on the current start element
+     */
+    public int getNamespaceCount() {
+        return this.reader.getNamespaceCount();
+    }
+
+    public String getNamespacePrefix(int i) {
+        String prefix = this.reader.getNamespacePrefix(i);
+        return prefix == null ? "" : prefix;
+    }
+
+    public String getNamespaceURI(int i) {
+        String uri = this.reader.getNamespaceURI(i);
+        return uri == null ? "" : uri;
+    }
+
+    //========================================================================
+    // TEXT
+    //========================================================================
+
+    public String getText() {
+        return this.reader.getText();
+    }
+
+    public char[] getTextCharacters() {
+        return this.reader.getTextCharacters();
+    }
+
+    public int getTextStart() {
+        return this.reader.getTextStart();
+    }
+
+    public int getTextLength() {
+        return this.reader.getTextLength();
+    }
+
+    public String getPITarget() {
+        return this.reader.getPITarget();
+    }
+
+    public String getPIData() {
+        return this.reader.getPIData();
+    }
+
+    //========================================================================
+    // COPYING
+    //========================================================================
+
+    /**
+     * adds the current event to a compact subtree. Comments and processing instructions are not stored,
+     * but end the current text node.
+     * @param target
+     */
+    public void copyEventTo(CompactSubtree target) {
+        switch (this.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                target.startElement(this.getLocalName(), this.getNamespaceURI());
+                for (int i = 0; i < this.getAttributeCount(); i++) {
+                    target.addAttribute(this.getAttributeLocalName(i), this.getAttributeNamespace(i), this.getAttributeValue(i));
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                target.endElement();
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                target.characters(this.getTextCharacters(), this.getTextStart(), this.getTextLength());
+                break;
+            case XMLStreamConstants.COMMENT:
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                target.breakText();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.reader.closeCompletely();
+        } catch (XMLStreamException e) {
+            // nothing left to do
+        }
+        closeQuietly(this.source);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * An element name, parsed once from the "{uri}local" notation of {@link javax.xml.namespace.QName#toString()}
+     * and interned, so it can be compared to the names reported by the cursor by reference.
+     */
+    public static class Name {
+        private final String localName;
+        private final String namespaceURI;
+
+        public Name(String localName, String namespaceURI) {
+            this.localName = localName.intern();
+            this.namespaceURI = namespaceURI == null ? "" : namespaceURI.intern();
+        }
+
+        /**
+         * @param name "local" or "{uri}local"
+         * @return
+         */
+        public static Name parse(String name) {
+            if (name.startsWith("{")) {
+                int close = name.indexOf('}');
+                if (close > 0) {
+                    return new Name(name.substring(close + 1), name.substring(1, close));
+                }
+            }
+            return new Name(name, "");
+        }
+
+        public String getLocalName() {
+            return this.localName;
+        }
+
+        public String getNamespaceURI() {
+            return this.namespaceURI;
+        }
+
+        @Override
+        public String toString() {
+            return this.namespaceURI.isEmpty() ? this.localName : "{" + this.namespaceURI + "}" + this.localName;
+        }
+    }
+
+    /**
+     * Writes cursor events into a new DOM, like an XMLEventWriter on a DOMResult would.
+     * Events are added one at a time, so any range of events can be copied, unclosed elements are fine.
+     * A DOM has only one document element, further root elements (from the next document of a zip archive)
+     * are skipped with their content.
+     */
+    public static class DOMWriter {
+        private final Document document;
+        private Node current;
+        private int skipped; // depth inside a skipped root element
+
+        public DOMWriter() throws XMLStreamException {
+            try {
+                this.document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            } catch (ParserConfigurationException e) {
+                throw new XMLStreamException(e);
+            }
+            this.current = this.document;
+        }
+
+        /**
+         * adds the current event of the cursor to the DOM.
+         * @param cursor
+         */
+        public void add(XMLCursor cursor) {
+            if (this.skipped > 0 || (cursor.isStartElement() && this.current == this.document && this.document.getDocumentElement() != null)) {
+                if (cursor.isStartElement()) {
+                    this.skipped++;
+                } else if (cursor.isEndElement()) {
+                    this.skipped--;
+                }
+                return;
+            }
+            switch (cursor.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String uri = cursor.getNamespaceURI();
+                    String prefix = cursor.getPrefix();
+                    Element element = this.document.createElementNS(uri.isEmpty() ? null : uri,
+                            prefix.isEmpty() ? cursor.getLocalName() : prefix + ":" + cursor.getLocalName());
+                    for (int i = 0; i < cursor.getNamespaceCount(); i++) {
+                        String nsPrefix = cursor.getNamespacePrefix(i);
+                        element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                nsPrefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + nsPrefix,
+                                cursor.getNamespaceURI(i));
+                    }
+                    for (int i = 0; i < cursor.getAttributeCount(); i++) {
+                        String attributeUri = cursor.getAttributeNamespace(i);
+                        String attributePrefix = cursor.getAttributePrefix(i);
+                        element.setAttributeNS(attributeUri.isEmpty() ? null : attributeUri,
+                                attributePrefix.isEmpty() ? cursor.getAttributeLocalName(i) : attributePrefix + ":" + cursor.getAttributeLocalName(i),
+                                cursor.getAttributeValue(i));
+                    }
+                    this.current.appendChild(element);
+                    this.current = element;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (this.current != this.document) {
+                        this.current = this.current.getParentNode();
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if (this.current != this.document) {
+                        this.current.appendChild(this.document.createTextNode(cursor.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    if (this.current != this.document) {
+                        this.current.appendChild(this.document.createCDATASection(cursor.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    this.current.appendChild(this.document.createComment(cursor.getText()));
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    this.current.appendChild(this.document.createProcessingInstruction(cursor.getPITarget(), cursor.getPIData()));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        public Document getDocument() {
+            return this.document;
+        }
+    }
+}
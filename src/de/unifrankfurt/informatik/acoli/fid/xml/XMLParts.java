@@ -0,0 +1,171 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.io.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * XMLParts streams the xml documents stored in a file, which may be plain xml, gzip compressed or a zip archive
+ * with any number of xml entries. Nothing is extracted to disk, compressed data is decoded while it is read.
+ * The compression is detected from the first bytes of the file, not from its name.
+ * <p>
+ * Usage: call {@link #next()} to move to the next document and read it from {@link #getStream()}.
+ */
+public class XMLParts implements Closeable {
+
+    public enum Compression { NONE, GZIP, ZIP, BZIP2 }
+
+    private final static Logger LOGGER = Logger.getLogger(XMLParts.class.getName());
+    private final static int BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+    private final Compression compression;
+    private final InputStream in;
+    private InputStream current;
+    private String currentName;
+    private boolean started;
+
+    /**
+     * @param file plain xml, gzip or zip file
+     * @throws IOException if the file can't be opened or its compression is not supported
+     */
+    public XMLParts(File file) throws IOException {
+        this.file = file;
+        this.compression = detectCompression(file);
+        switch (this.compression) {
+            case GZIP:
+                this.in = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+                break;
+            case ZIP:
+                this.in = new ZipInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+                break;
+            case BZIP2:
+                throw new IOException("Can't read "+file.getAbsolutePath()+": bzip2 compressed files are not supported, decompress it first.");
+            default:
+                this.in = new FileInputStream(file);
+        }
+    }
+
+    /**
+     * detects the compression of a file from its magic number.
+     * @param file
+     * @return
+     * @throws IOException if the file can't be read
+     */
+    public static Compression detectCompression(File file) throws IOException {
+        byte[] magic = new byte[4];
+        int n;
+        try (InputStream in = new FileInputStream(file)) {
+            n = in.read(magic);
+        }
+        if (n >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            return Compression.GZIP;
+        }
+        if (n >= 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+            return Compression.ZIP;
+        }
+        if (n >= 3 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h') {
+            return Compression.BZIP2;
+        }
+        return Compression.NONE;
+    }
+
+    /**
+     * @return true, if the file can't be read at arbitrary byte offsets, because it is compressed.
+     */
+    public static boolean isCompressed(File file) {
+        try {
+            return detectCompression(file) != Compression.NONE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * moves to the next xml document. Plain and gzip files hold exactly one, zip entries that are directories
+     * or don't start like xml are skipped.
+     * @return false, if there are no more documents
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        if (this.compression != Compression.ZIP) {
+            if (this.started) {
+                return false;
+            }
+            this.started = true;
+            this.current = this.in;
+            this.currentName = this.file.getName();
+            return true;
+        }
+        ZipInputStream zip = (ZipInputStream) this.in;
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            // the entry must not close the archive when a parser closes it
+            InputStream entryStream = new BufferedInputStream(new FilterInputStream(zip) {
+                @Override
+                public void close() {
+                }
+            }, BUFFER_SIZE);
+            if (!looksLikeXML(entryStream)) {
+                LOGGER.info("Skipping "+entry.getName()+" in "+this.file.getName()+", it is no xml.");
+                continue;
+            }
+            this.current = entryStream;
+            this.currentName = entry.getName();
+            LOGGER.fine("Reading "+this.currentName+" from "+this.file.getName());
+            return true;
+        }
+        this.current = null;
+        this.currentName = null;
+        return false;
+    }
+
+    /**
+     * peeks at the first bytes: optional byte order mark and whitespace followed by '&lt;'.
+     */
+    private static boolean looksLikeXML(InputStream in) throws IOException {
+        in.mark(64);
+        try {
+            int c;
+            int i = 0;
+            while ((c = in.read()) != -1 && i++ < 64) {
+                if (c == 0xEF || c == 0xBB || c == 0xBF || c == 0xFE || c == 0xFF || c == 0x00
+                        || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                    continue;
+                }
+                return c == '<';
+            }
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * @return the stream of the current document
+     */
+    public InputStream getStream() {
+        return this.current;
+    }
+
+    /**
+     * @return the name of the current document, the entry name for zip archives
+     */
+    public String getName() {
+        return this.currentName;
+    }
+
+    public Compression getCompression() {
+        return this.compression;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
@@ -22,6 +22,7 @@ import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.XMLEvent;
@@ -59,27 +60,68 @@ public class XMLSampler {
     static public int getNumberOfStartElementsInEntireFile(File xmlFile) throws XMLStreamException {
         // Setup IO
         LOGGER.info("Getting length of file "+xmlFile.getAbsolutePath());
-        FileReader fileReader = null;
+        XMLCursor cursor;
         try {
-            fileReader = new FileReader(xmlFile);
+            cursor = XMLCursor.open(xmlFile);
         } catch (FileNotFoundException e) {
             LOGGER.warning("Couldn't find file "+xmlFile.getAbsolutePath());
             return 0;
         }
-        XMLInputFactory staxFactory = XMLInputFactory.newInstance();
-        staxFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
-        XMLEventReader staxReader = staxFactory.createXMLEventReader(fileReader);
         int numberOfStartElements = 0;
-        while (staxReader.hasNext()) {
-            XMLEvent nextEvent = staxReader.nextEvent();
-            if (nextEvent.isStartElement()) {
-                numberOfStartElements++;
+        try {
+            while (cursor.hasNext()) {
+                if (cursor.next() == XMLStreamConstants.START_ELEMENT) {
+                    numberOfStartElements++;
+                }
             }
+        } finally {
+            cursor.close();
         }
         LOGGER.info("File "+xmlFile.getAbsolutePath()+" has "+numberOfStartElements+" nodes.");
         return numberOfStartElements;
     }
 
+    /**
+     * writes events from the cursor into the target document until sizeOfSample start elements are written.
+     * @param cursor
+     * @param targetDocument
+     * @param sizeOfSample
+     * @return true, if there are events left
+     * @throws XMLStreamException
+     */
+    static public boolean cutSampleByReference(XMLCursor cursor, XMLCursor.DOMWriter targetDocument, Integer sizeOfSample) throws XMLStreamException {
+        int c = 0;
+        while (cursor.hasNext()) {
+            try {
+                int type = cursor.next();
+
+                // we only count start elements to have a better control over number of attributes
+                if (type == XMLStreamConstants.START_ELEMENT) {
+                    c++;
+                }
+                if (type != XMLStreamConstants.DTD) {
+                    targetDocument.add(cursor);
+                }
+                if (c >= sizeOfSample) {
+                    break;
+                }
+            } catch (WstxEOFException e){
+                LOGGER.warning("WstXEOFException");
+                break;
+            }
+        }
+
+        if (c < sizeOfSample){
+            LOGGER.warning("Node count for sample ("+sizeOfSample+") too small, entire file has "+c+" StartElements.");
+        }
+        LOGGER.info("Sampled "+c+" StartElements from file.");
+        return cursor.hasNext();
+    }
+
+    /**
+     * @deprecated use {@link #cutSampleByReference(XMLCursor, XMLCursor.DOMWriter, Integer)}
+     */
+    @Deprecated
     static public boolean cutSampleByReference(XMLEventReader staxReader, Document targetDocument, Integer sizeOfSample) throws XMLStreamException {
         int c = 0;
         XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
@@ -122,30 +164,30 @@ public class XMLSampler {
     static public Document cutSample(File xmlFile, Integer n) {
         Document sample = null;
         LOGGER.info("Cutting sample from "+xmlFile.getAbsolutePath()+" of size "+n+"..");
-        try {
-            // Setup IO
-            FileReader fileReader = new FileReader(xmlFile);
-            XMLInputFactory staxFactory = XMLInputFactory.newInstance();
-            staxFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
-            XMLEventReader staxReader = staxFactory.createXMLEventReader(fileReader);
-
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            sample = db.newDocument();
-            cutSampleByReference(staxReader, sample, n);
+        try (XMLCursor cursor = XMLCursor.open(xmlFile)) {
+            XMLCursor.DOMWriter writer = new XMLCursor.DOMWriter();
+            sample = writer.getDocument();
+            cutSampleByReference(cursor, writer, n);
 
-        } catch (XMLStreamException | FileNotFoundException | ParserConfigurationException e) {
+        } catch (XMLStreamException | FileNotFoundException e) {
             e.printStackTrace();
         }
         return sample;
     }
 
+    /**
+     * @deprecated all readers use {@link XMLCursor}, see {@link #configureXMLCursor(File)}
+     */
+    @Deprecated
     public XMLEventReader configureXMLEventReader(File file) throws XMLStreamException, FileNotFoundException {
         FileReader fileReader = new FileReader(file);
         XMLInputFactory xif = XMLInputFactory.newInstance();
         xif.setProperty(XMLInputFactory.SUPPORT_DTD, false);
         return xif.createXMLEventReader(fileReader);
     }
+    public XMLCursor configureXMLCursor(File file) throws XMLStreamException, FileNotFoundException {
+        return XMLCursor.open(file);
+    }
     public DocumentBuilder configureDocumentBuilder() {
         try {
             DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -220,6 +262,9 @@ public class XMLSampler {
         XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(new DOMSource(document));
         HashMap<String, ArrayList<HashMap<String, String>>> overview = new HashMap<>();
         Stack<String> xPathStack = new Stack<>();
+        // the samples repeat the same names and values over and over, so they share one instance each
+        ValueDictionary names = new ValueDictionary("attribute names");
+        HashMap<String, ValueDictionary> values = new HashMap<>();
 
         while (reader.hasNext()){
             XMLEvent nextEvent = (XMLEvent) reader.next();
@@ -240,10 +285,11 @@ public class XMLSampler {
                 HashMap<String, String> entriesInNode = new HashMap<>();
                 while (items.hasNext()){
                     Attribute att = (Attribute) items.next();
-                    if (entriesInNode.keySet().contains(att.getName().toString())) {
+                    String name = names.intern(att.getName().toString());
+                    if (entriesInNode.keySet().contains(name)) {
                         LOGGER.warning("Overwriting entriesInNode value when collecting overview! DATA WILL BE MISSING FROM SAMPLE");
                     }
-                    entriesInNode.put(att.getName().toString(), att.getValue());
+                    entriesInNode.put(name, values.computeIfAbsent(name, ValueDictionary::new).intern(att.getValue()));
                 }
                 // put the entry into the overview
                 ArrayList<HashMap<String, String>> temp = overview.getOrDefault(elementName, new ArrayList<>());
@@ -269,13 +315,14 @@ public class XMLSampler {
 //                        temp.add(entry);
 //                        overview.put(elementName, temp);
 //                    }else {
-                    entry.put("text()", cdata.trim());
+                    entry.put("text()", values.computeIfAbsent("text()", ValueDictionary::new).intern(cdata.trim()));
                     temp.add(entry);
                     overview.put(elementName, temp);
 //                    }
                 }
             }
         }
+        LOGGER.fine(names+", "+values.values());
         return overview;
     }
 
@@ -383,36 +430,17 @@ public class XMLSampler {
      * @return
      */
     static public boolean hasNode (File xmlFile, String node, int n) {
-
-    	XMLEventReader staxReader = null;
-    	FileReader fileReader = null;
-        try {
-            fileReader = new FileReader(xmlFile);
-            XMLInputFactory staxFactory = XMLInputFactory.newInstance();
-            staxReader = staxFactory.createXMLEventReader(fileReader);
-
-        int i = 0;
-        while (i < n && staxReader.hasNext()){
-            XMLEvent nextEvent = (XMLEvent) staxReader.next();
-            if (nextEvent.isStartElement()) {
-
-            }
-            if (nextEvent.isStartElement() && nextEvent.asStartElement().getName().toString().equals(node)){
-            	staxReader.close();
-            	fileReader.close();
-                return true;
+        XMLCursor.Name name = XMLCursor.Name.parse(node);
+        try (XMLCursor cursor = XMLCursor.open(xmlFile)) {
+            int i = 0;
+            while (i < n && cursor.hasNext()){
+                if (cursor.next() == XMLStreamConstants.START_ELEMENT && cursor.hasName(name)){
+                    return true;
+                }
             }
-        }
         } catch (Exception e) {
             e.printStackTrace();
         }
-
-        try {
-        	fileReader.close();
-			staxReader.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
         return false; // we didn't find any or experienced an exception
     }
 
@@ -0,0 +1,350 @@
+package de.unifrankfurt.informatik.acoli.fid.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * XMLTagScanner is a minimal byte-level scanner that only recognizes start and end tags of an xml file
+ * and reports them together with their byte offsets. Comments, CDATA sections, processing instructions and
+ * the doctype are skipped, attribute values are only read for namespace declarations.
+ * It is a lot faster than a full StAX parse and is used where only the boundaries of subtrees are of interest.
+ * Only works for ASCII compatible encodings (e.g. UTF-8, ISO-8859-x).
+ */
+class XMLTagScanner {
+
+    /**
+     * Receives the tags found by the scanner. Element names are given as {@link javax.xml.namespace.QName#toString()}
+     * would render them, i.e. "{uri}local" for elements in a namespace.
+     */
+    interface TagHandler {
+        /**
+         * @param name name of the element
+         * @param beginOffset byte offset of the '&lt;' of the start tag
+         * @param namespaceContext all namespace declarations in scope, serialized as attributes, see {@link #getNamespaceContext()}
+         */
+        void startElement(String name, long beginOffset, String namespaceContext);
+
+        /**
+         * @param name name of the element
+         * @param endOffset byte offset right after the '&gt;' of the end tag
+         */
+        void endElement(String name, long endOffset);
+    }
+
+    private final static String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+
+    private final InputStream in;
+    private final Charset charset;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private long bufferOffset; // byte offset of buffer[0] in the stream
+
+    private byte[] token = new byte[64];
+    private int tokenLength;
+
+    // namespace declarations in scope as prefix/uri pairs, "" is the default namespace
+    private final ArrayList<String[]> namespaces = new ArrayList<>();
+    private int[] namespaceMarks = new int[32];
+    private int depth;
+    private String namespaceContext = "";
+
+    XMLTagScanner(InputStream in, Charset charset) {
+        this.in = in;
+        this.charset = charset;
+        this.buffer = new byte[1 << 16];
+    }
+
+    /**
+     * Scans the entire stream and reports all tags to the handler.
+     * @param handler
+     * @throws IOException if the stream can't be read or is no (supported) xml
+     */
+    void scan(TagHandler handler) throws IOException {
+        int c = read();
+        if (c == 0xFE || c == 0xFF || c == 0x00) {
+            throw new IOException("UTF-16 and UTF-32 encoded files are not supported by the byte scanner.");
+        }
+        while (c != -1) {
+            if (c == '<') {
+                long begin = this.offset() - 1;
+                c = read();
+                if (c == '?') {
+                    skipUntil("?>");
+                } else if (c == '!') {
+                    skipMarkup();
+                } else if (c == '/') {
+                    c = readToken(read());
+                    String name = resolve(decodeToken());
+                    while (c != '>' && c != -1) {
+                        c = read();
+                    }
+                    handler.endElement(name, this.offset());
+                    popNamespaces();
+                } else if (c != -1) {
+                    c = readToken(c);
+                    String qName = decodeToken();
+                    pushNamespaces();
+                    boolean empty = readAttributes(c);
+                    String name = resolve(qName);
+                    handler.startElement(name, begin, this.namespaceContext);
+                    if (empty) {
+                        handler.endElement(name, this.offset());
+                        popNamespaces();
+                    }
+                }
+            }
+            c = read();
+        }
+    }
+
+    /**
+     * @return all namespace declarations currently in scope, serialized as xml attributes (e.g. ' xmlns:x="uri"').
+     */
+    String getNamespaceContext() {
+        return this.namespaceContext;
+    }
+
+    //========================================================================
+    // TAGS
+    //========================================================================
+
+    /**
+     * reads the attributes of a start tag up to its closing '&gt;' and records namespace declarations.
+     * @param c the first character after the element name
+     * @return true, if the element is empty (e.g. &lt;w/&gt;)
+     */
+    private boolean readAttributes(int c) throws IOException {
+        boolean changed = false;
+        while (c != -1) {
+            if (c == '>') {
+                break;
+            }
+            if (c == '/') {
+                c = read();
+                if (c == '>') {
+                    if (changed) {
+                        this.namespaceContext = serializeNamespaces();
+                    }
+                    return true;
+                }
+                continue;
+            }
+            if (isWhitespace(c)) {
+                c = read();
+                continue;
+            }
+            c = readToken(c);
+            boolean isDeclaration = tokenStartsWith("xmlns") && (this.tokenLength == 5 || this.token[5] == ':');
+            String attributeName = isDeclaration ? decodeToken() : null;
+            while (c != '"' && c != '\'' && c != -1) {
+                c = read();
+            }
+            int quote = c;
+            this.tokenLength = 0;
+            c = read();
+            while (c != quote && c != -1) {
+                if (isDeclaration) {
+                    appendToken(c);
+                }
+                c = read();
+            }
+            if (isDeclaration) {
+                String prefix = attributeName.length() == 5 ? "" : attributeName.substring(6);
+                this.namespaces.add(new String[]{prefix, decodeToken()});
+                changed = true;
+            }
+            c = read();
+        }
+        if (changed) {
+            this.namespaceContext = serializeNamespaces();
+        }
+        return false;
+    }
+
+    /**
+     * skips comments, CDATA sections and doctype declarations, the leading "&lt;!" is already consumed.
+     */
+    private void skipMarkup() throws IOException {
+        int c = read();
+        if (c == '-') {
+            read();
+            skipUntil("-->");
+        } else if (c == '[') {
+            skipUntil("]]>");
+        } else {
+            // doctype or other declaration, may contain an internal subset with nested markup
+            int brackets = 0;
+            int quote = -1;
+            while (c != -1) {
+                if (quote != -1) {
+                    if (c == quote) {
+                        quote = -1;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '[') {
+                    brackets++;
+                } else if (c == ']') {
+                    brackets--;
+                } else if (c == '>' && brackets <= 0) {
+                    return;
+                }
+                c = read();
+            }
+        }
+    }
+
+    private void skipUntil(String terminator) throws IOException {
+        int matched = 0;
+        int c = read();
+        while (c != -1) {
+            if (c == terminator.charAt(matched)) {
+                matched++;
+                if (matched == terminator.length()) {
+                    return;
+                }
+            } else if (!(matched == 2 && c == terminator.charAt(1) && terminator.charAt(0) == c)) {
+                // "]]]>" and "--->" still terminate after the first two characters
+                matched = c == terminator.charAt(0) ? 1 : 0;
+            }
+            c = read();
+        }
+    }
+
+    //========================================================================
+    // NAMESPACES
+    //========================================================================
+
+    private void pushNamespaces() {
+        if (this.depth == this.namespaceMarks.length) {
+            int[] grown = new int[this.depth * 2];
+            System.arraycopy(this.namespaceMarks, 0, grown, 0, this.depth);
+            this.namespaceMarks = grown;
+        }
+        this.namespaceMarks[this.depth++] = this.namespaces.size();
+    }
+
+    private void popNamespaces() {
+        if (this.depth == 0) {
+            return;
+        }
+        int mark = this.namespaceMarks[--this.depth];
+        if (this.namespaces.size() > mark) {
+            while (this.namespaces.size() > mark) {
+                this.namespaces.remove(this.namespaces.size() - 1);
+            }
+            this.namespaceContext = serializeNamespaces();
+        }
+    }
+
+    /**
+     * resolves a prefixed element name to the representation used by {@link javax.xml.namespace.QName#toString()}
+     * @param qName
+     * @return
+     */
+    private String resolve(String qName) {
+        int colon = qName.indexOf(':');
+        String prefix = colon < 0 ? "" : qName.substring(0, colon);
+        String uri = "xml".equals(prefix) ? XML_NAMESPACE : lookupNamespace(prefix);
+        String localName = qName.substring(colon + 1);
+        if (uri == null || uri.isEmpty()) {
+            return localName;
+        }
+        return "{" + uri + "}" + localName;
+    }
+
+    private String lookupNamespace(String prefix) {
+        for (int i = this.namespaces.size() - 1; i >= 0; i--) {
+            if (this.namespaces.get(i)[0].equals(prefix)) {
+                return this.namespaces.get(i)[1];
+            }
+        }
+        return null;
+    }
+
+    private String serializeNamespaces() {
+        StringBuilder sb = new StringBuilder();
+        ArrayList<String> seen = new ArrayList<>();
+        for (int i = this.namespaces.size() - 1; i >= 0; i--) {
+            String[] declaration = this.namespaces.get(i);
+            if (seen.contains(declaration[0])) {
+                continue;
+            }
+            seen.add(declaration[0]);
+            sb.append(declaration[0].isEmpty() ? " xmlns" : " xmlns:" + declaration[0]);
+            sb.append("=\"").append(declaration[1].replace("\"", "&quot;")).append("\"");
+        }
+        return sb.toString();
+    }
+
+    //========================================================================
+    // BYTES
+    //========================================================================
+
+    /**
+     * reads a name token into the token buffer.
+     * @param c first byte of the token
+     * @return the first byte after the token
+     */
+    private int readToken(int c) throws IOException {
+        this.tokenLength = 0;
+        while (c != -1 && !isWhitespace(c) && c != '>' && c != '/' && c != '=') {
+            appendToken(c);
+            c = read();
+        }
+        return c;
+    }
+
+    private void appendToken(int c) {
+        if (this.tokenLength == this.token.length) {
+            byte[] grown = new byte[this.token.length * 2];
+            System.arraycopy(this.token, 0, grown, 0, this.tokenLength);
+            this.token = grown;
+        }
+        this.token[this.tokenLength++] = (byte) c;
+    }
+
+    private boolean tokenStartsWith(String prefix) {
+        if (this.tokenLength < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (this.token[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decodeToken() {
+        return new String(this.token, 0, this.tokenLength, this.charset);
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /**
+     * @return the byte offset of the byte the next call to read() will return
+     */
+    private long offset() {
+        return this.bufferOffset + this.pos;
+    }
+
+    private int read() throws IOException {
+        if (this.pos == this.limit) {
+            this.bufferOffset += this.limit;
+            this.pos = 0;
+            this.limit = 0;
+            int n = this.in.read(this.buffer);
+            if (n <= 0) {
+                return -1;
+            }
+            this.limit = n;
+        }
+        return this.buffer[this.pos++] & 0xFF;
+    }
+}